@@ -0,0 +1,142 @@
+package com.example.vpnservice_learn;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 包缓冲区池
+ * 缓冲区大小等于TUN的MTU，读TUN、转发、回包、抓包全程复用，稳态下包路径不再分配数组。
+ * 池空时临时新建，归还时池满则交给GC；超过MTU的包（如大UDP应答）使用不入池的临时缓冲区。
+ */
+public class BufferPool {
+
+    public static final int MTU = 1500;
+    private static final int DEFAULT_MAX_POOLED = 2048;
+
+    private final int bufferSize;
+    private final BlockingQueue<PacketBuffer> free;
+    private final boolean trackLeaks;
+    private final Set<PacketBuffer> outstanding;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger highWater = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong oversize = new AtomicLong();
+
+    public BufferPool() {
+        this(MTU, DEFAULT_MAX_POOLED, false);
+    }
+
+    /**
+     * @param trackLeaks 记录每个缓冲区的申请位置，用于定位泄漏，有额外开销，仅调试时开启
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean trackLeaks) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+        this.trackLeaks = trackLeaks;
+        this.outstanding = trackLeaks ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public PacketBuffer acquire() {
+        return acquire(bufferSize);
+    }
+
+    /**
+     * 取出一个至少能容纳size字节的缓冲区，引用计数为1
+     */
+    public PacketBuffer acquire(int size) {
+        PacketBuffer buffer;
+        if (size > bufferSize) {
+            oversize.incrementAndGet();
+            buffer = new PacketBuffer(size, this);
+        } else {
+            buffer = free.poll();
+            if (buffer == null) {
+                allocated.incrementAndGet();
+                buffer = new PacketBuffer(bufferSize, this);
+            }
+        }
+        buffer.reset();
+        acquired.incrementAndGet();
+
+        int current = inUse.incrementAndGet();
+        int high;
+        while (current > (high = highWater.get()) && !highWater.compareAndSet(high, current)) {
+            // 重试直到更新成功或已被其他线程更新为更大的值
+        }
+        if (trackLeaks) {
+            buffer.acquiredAt = new Throwable("buffer acquired here");
+            outstanding.add(buffer);
+        }
+        return buffer;
+    }
+
+    void recycle(PacketBuffer buffer) {
+        inUse.decrementAndGet();
+        if (trackLeaks) {
+            outstanding.remove(buffer);
+            buffer.acquiredAt = null;
+        }
+        if (buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    /**
+     * 当前被持有、尚未归还的缓冲区数量，停止后仍不为0说明有泄漏
+     */
+    public int inUse() {
+        return inUse.get();
+    }
+
+    public int highWater() {
+        return highWater.get();
+    }
+
+    public long acquired() {
+        return acquired.get();
+    }
+
+    /**
+     * 因池空而新建的缓冲区数量，稳态下应不再增长
+     */
+    public long allocated() {
+        return allocated.get();
+    }
+
+    public long oversize() {
+        return oversize.get();
+    }
+
+    public int pooled() {
+        return free.size();
+    }
+
+    /**
+     * 打印未归还的缓冲区，开启追踪时同时打印申请位置
+     *
+     * @return 未归还的数量
+     */
+    public int reportLeaks() {
+        int leaked = inUse.get();
+        if (leaked > 0) {
+            System.out.println("BufferPool 未归还的缓冲区: " + leaked + "，峰值: " + highWater.get());
+            if (trackLeaks) {
+                for (PacketBuffer buffer : outstanding) {
+                    Throwable acquiredAt = buffer.acquiredAt;
+                    if (acquiredAt != null) acquiredAt.printStackTrace();
+                }
+            }
+        }
+        return leaked;
+    }
+}
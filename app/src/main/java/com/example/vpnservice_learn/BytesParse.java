@@ -1,141 +1,683 @@
 package com.example.vpnservice_learn;
 
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.Packet;
-import org.pcap4j.packet.TcpPacket;
-import org.pcap4j.packet.UdpPacket;
-import org.pcap4j.packet.namednumber.IpNumber;
-
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class BytesParse implements Runnable {
 
-    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
-    private final ExecutorService executor = Executors.newFixedThreadPool(3);
-    private final MyVpnService myVpnService;
-    private final Map<String, Parse> connectionMap = new ConcurrentHashMap<>();
-    private final PcapSmbWriter pcapSmbWriter;
+    // TUN写队列的容量：事件循环、DNS缓存和分片线程都会放入回包，只有写线程取出
+    private static final int TUN_QUEUE_CAPACITY = 8192;
+    // 上游TCP/UDP数据和DNS应答预留位置后写队列至少还要剩这么多空位，留给携带序号的TCP控制包和确认
+    private static final int TUN_QUEUE_RESERVE = 512;
+    private final MpscRingBuffer<PacketBuffer> queue = new MpscRingBuffer<>(TUN_QUEUE_CAPACITY, WaitStrategy.PARK);
+    // 读TUN、回包、抓包共用的包缓冲区
+    private final BufferPool bufferPool = new BufferPool();
+    // 读线程、写线程、启动抓包和解析分片都是阻塞的循环，不能放进事件循环，各占一个命名线程，
+    // 统一由 newThread 创建并在这里登记，close时一并中断；线程数固定为分片数加3，与连接数量无关
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch writerStopped = new CountDownLatch(1);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    // 上游连接的事件循环线程数，与连接数量无关
+    private static final int ENGINE_THREADS = 2;
+    private final NioEngine engine = new NioEngine(ENGINE_THREADS);
+    private final UdpSessionManager udpSessions = new UdpSessionManager(engine);
+    private final DnsCache dnsCache;
+    private final Tunnel tunnel;
+    // 写入隧道的字节数，用于界面显示速度
+    private final AtomicLong downloadNum;
+    private final PacketCapture capture;
+    // 解析分片的默认上限，以及每个分片待解析包的队列容量
+    private static final int MAX_SHARDS = 4;
+    private static final int SHARD_QUEUE_CAPACITY = 4096;
+    // 读线程按五元组把包分给各分片，一条流始终由同一个分片解析，分片各自持有自己的连接表
+    private final Shard[] shards;
+    // 只在读线程使用的解析视图和五元组键，用于选择分片
+    private final PacketView packetView = new PacketView();
+    private final long[] ipv4Key = new long[FlowTable.IPV4_KEY_LONGS];
+    private final long[] ipv6Key = new long[FlowTable.IPV6_KEY_LONGS];
 
+    // 连接上游的超时时间，超时后以RST拒绝客户端
+    private volatile long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
 
-    public BytesParse(MyVpnService myVpnService) {
-        this.myVpnService = myVpnService;
-        this.pcapSmbWriter = new PcapSmbWriter(myVpnService);
+    // 写线程单批最多写出的包数，以及为凑批额外等待的最长时间（0表示有多少写多少，不额外等待）
+    private volatile int maxWriteBatch = 64;
+    private volatile long writeLatencyNanos = 0;
+    private final WriterStats writerStats = new WriterStats();
+
+    // 引擎各环节的指标，热路径上的计数器保存在字段中直接累加
+    private final Metrics metrics = new Metrics();
+    private final LongAdder tunInPackets = metrics.counter("tun.in.packets");
+    private final LongAdder tunInBytes = metrics.counter("tun.in.bytes");
+    private final LongAdder tunOutPackets = metrics.counter("tun.out.packets");
+    private final LongAdder tunOutBytes = metrics.counter("tun.out.bytes");
+    private final LongAdder tunOutDropped = metrics.counter("tun.out.dropped");
+    private final LongAdder unsupportedPackets = metrics.counter("parse.unsupported");
+    private final LongAdder parseErrors = metrics.counter("parse.errors");
+    private final LongAdder tcpOpened = metrics.counter("tcp.opened");
+
+
+    public BytesParse(Tunnel tunnel, PacketCapture capture, AtomicLong downloadNum) {
+        this(tunnel, capture, downloadNum, defaultShards());
+    }
+
+    /**
+     * @param shards 解析分片数，每个分片一个线程
+     */
+    public BytesParse(Tunnel tunnel, PacketCapture capture, AtomicLong downloadNum, int shards) {
+        this.tunnel = tunnel;
+        this.capture = capture;
+        this.downloadNum = downloadNum;
+        this.dnsCache = new DnsCache(tunnel, this);
+        this.shards = new Shard[Math.max(1, shards)];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(i);
+        }
+        registerGauges();
+    }
+
+    /**
+     * 读写线程和事件循环已占用若干个核，分片数取核数的一半
+     */
+    private static int defaultShards() {
+        return Math.max(1, Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * 已有状态的指标在取快照时读取，不在热路径上额外计数
+     */
+    private void registerGauges() {
+        metrics.gauge("flows.udp", udpSessions::size);
+        metrics.gauge("flows.tcp", () -> Math.max(0, flowCount() - udpSessions.size()));
+        metrics.gauge("udp.opened", udpSessions::getOpened);
+        metrics.gauge("udp.expired", udpSessions::getExpired);
+        metrics.gauge("udp.evicted", udpSessions::getEvicted);
+        metrics.gauge("queue.tun", queue::size);
+        metrics.gauge("queue.engine", engine::queueDepth);
+        metrics.gauge("queue.capture", capture::queueDepth);
+        metrics.gauge("engine.utilization.permille", () -> Math.round(engine.utilization() * 1000));
+        metrics.gauge("engine.rejected", engine::rejected);
+        metrics.gauge("buffers.inUse", bufferPool::inUse);
+        metrics.gauge("dns.hits", dnsCache::getHits);
+        metrics.gauge("dns.misses", dnsCache::getMisses);
+        metrics.gauge("dns.coalesced", dnsCache::getCoalesced);
+        metrics.gauge("dns.entries", dnsCache::size);
+        for (Shard shard : shards) {
+            String prefix = "shard." + shard.index + ".";
+            metrics.gauge(prefix + "packets", () -> shard.packets);
+            metrics.gauge(prefix + "dropped", () -> shard.dropped);
+            metrics.gauge(prefix + "queue", shard.inbound::size);
+            metrics.gauge(prefix + "flows", () -> shard.ipv4Flows.size() + shard.ipv6Flows.size());
+            metrics.gauge(prefix + "utilization.permille", () -> Math.round(shard.utilization() * 1000));
+        }
     }
 
     @Override
     public void run() {
 
+        try {
+            engine.start();
+            udpSessions.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            dnsCache.start(engine);
+        } catch (IOException e) {
+            // 没有DNS缓存时查询按普通UDP转发
+            e.printStackTrace();
+        }
+
         // 写入windows共享文件
-        executor.submit(()->{
+        newThread("CaptureStart", () -> {
             try {
-                pcapSmbWriter.start();
+                capture.start();
             } catch (Exception e) {
                e.printStackTrace();
             }
-        });
+        }).start();
+
+        for (Shard shard : shards) {
+            shard.start();
+        }
 
         // 读线程
-        executor.submit(() -> {
-            try (FileInputStream fileInputStream = new FileInputStream(myVpnService.descriptor.getFileDescriptor())) {
-                byte[] bt = new byte[1024 * 20];
-                int len;
-                while ((len = fileInputStream.read(bt)) != -1) {
-                    if (len == 0) continue;
-                    parseData(bt, len);
+        newThread("TunReader", () -> {
+            try {
+                while (true) {
+                    // TUN每次read返回一个IP包，MTU大小的缓冲区即可容纳
+                    PacketBuffer buffer = bufferPool.acquire();
+                    int len;
+                    try {
+                        len = tunnel.read(buffer.readBuffer());
+                        if (len > 0) {
+                            tunInPackets.increment();
+                            tunInBytes.add(len);
+                            if (dispatch(buffer.setLength(len))) {
+                                // 引用已交给分片线程
+                                buffer = null;
+                            }
+                        }
+                    } finally {
+                        if (buffer != null) buffer.release();
+                    }
+                    if (len == -1) break;
                 }
             } catch (Exception ignored) {
-                pcapSmbWriter.close();
+            } finally {
+                // close()会中断读线程，先清除中断标记，下面需要等待其他线程退出
+                Thread.interrupted();
+                // 先停止分片，之后不再有包放入连接队列
+                boolean shardsStopped = stopShards();
+                dnsCache.close();
+                engine.close();
+                try {
+                    // 事件循环退出前会释放连接持有的缓冲区，之后不再有包进入写队列
+                    if (engine.awaitTermination(1, TimeUnit.SECONDS) && shardsStopped) {
+                        // 事件循环和分片都已停止，连接队列中剩余的包只能由这里归还
+                        forEachFlow(Parse::releaseQueued);
+                    }
+                    interruptThreads();
+                    capture.close();
+                    tunnel.close();
+                    writerStopped.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException | IOException ignored) {
+                }
+                bufferPool.reportLeaks();
+                terminated.countDown();
             }
-        });
+        }).start();
 
         // 写线程
-        executor.submit(() -> {
+        newThread("TunWriter", () -> {
+            try {
+                writeLoop();
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                writerStopped.countDown();
+            }
+        }).start();
+    }
+
+    /**
+     * 创建引擎自己的线程并登记，由调用方启动
+     */
+    private Thread newThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        threads.add(thread);
+        return thread;
+    }
+
+    /**
+     * 中断登记的所有线程，不包括当前线程，读线程收尾时据此停止写线程和启动抓包的线程
+     */
+    private void interruptThreads() {
+        Thread current = Thread.currentThread();
+        for (Thread thread : threads) {
+            if (thread != current) {
+                thread.interrupt();
+            }
+        }
+    }
 
-            try (FileOutputStream fileOutputStream = new FileOutputStream(myVpnService.descriptor.getFileDescriptor())) {
-                while (!Thread.interrupted()) {
-                    byte[] take = queue.take();
+    /**
+     * 停止引擎：中断读写线程并关闭隧道，读线程退出时依次关闭事件循环、抓包并归还缓冲区
+     * 不等待线程退出，可以在主线程调用，可重复调用
+     */
+    public void close() {
+        interruptThreads();
+        try {
+            tunnel.close();
+        } catch (IOException ignored) {
+        }
+    }
 
-                    // 写入PC共享文件
-                    pcapSmbWriter.addQueue(take);
+    /**
+     * 等待 {@link #close()} 或隧道关闭后所有线程退出
+     *
+     * @return 超时前全部退出时返回true
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
 
-                    fileOutputStream.write(take);
+    /**
+     * 一次取出队列中所有待写的包，逐包写入TUN（TUN每次write对应一个IP包，不能合并），
+     * 抓包入队和流量统计按批进行
+     */
+    private void writeLoop() throws IOException, InterruptedException {
+        List<PacketBuffer> batch = new ArrayList<>();
+        try {
+            writeBatches(batch);
+        } finally {
+            // 写出失败或被中断时归还这一批以及队列中剩余的包
+            for (PacketBuffer packet : batch) {
+                packet.release();
+            }
+            PacketBuffer packet;
+            while ((packet = queue.poll()) != null) {
+                packet.release();
+            }
+        }
+    }
 
-                    myVpnService.downloadNum.addAndGet(take.length);
+    private void writeBatches(List<PacketBuffer> batch) throws IOException, InterruptedException {
+        while (!Thread.interrupted()) {
+            batch.add(queue.take());
+            int maxBatch = maxWriteBatch;
+            queue.drainTo(batch, maxBatch - 1);
 
+            long latency = writeLatencyNanos;
+            if (latency > 0 && batch.size() < maxBatch) {
+                long deadline = System.nanoTime() + latency;
+                long remaining;
+                while (batch.size() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                    PacketBuffer packet = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (packet == null) break;
+                    batch.add(packet);
+                    queue.drainTo(batch, maxBatch - batch.size());
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-        });
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (PacketBuffer packet : batch) {
+                tunnel.write(packet.nioBuffer(0, packet.length()));
+                bytes += packet.length();
+            }
+            writerStats.record(batch.size(), System.nanoTime() - start);
+
+            // 写入PC共享文件
+            capture.addQueue(batch);
+
+            downloadNum.addAndGet(bytes);
+            tunOutPackets.add(batch.size());
+            tunOutBytes.add(bytes);
+            for (PacketBuffer packet : batch) {
+                packet.release();
+            }
+            batch.clear();
+        }
     }
 
-    private void parseData(byte[] data, int len) {
+    /**
+     * 在读线程按五元组选择分片并放入其队列，不是TCP/UDP的包直接抓包后丢弃
+     *
+     * @return 已交给分片时返回true，分片负责释放
+     */
+    private boolean dispatch(PacketBuffer buffer) {
+        PacketView packet = packetView;
+        if (!packet.wrap(buffer)) {
+            unsupportedPackets.increment();
+            // 写入PC共享文件
+            capture.addQueue(buffer);
+            return false;
+        }
+        long[] key = packet.isIPv6() ? ipv6Key : ipv4Key;
+        FlowTable.key(packet, key);
+        Shard shard = shardOf(key);
+        if (shard.inbound.offer(buffer)) {
+            return true;
+        }
+        // 分片跟不上时丢弃，TCP客户端会重传
+        shard.dropped++;
+        return false;
+    }
+
+    /**
+     * 表内用哈希低位作下标，这里取高位，避免同一分片的键在表中聚集
+     */
+    private Shard shardOf(long[] key) {
+        return shards[(int) (((FlowTable.hash(key) >>> 32) * shards.length) >>> 32)];
+    }
+
+    private void parseData(Shard shard, PacketBuffer buffer) {
         try {
-            Packet packet = IpSelector.newPacket(data, 0, len);
-            if (packet instanceof IpPacket ipPacket) {
-                String key = getKey(ipPacket);
-                if (key == null) return;
-
-                if (!connectionMap.containsKey(key)) {
-                    if (ipPacket.getHeader().getProtocol() == IpNumber.TCP) {
-                        TcpConnect tcpConnect = new TcpConnect(myVpnService, this);
-                        connectionMap.putIfAbsent(key, tcpConnect);
-                    } else if (ipPacket.getHeader().getProtocol() == IpNumber.UDP) {
-                        UdpConnect udpConnect = new UdpConnect(myVpnService, this, ipPacket);
-                        connectionMap.putIfAbsent(key, udpConnect);
+            PacketView packet = shard.packetView;
+            if (!packet.wrap(buffer)) {
+                unsupportedPackets.increment();
+            } else if (!(packet.isUdp() && packet.dstPort() == DnsCache.PORT && dnsCache.handleQuery(packet))) {
+                // DNS查询由缓存应答或合并到进行中的上游查询时不建立UDP会话
+                long[] key = shard.getKey(packet);
+                FlowTable<Parse> flows = shard.flows(key);
+
+                Parse parse = flows.get(key);
+                if (parse == null) {
+                    // 连接对象持有键的副本，关闭时据此移除
+                    long[] flowKey = key.clone();
+                    if (packet.isTcp()) {
+                        parse = new TcpConnect(tunnel, this, flowKey);
+                        tcpOpened.increment();
+                    } else {
+                        parse = udpSessions.open(tunnel, this, packet, flowKey);
                     }
+                    flows.putIfAbsent(flowKey, parse);
                 }
 
-                Parse parse = connectionMap.get(key);
-                if (parse != null) {
-                    parse.parseIpPacket(ipPacket);
-                }
+                parse.parseIpPacket(packet);
             }
 
             // 写入PC共享文件
-            byte[] d = Arrays.copyOfRange(data, 0, len);
-            pcapSmbWriter.addQueue(d);
+            capture.addQueue(buffer);
 
         } catch (Exception e) {
+            parseErrors.increment();
             e.printStackTrace();
             System.out.println("ReadData parseData 解析包异常: " + e.getMessage());
         }
     }
 
-    public String getKey(IpPacket ipPacket) {
-        Packet payload = ipPacket.getPayload();
-        // 明确只处理TCP/UDP
-        if (payload instanceof TcpPacket tcpPacket) {
-            return "tcp:" + tcpPacket.getHeader().getSrcPort().valueAsInt();
-        } else if (payload instanceof UdpPacket udpPacket) {
-            return "udp:" + udpPacket.getHeader().getSrcPort().valueAsInt();
-        } else {
-            // 其他协议返回null或抛出异常
-            return null;
+    public void removeKey(long[] key, Parse parse) {
+        shardOf(key).flows(key).remove(key, parse);
+    }
+
+    /**
+     * 遍历当前所有存活的连接
+     */
+    public void forEachFlow(Consumer<Parse> action) {
+        for (Shard shard : shards) {
+            shard.ipv4Flows.forEach(action);
+            shard.ipv6Flows.forEach(action);
+        }
+    }
+
+    private int flowCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.ipv4Flows.size() + shard.ipv6Flows.size();
+        }
+        return count;
+    }
+
+    /**
+     * 中断所有分片线程并等待退出
+     *
+     * @return 全部退出时返回true
+     */
+    private boolean stopShards() {
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
         }
+        boolean stopped = true;
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped &= !shard.thread.isAlive();
+        }
+        return stopped;
+    }
+
+    /**
+     * 解析分片数
+     */
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * 调整写线程的批量参数
+     *
+     * @param maxBatch       单批最多写出的包数
+     * @param latencyMicros  为凑满一批最多额外等待的微秒数，0表示不等待
+     */
+    public void setWriteBatch(int maxBatch, long latencyMicros) {
+        this.maxWriteBatch = Math.max(1, maxBatch);
+        this.writeLatencyNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, latencyMicros));
+    }
+
+    /**
+     * 设置连接上游的超时时间，对之后收到的SYN生效
+     */
+    public void setConnectTimeout(long timeout, TimeUnit unit) {
+        this.connectTimeoutMillis = Math.max(1, unit.toMillis(timeout));
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public WriterStats getWriterStats() {
+        return writerStats;
+    }
+
+    public NioEngine getEngine() {
+        return engine;
+    }
+
+    public UdpSessionManager getUdpSessions() {
+        return udpSessions;
+    }
+
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    /**
+     * 引擎的指标，界面和测试定期取快照
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 放入TUN写队列，写出后由写线程释放，可以使用为控制包保留的位置
+     * 用于丢弃后没有后果的包，如不属于任何连接的RST
+     *
+     * @return 队列已满时释放packet并返回false
+     */
+    public boolean pushData(PacketBuffer packet) {
+        if (queue.offer(packet)) {
+            return true;
+        }
+        tunOutDropped.increment();
+        packet.release();
+        return false;
+    }
+
+    /**
+     * 放入TUN写队列，可以使用为控制包保留的位置，用于携带序号的TCP控制包和确认
+     *
+     * @return 队列已满时返回false，packet仍归调用方所有，由调用方稍后重试
+     */
+    public boolean offerData(PacketBuffer packet) {
+        return queue.offer(packet);
+    }
+
+    /**
+     * 上游数据的生产者在读取之前预留count个位置，预留后为控制包留出的位置仍然空闲
+     * 读取后用 {@link #pushReserved} 放入，用不完的位置用 {@link #cancelReserved} 归还
+     *
+     * @return 空间不足时返回false，调用方应暂停读取上游，数据留在socket的接收缓冲区中
+     */
+    public boolean reserveData(int count) {
+        return queue.tryReserve(count, TUN_QUEUE_RESERVE);
+    }
+
+    public void pushReserved(PacketBuffer packet) {
+        queue.offerReserved(packet);
+    }
+
+    /**
+     * 把一批已预留位置的包整体放入TUN写队列，这一批在队列中相邻
+     */
+    public void pushReserved(PacketBuffer[] packets, int count) {
+        queue.offerReserved(packets, count);
+    }
+
+    public void cancelReserved(int count) {
+        queue.cancelReserved(count);
     }
 
-    public void removeKey(IpPacket ipPacket) {
-        String key = getKey(ipPacket);
-        if (key != null) {
-            connectionMap.remove(key);
+    /**
+     * 放入不需要重传的数据报，如DNS应答，不使用为控制包保留的位置
+     *
+     * @return 空间不足时释放packet并返回false，按UDP语义丢弃
+     */
+    public boolean pushDatagram(PacketBuffer packet) {
+        if (reserveData(1)) {
+            pushReserved(packet);
+            return true;
         }
+        tunOutDropped.increment();
+        packet.release();
+        return false;
     }
 
-    public void pushData(byte[] data) {
-        queue.offer(data);
+    /**
+     * 设置写线程在写队列为空时的等待方式
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        queue.setWaitStrategy(waitStrategy);
     }
 
     interface Parse {
-        void parseIpPacket(IpPacket ipPacket);
+        /**
+         * 在流所属的分片线程调用，同一条流的包按到达顺序串行调用
+         *
+         * @param packet 指向读缓冲区的视图，仅在本次调用期间有效，需要跨线程保留时对 {@link PacketView#buffer()} 调用retain
+         */
+        void parseIpPacket(PacketView packet);
+
+        /**
+         * 释放已放入连接队列、尚未处理的包
+         * 只在分片和事件循环全部退出后由读线程调用，此时没有其他线程访问队列
+         */
+        void releaseQueued();
+    }
+
+    /**
+     * 解析分片：一个线程加一个待解析队列，负责五元组哈希落在本分片的流
+     * 流的查找、建立和分发都只在本分片线程进行，同一条流的包保持到达顺序，分片之间不共享连接表。
+     */
+    private final class Shard implements Runnable {
+        private final int index;
+        // 生产者只有读线程，选用可挂起等待的环形队列
+        private final MpscRingBuffer<PacketBuffer> inbound =
+                new MpscRingBuffer<>(SHARD_QUEUE_CAPACITY, WaitStrategy.PARK);
+        private final FlowTable<Parse> ipv4Flows = new FlowTable<>(FlowTable.IPV4_KEY_LONGS, 256);
+        private final FlowTable<Parse> ipv6Flows = new FlowTable<>(FlowTable.IPV6_KEY_LONGS, 16);
+        private final Thread thread;
+        // 只在分片线程使用的解析视图和五元组键，每个包复用
+        private final PacketView packetView = new PacketView();
+        private final long[] ipv4Key = new long[FlowTable.IPV4_KEY_LONGS];
+        private final long[] ipv6Key = new long[FlowTable.IPV6_KEY_LONGS];
+        // 解析的包数和忙碌时间只由分片线程写入，队列满丢弃的包数只由读线程写入
+        private volatile long packets;
+        private volatile long busyNanos;
+        private volatile long startedAt;
+        private volatile long dropped;
+
+        Shard(int index) {
+            this.index = index;
+            this.thread = newThread("ParseShard-" + index, this);
+        }
+
+        void start() {
+            startedAt = System.nanoTime();
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    PacketBuffer buffer = inbound.take();
+                    long start = System.nanoTime();
+                    try {
+                        parseData(this, buffer);
+                    } finally {
+                        // 需要保留的环节已自行retain
+                        buffer.release();
+                    }
+                    busyNanos += System.nanoTime() - start;
+                    packets++;
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                PacketBuffer buffer;
+                while ((buffer = inbound.poll()) != null) {
+                    buffer.release();
+                }
+            }
+        }
+
+        /**
+         * 计算五元组键，返回分片复用的数组
+         */
+        long[] getKey(PacketView packet) {
+            long[] key = packet.isIPv6() ? ipv6Key : ipv4Key;
+            FlowTable.key(packet, key);
+            return key;
+        }
+
+        FlowTable<Parse> flows(long[] key) {
+            return key.length == FlowTable.IPV4_KEY_LONGS ? ipv4Flows : ipv6Flows;
+        }
+
+        /**
+         * 启动以来处理包所占的时间比例
+         */
+        double utilization() {
+            long elapsed = System.nanoTime() - startedAt;
+            return startedAt == 0 || elapsed <= 0 ? 0 : Math.min(1, (double) busyNanos / elapsed);
+        }
+    }
+
+    /**
+     * 写线程的批量统计
+     */
+    public static class WriterStats {
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicLong writeNanos = new AtomicLong();
+        private volatile int maxBatch;
+
+        void record(int size, long nanos) {
+            batches.incrementAndGet();
+            packets.addAndGet(size);
+            writeNanos.addAndGet(nanos);
+            if (size > maxBatch) maxBatch = size;
+        }
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public long getPackets() {
+            return packets.get();
+        }
+
+        public int getMaxBatch() {
+            return maxBatch;
+        }
+
+        public double getAverageBatchSize() {
+            long b = batches.get();
+            return b == 0 ? 0 : (double) packets.get() / b;
+        }
+
+        /**
+         * 每批写入TUN的平均耗时（微秒）
+         */
+        public double getAverageWriteMicros() {
+            long b = batches.get();
+            return b == 0 ? 0 : writeNanos.get() / 1000.0 / b;
+        }
     }
 }
@@ -0,0 +1,471 @@
+package com.example.vpnservice_learn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 抓包过滤器，支持tcpdump语法的常用子集：
+ * <pre>
+ *   [src|dst] host 地址
+ *   [src|dst] net 地址/前缀长度
+ *   [src|dst] port 端口
+ *   proto tcp|udp|icmp|协议号，以及简写 tcp、udp、icmp、ip、ip6
+ *   tcp port 443 这类协议加端口的写法，等价于 tcp and port 443
+ *   and(&amp;&amp;)、or(||)、not(!)和括号，优先级 not &gt; and &gt; or
+ * </pre>
+ * 表达式编译成后缀形式的指令数组，匹配时直接读取IP头和端口，不创建对象，可以在引擎线程上调用。
+ * 编译后不可变，重新加载时整体替换即可。
+ */
+public final class CaptureFilter {
+
+    private static final int OP_HOST4 = 1;   // 操作数：方向，地址
+    private static final int OP_NET4 = 2;    // 操作数：方向，地址，掩码
+    private static final int OP_HOST6 = 3;   // 操作数：方向，常量下标，前缀长度
+    private static final int OP_PORT = 4;    // 操作数：方向，端口
+    private static final int OP_PROTO = 5;   // 操作数：协议号
+    private static final int OP_VERSION = 6; // 操作数：IP版本
+    private static final int OP_AND = 7;
+    private static final int OP_OR = 8;
+    private static final int OP_NOT = 9;
+
+    private static final int DIR_SRC = 1;
+    private static final int DIR_DST = 2;
+    private static final int DIR_ANY = DIR_SRC | DIR_DST;
+
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_ICMPV6 = 58;
+    // 求值栈用long的各位表示，表达式嵌套不超过64层；括号和not的递归层数同样限制，超长输入不会栈溢出
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * 匹配所有包
+     */
+    public static final CaptureFilter ALL = new CaptureFilter("", new int[0], new byte[0][]);
+
+    private final String expression;
+    private final int[] program;
+    // IPv6地址常量
+    private final byte[][] addresses;
+
+    private CaptureFilter(String expression, int[] program, byte[][] addresses) {
+        this.expression = expression;
+        this.program = program;
+        this.addresses = addresses;
+    }
+
+    /**
+     * 编译过滤表达式，空表达式匹配所有包
+     *
+     * @throws IllegalArgumentException 语法错误
+     */
+    public static CaptureFilter compile(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        Compiler compiler = new Compiler(expression);
+        return new CaptureFilter(expression.trim(), compiler.compile(), compiler.addresses.toArray(new byte[0][]));
+    }
+
+    public String expression() {
+        return expression;
+    }
+
+    /**
+     * 判断一个IP包是否满足过滤条件
+     */
+    public boolean matches(byte[] data, int offset, int length) {
+        int[] code = program;
+        if (code.length == 0) return true;
+        if (length < 1) return false;
+
+        int version = (data[offset] >> 4) & 0xF;
+        int protocol;
+        int transport;
+        boolean hasPorts;
+        if (version == 4) {
+            if (length < 20) return false;
+            protocol = data[offset + 9] & 0xFF;
+            transport = offset + (data[offset] & 0xF) * 4;
+            // 非首个分片没有端口
+            int fragmentOffset = ((data[offset + 6] & 0x1F) << 8) | (data[offset + 7] & 0xFF);
+            hasPorts = fragmentOffset == 0;
+        } else if (version == 6) {
+            if (length < 40) return false;
+            protocol = data[offset + 6] & 0xFF;
+            transport = offset + 40;
+            hasPorts = true;
+        } else {
+            return false;
+        }
+        hasPorts &= (protocol == PacketView.PROTOCOL_TCP || protocol == PacketView.PROTOCOL_UDP)
+                && transport + 4 <= offset + length;
+
+        long stack = 0;
+        int depth = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            boolean result;
+            switch (code[pc]) {
+                case OP_HOST4:
+                case OP_NET4: {
+                    int direction = code[pc + 1];
+                    int address = code[pc + 2];
+                    int mask = code[pc] == OP_NET4 ? code[pc + 3] : -1;
+                    result = version == 4
+                            && ((direction & DIR_SRC) != 0 && (readInt(data, offset + 12) & mask) == address
+                            || (direction & DIR_DST) != 0 && (readInt(data, offset + 16) & mask) == address);
+                    pc += code[pc] == OP_NET4 ? 4 : 3;
+                    break;
+                }
+                case OP_HOST6: {
+                    int direction = code[pc + 1];
+                    byte[] address = addresses[code[pc + 2]];
+                    int prefix = code[pc + 3];
+                    result = version == 6
+                            && ((direction & DIR_SRC) != 0 && prefixEquals(data, offset + 8, address, prefix)
+                            || (direction & DIR_DST) != 0 && prefixEquals(data, offset + 24, address, prefix));
+                    pc += 4;
+                    break;
+                }
+                case OP_PORT: {
+                    int direction = code[pc + 1];
+                    int port = code[pc + 2];
+                    result = hasPorts
+                            && ((direction & DIR_SRC) != 0 && readShort(data, transport) == port
+                            || (direction & DIR_DST) != 0 && readShort(data, transport + 2) == port);
+                    pc += 3;
+                    break;
+                }
+                case OP_PROTO:
+                    result = protocol == code[pc + 1];
+                    pc += 2;
+                    break;
+                case OP_VERSION:
+                    result = version == code[pc + 1];
+                    pc += 2;
+                    break;
+                case OP_NOT:
+                    stack ^= 1L << (depth - 1);
+                    pc++;
+                    continue;
+                case OP_AND:
+                case OP_OR: {
+                    boolean right = (stack & (1L << (depth - 1))) != 0;
+                    boolean left = (stack & (1L << (depth - 2))) != 0;
+                    depth -= 2;
+                    stack &= ~(3L << depth);
+                    result = code[pc] == OP_AND ? left && right : left || right;
+                    pc++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc]);
+            }
+            if (result) stack |= 1L << depth;
+            depth++;
+        }
+        return (stack & 1) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return expression.isEmpty() ? "<all>" : expression;
+    }
+
+    private static int readInt(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 24) | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8) | (data[index + 3] & 0xFF);
+    }
+
+    private static int readShort(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    private static boolean prefixEquals(byte[] data, int index, byte[] address, int prefix) {
+        int bytes = prefix >> 3;
+        for (int i = 0; i < bytes; i++) {
+            if (data[index + i] != address[i]) return false;
+        }
+        int bits = prefix & 7;
+        if (bits == 0) return true;
+        int mask = 0xFF << (8 - bits);
+        return ((data[index + bytes] ^ address[bytes]) & mask) == 0;
+    }
+
+    /**
+     * 递归下降解析，直接输出后缀指令
+     */
+    private static final class Compiler {
+        private final String source;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<byte[]> addresses = new ArrayList<>();
+        private int[] code = new int[32];
+        private int size;
+        private int index;
+        private int depth;
+        // parseNot/parsePrimary当前的递归层数
+        private int nesting;
+
+        Compiler(String source) {
+            this.source = source;
+            tokenize(source);
+        }
+
+        int[] compile() {
+            parseOr();
+            if (index < tokens.size()) {
+                throw error("unexpected '" + tokens.get(index) + "'");
+            }
+            int[] result = new int[size];
+            System.arraycopy(code, 0, result, 0, size);
+            return result;
+        }
+
+        private void tokenize(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == '!') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (text.startsWith("&&", i) || text.startsWith("||", i)) {
+                    tokens.add(text.substring(i, i + 2));
+                    i += 2;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && "()!&|".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        private void parseOr() {
+            parseAnd();
+            while (accept("or") || accept("||")) {
+                parseAnd();
+                emit(OP_OR);
+                pop(1);
+            }
+        }
+
+        private void parseAnd() {
+            parseNot();
+            while (accept("and") || accept("&&")) {
+                parseNot();
+                emit(OP_AND);
+                pop(1);
+            }
+        }
+
+        private void parseNot() {
+            if (accept("not") || accept("!")) {
+                enter();
+                parseNot();
+                nesting--;
+                emit(OP_NOT);
+            } else {
+                parsePrimary();
+            }
+        }
+
+        private void parsePrimary() {
+            if (accept("(")) {
+                enter();
+                parseOr();
+                expect(")");
+                nesting--;
+                return;
+            }
+            String token = next("expression");
+            switch (token) {
+                case "tcp":
+                case "udp":
+                    // tcp port 443 等价于 tcp and port 443
+                    emitProto(token.equals("tcp") ? PacketView.PROTOCOL_TCP : PacketView.PROTOCOL_UDP);
+                    if (peekQualifier()) {
+                        parseQualified();
+                        emit(OP_AND);
+                        pop(1);
+                    }
+                    return;
+                case "icmp":
+                    emitProto(PROTOCOL_ICMP);
+                    return;
+                case "icmp6":
+                    emitProto(PROTOCOL_ICMPV6);
+                    return;
+                case "ip":
+                    emit(OP_VERSION, 4);
+                    push();
+                    return;
+                case "ip6":
+                    emit(OP_VERSION, 6);
+                    push();
+                    return;
+                case "proto":
+                    emitProto(protocolNumber(next("protocol")));
+                    return;
+                default:
+                    index--;
+                    parseQualified();
+            }
+        }
+
+        private boolean peekQualifier() {
+            if (index >= tokens.size()) return false;
+            String token = tokens.get(index);
+            return token.equals("src") || token.equals("dst") || token.equals("host")
+                    || token.equals("net") || token.equals("port");
+        }
+
+        /**
+         * [src|dst] host/net/port 值
+         */
+        private void parseQualified() {
+            int direction = DIR_ANY;
+            if (accept("src")) {
+                direction = DIR_SRC;
+            } else if (accept("dst")) {
+                direction = DIR_DST;
+            }
+            String keyword = next("host, net or port");
+            switch (keyword) {
+                case "host":
+                    emitAddress(direction, next("address"), -1);
+                    break;
+                case "net": {
+                    String value = next("network");
+                    int slash = value.indexOf('/');
+                    if (slash < 0) throw error("net requires a prefix length: " + value);
+                    emitAddress(direction, value.substring(0, slash), parseInt(value.substring(slash + 1)));
+                    break;
+                }
+                case "port": {
+                    int port = parseInt(next("port"));
+                    if (port < 0 || port > 0xFFFF) throw error("bad port " + port);
+                    emit(OP_PORT, direction, port);
+                    push();
+                    break;
+                }
+                default:
+                    throw error("expected host, net or port but got '" + keyword + "'");
+            }
+        }
+
+        private void emitAddress(int direction, String text, int prefix) {
+            byte[] address = parseAddress(text);
+            int bits = address.length * 8;
+            if (prefix < 0) prefix = bits;
+            if (prefix > bits) throw error("bad prefix length " + prefix);
+            if (address.length == 4) {
+                int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+                int value = readInt(address, 0) & mask;
+                if (prefix == 32) {
+                    emit(OP_HOST4, direction, value);
+                } else {
+                    emit(OP_NET4, direction, value, mask);
+                }
+            } else {
+                addresses.add(address);
+                emit(OP_HOST6, direction, addresses.size() - 1, prefix);
+            }
+            push();
+        }
+
+        private void emitProto(int protocol) {
+            emit(OP_PROTO, protocol);
+            push();
+        }
+
+        private int protocolNumber(String name) {
+            switch (name) {
+                case "tcp":
+                    return PacketView.PROTOCOL_TCP;
+                case "udp":
+                    return PacketView.PROTOCOL_UDP;
+                case "icmp":
+                    return PROTOCOL_ICMP;
+                case "icmp6":
+                    return PROTOCOL_ICMPV6;
+                default:
+                    int number = parseInt(name);
+                    if (number < 0 || number > 255) throw error("bad protocol " + name);
+                    return number;
+            }
+        }
+
+        private byte[] parseAddress(String text) {
+            // 只接受字面地址，不做DNS解析
+            if (!(text.indexOf(':') >= 0 || text.matches("[0-9.]+"))) {
+                throw error("bad address " + text);
+            }
+            try {
+                return InetAddress.getByName(text).getAddress();
+            } catch (UnknownHostException e) {
+                throw error("bad address " + text);
+            }
+        }
+
+        private int parseInt(String text) {
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                throw error("expected a number but got '" + text + "'");
+            }
+        }
+
+        private boolean accept(String token) {
+            if (index < tokens.size() && tokens.get(index).equals(token)) {
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) throw error("expected '" + token + "'");
+        }
+
+        private String next(String what) {
+            if (index >= tokens.size()) throw error("expected " + what + " at end of expression");
+            return tokens.get(index++);
+        }
+
+        /**
+         * 递归之前检查层数，超过限制立即报错
+         */
+        private void enter() {
+            if (++nesting > MAX_DEPTH) throw error("expression too deep");
+        }
+
+        private void push() {
+            if (++depth > MAX_DEPTH) throw error("expression too deep");
+        }
+
+        private void pop(int count) {
+            depth -= count;
+        }
+
+        private void emit(int... values) {
+            if (size + values.length > code.length) {
+                int[] grown = new int[Math.max(code.length * 2, size + values.length)];
+                System.arraycopy(code, 0, grown, 0, size);
+                code = grown;
+            }
+            System.arraycopy(values, 0, code, size, values.length);
+            size += values.length;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in filter \"" + source + "\"");
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.vpnservice_learn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 抓包文件格式，{@link PcapWriter} 通过它编码文件头和每条记录
+ */
+public interface CaptureFormat {
+
+    /**
+     * 文件扩展名，不含点
+     */
+    String extension();
+
+    /**
+     * 每个新文件开头写入的内容
+     *
+     * @param snaplen 单个包最多保存的字节数，写入文件头供读取方参考
+     */
+    byte[] fileHeader(int snaplen);
+
+    /**
+     * 是否支持给记录附加注释，不支持时写线程不会生成注释
+     */
+    boolean supportsComments();
+
+    /**
+     * 一条记录编码后的最大长度
+     *
+     * @param capturedLength 保存的字节数
+     * @param commentLength  注释的字节数，没有注释时为0
+     */
+    int recordLength(int capturedLength, int commentLength);
+
+    /**
+     * 把一个IP包的前capturedLength字节编码成一条记录写入out，out剩余空间需不少于 {@link #recordLength(int, int)}
+     * 记录中同时保存截断后的长度和原始长度，读取方据此显示包被截断。
+     *
+     * @param timeNanos      从1970年开始的纳秒数
+     * @param capturedLength 保存的字节数，不超过originalLength
+     * @param originalLength 包的原始长度
+     * @param comment        UTF-8编码的注释，没有时为null
+     * @return 写入的字节数，无法识别的包不写入并返回0
+     */
+    int writeRecord(ByteBuffer out, long timeNanos, byte[] data, int offset,
+                    int capturedLength, int originalLength, byte[] comment);
+}
@@ -0,0 +1,140 @@
+package com.example.vpnservice_learn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 抓包采样，在过滤器之后、入队之前决定是否保留一个包
+ * 支持每N个包保留1个，以及每条流只保留前K个包（握手和请求头通常都在前几个包里）。
+ * 在引擎的读写线程上调用，不创建对象；计数之间的竞争只会让个别包多留或少留，不加锁。
+ */
+public abstract class CaptureSampler {
+
+    /**
+     * 保留所有包
+     */
+    public static final CaptureSampler ALL = new CaptureSampler() {
+        @Override
+        public boolean sample(byte[] data, int offset, int length) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "all";
+        }
+    };
+
+    public abstract boolean sample(byte[] data, int offset, int length);
+
+    /**
+     * 每n个包保留1个
+     */
+    public static CaptureSampler oneIn(int n) {
+        if (n <= 1) return ALL;
+        return new CaptureSampler() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public boolean sample(byte[] data, int offset, int length) {
+                return (counter.getAndIncrement() & Integer.MAX_VALUE) % n == 0;
+            }
+
+            @Override
+            public String toString() {
+                return "1/" + n;
+            }
+        };
+    }
+
+    /**
+     * 每条流只保留前k个包，两个方向合计
+     * 流的计数放在固定大小的表中，槽位被新流占用后旧流重新计数，内存占用固定
+     */
+    public static CaptureSampler firstPerFlow(int k) {
+        return new FirstPerFlow(k);
+    }
+
+    private static final class FirstPerFlow extends CaptureSampler {
+        private static final int SLOTS = 1 << 16;
+        // 计数占低24位，其余位存哈希的高位用来区分占用同一槽位的流
+        private static final int COUNT_BITS = 24;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+        private final int limit;
+        private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+        FirstPerFlow(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean sample(byte[] data, int offset, int length) {
+            long hash = flowHash(data, offset, length);
+            int index = (int) hash & (SLOTS - 1);
+            long tag = hash & ~COUNT_MASK;
+            long slot = slots.get(index);
+            long count = (slot & ~COUNT_MASK) == tag ? slot & COUNT_MASK : 0;
+            if (count >= limit) return false;
+            slots.lazySet(index, tag | (count + 1));
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "first " + limit + " per flow";
+        }
+    }
+
+    /**
+     * 五元组的哈希，两个方向的包得到同一个值；不是TCP/UDP时端口按0计算
+     */
+    static long flowHash(byte[] data, int offset, int length) {
+        if (length < 1) return 0;
+        int version = (data[offset] >> 4) & 0xF;
+        int addressLength;
+        int src;
+        int protocol;
+        int transport;
+        if (version == 4 && length >= 20) {
+            addressLength = 4;
+            src = offset + 12;
+            protocol = data[offset + 9] & 0xFF;
+            transport = offset + (data[offset] & 0xF) * 4;
+        } else if (version == 6 && length >= 40) {
+            addressLength = 16;
+            src = offset + 8;
+            protocol = data[offset + 6] & 0xFF;
+            transport = offset + 40;
+        } else {
+            return 0;
+        }
+        int srcPort = 0;
+        int dstPort = 0;
+        if ((protocol == PacketView.PROTOCOL_TCP || protocol == PacketView.PROTOCOL_UDP)
+                && transport + 4 <= offset + length) {
+            srcPort = ((data[transport] & 0xFF) << 8) | (data[transport + 1] & 0xFF);
+            dstPort = ((data[transport + 2] & 0xFF) << 8) | (data[transport + 3] & 0xFF);
+        }
+        long a = endpointHash(data, src, addressLength, srcPort);
+        long b = endpointHash(data, src + addressLength, addressLength, dstPort);
+        return mix(a + b + protocol);
+    }
+
+    private static long endpointHash(byte[] data, int offset, int length, int port) {
+        long hash = port;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + (data[offset + i] & 0xFF);
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.vpnservice_learn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 抓包文件的存放位置，本地目录或SMB共享
+ * 只负责按偏移写字节，追加位置由 {@link PcapWriter} 在本地维护，不需要每次写入前查询文件长度。
+ */
+public interface CaptureSink extends Closeable {
+
+    /**
+     * 打开或创建文件用于追加
+     */
+    Output open(String name) throws IOException;
+
+    /**
+     * 删除文件，环形缓冲轮换时删除最旧的文件
+     */
+    void delete(String name) throws IOException;
+
+    /**
+     * 一个打开的抓包文件
+     */
+    interface Output extends Closeable {
+
+        /**
+         * 打开时文件已有的长度，只在打开时查询一次
+         */
+        long size() throws IOException;
+
+        /**
+         * 把data剩余的字节全部写到position处
+         */
+        void write(ByteBuffer data, long position) throws IOException;
+    }
+}
@@ -0,0 +1,656 @@
+package com.example.vpnservice_learn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 隧道内的DNS缓存
+ * 分片线程截获发往53端口的标准查询：缓存命中时直接构造应答写回TUN，不建立UDP会话；
+ * 未命中时随机经一组共享的上游socket之一转发，同一问题在等待应答期间再次到达的查询合并到同一次上游查询。
+ * 各socket的本地端口由系统随机分配，应答必须从发出查询的socket收到，伪造应答需要同时猜中端口和ID。
+ * 应答按记录中最小的TTL缓存，命中时记录的TTL按已缓存的时间递减；条目数有上限，超出时淘汰最久未使用的。
+ * 缓存的键除问题外还包括查询的EDNS（是否携带OPT、DO位、UDP大小档位）和CD位，
+ * 应答超过客户端能接收的大小时只回复带TC标志的头部和问题，由客户端改用TCP。
+ * 无法解析或不适合处理的查询（多个问题、非标准查询等）返回false，仍按普通UDP转发。
+ */
+public class DnsCache {
+
+    public static final int PORT = 53;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_CD = 0x0010;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000F;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    // EDNS的OPT伪记录，TTL字段存放的是扩展标志，不能递减
+    private static final int TYPE_OPT = 41;
+    // 否定应答的缓存时间取自权威部分的SOA记录
+    private static final int TYPE_SOA = 6;
+    // SOA的RDATA至少是两个根名字加5个32位字段，最后一个是MINIMUM
+    private static final int MIN_SOA_RDATA = 2 + 20;
+    // 一条记录至少是根名字加类型、类、TTL和长度，用来判断头部声称的记录数是否放得下
+    private static final int MIN_RECORD_LENGTH = 1 + 10;
+    // OPT记录TTL字段低16位中的DO位
+    private static final int EDNS_FLAG_DO = 0x8000;
+    // 没有OPT记录的客户端只能接收512字节的UDP应答（RFC 1035）
+    private static final int MIN_UDP_SIZE = 512;
+    // edns()返回值中UDP大小以外的标志位
+    static final int EDNS_PRESENT = 1 << 16;
+    static final int EDNS_DO = 1 << 17;
+    private static final int UDP_SIZE_MASK = 0xFFFF;
+    // UDP大小按这些界限分档，同一档的客户端共用缓存，档内超出客户端大小的应答仍按TC回复
+    private static final int[] UDP_SIZE_CLASSES = {1232, 4096};
+    // 上游socket数量
+    private static final int UPSTREAM_SOCKETS = 4;
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    // 同时等待应答的上游查询数上限，超出时按普通UDP转发
+    private static final int MAX_PENDING = 4096;
+    // 缓存时间上限，避免异常的大TTL让记录长期不更新
+    private static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    // 等待上游应答的最长时间，超时后丢弃等待中的查询，由客户端自行重试
+    private static final long PENDING_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // 等待期间客户端重试时，距上次发送超过这么久才再次发往上游
+    private static final long RESEND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final Tunnel tunnel;
+    private final BytesParse bytesParse;
+    private volatile Upstream[] upstreams;
+    private NioEngine.EventLoop loop;
+
+    // 以下结构由各分片线程和事件循环线程共同访问，统一用this加锁
+    // 按访问顺序排列，最久未使用的在最前；键为转成小写的问题部分，见 {@link #cacheKey}
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Pending> pendingByQuestion = new HashMap<>();
+    // 按上游查询ID索引
+    private final Pending[] pendingById = new Pending[1 << 16];
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public DnsCache(Tunnel tunnel, BytesParse bytesParse) {
+        this.tunnel = tunnel;
+        this.bytesParse = bytesParse;
+    }
+
+    /**
+     * 打开各上游socket并注册到事件循环，失败时所有查询按普通UDP转发
+     */
+    public void start(NioEngine engine) throws IOException {
+        Upstream[] upstreams = new Upstream[UPSTREAM_SOCKETS];
+        try {
+            for (int i = 0; i < upstreams.length; i++) {
+                upstreams[i] = new Upstream(open());
+            }
+        } catch (IOException e) {
+            close(upstreams);
+            throw e;
+        }
+
+        this.upstreams = upstreams;
+        loop = engine.next();
+        loop.execute(() -> {
+            for (Upstream upstream : upstreams) {
+                try {
+                    loop.register(upstream.channel, SelectionKey.OP_READ, upstream);
+                } catch (IOException e) {
+                    upstream.onError(e);
+                    return;
+                }
+            }
+        });
+        loop.execute(this::sweep);
+    }
+
+    /**
+     * 绑定到系统分配的随机端口
+     */
+    private DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(null);
+        if (!tunnel.protect(channel.socket())) {
+            channel.close();
+            throw new IOException("VPN protect failed");
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private boolean isOpen() {
+        Upstream[] upstreams = this.upstreams;
+        return upstreams != null && upstreams[0].channel.isOpen();
+    }
+
+    /**
+     * 处理客户端发往53端口的包，在流所属的分片线程调用，各分片可以并发调用
+     *
+     * @return 已由缓存应答或已转发到上游时返回true，调用方不再建立UDP会话
+     */
+    public boolean handleQuery(PacketView packet) {
+        if (!isOpen()) return false;
+
+        byte[] data = packet.array();
+        int offset = packet.payloadOffset();
+        int length = packet.payloadLength();
+        int questionEnd = questionEnd(data, offset, length);
+        if (questionEnd < 0) return false;
+        int flags = readShort(data, offset + 2);
+        if ((flags & (FLAG_QR | OPCODE_MASK)) != 0) return false;
+        int edns = edns(data, offset, length, questionEnd);
+        if (edns < 0) return false;
+
+        String question = questionKey(data, offset, questionEnd);
+        String key = cacheKey(question, edns, flags);
+        Client client = new Client(
+                new InetSocketAddress(packet.dstAddress(), packet.dstPort()),
+                new InetSocketAddress(packet.srcAddress(), packet.srcPort()),
+                readShort(data, offset),
+                Arrays.copyOfRange(data, offset + HEADER_LENGTH, questionEnd),
+                edns & UDP_SIZE_MASK);
+
+        long now = System.nanoTime();
+        Entry entry;
+        Pending send = null;
+        synchronized (this) {
+            entry = cache.get(key);
+            if (entry != null && entry.expiresAt - now <= 0) {
+                cache.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                Pending pending = pendingByQuestion.get(key);
+                if (pending != null) {
+                    pending.clients.add(client);
+                    coalesced.incrementAndGet();
+                    if (now - pending.sentAt >= RESEND_NANOS) {
+                        pending.sentAt = now;
+                        send = pending;
+                    }
+                } else {
+                    int id = allocateId();
+                    if (id < 0) return false;
+                    byte[] query = Arrays.copyOfRange(data, offset, offset + length);
+                    writeShort(query, 0, id);
+                    Upstream[] upstreams = this.upstreams;
+                    Upstream upstream = upstreams[ThreadLocalRandom.current().nextInt(upstreams.length)];
+                    pending = new Pending(key, question, id, upstream, client.server, query, now);
+                    pending.clients.add(client);
+                    pendingByQuestion.put(key, pending);
+                    pendingById[id] = pending;
+                    misses.incrementAndGet();
+                    send = pending;
+                }
+            }
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+            reply(client, entry.response, entry.ttlOffsets, TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt));
+        } else if (send != null) {
+            try {
+                // 非阻塞发送，发送缓冲区满时丢弃，由客户端重试
+                send.upstream.channel.send(ByteBuffer.wrap(send.query), send.server);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 随机选取未被占用的上游查询ID，调用时需持有this锁
+     *
+     * @return 等待中的查询过多时返回-1
+     */
+    private int allocateId() {
+        if (pendingByQuestion.size() >= MAX_PENDING) return -1;
+        int id = ThreadLocalRandom.current().nextInt(pendingById.length);
+        while (pendingById[id] != null) {
+            id = (id + 1) & (pendingById.length - 1);
+        }
+        return id;
+    }
+
+    /**
+     * 上游应答：校验接收的socket、来源和问题后缓存，再按各自的ID应答所有等待中的客户端
+     */
+    private void onResponse(Upstream upstream, SocketAddress from, byte[] data, int length) {
+        int questionEnd = questionEnd(data, 0, length);
+        if (questionEnd < 0 || (readShort(data, 2) & FLAG_QR) == 0) return;
+        String question = questionKey(data, 0, questionEnd);
+
+        Pending pending;
+        String key;
+        synchronized (this) {
+            pending = pendingById[readShort(data, 0)];
+            if (pending == null || pending.upstream != upstream || !pending.server.equals(from)
+                    || !pending.question.equals(question)) {
+                return;
+            }
+            key = pending.key;
+            pendingById[pending.id] = null;
+            pendingByQuestion.remove(key);
+        }
+
+        byte[] response = Arrays.copyOf(data, length);
+        long now = System.nanoTime();
+        Entry entry = Entry.parse(response, questionEnd, now);
+        if (entry != null) {
+            synchronized (this) {
+                cache.put(key, entry);
+                Iterator<Entry> iterator = cache.values().iterator();
+                while (cache.size() > maxEntries) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+        for (Client client : pending.clients) {
+            reply(client, response, null, 0);
+        }
+    }
+
+    /**
+     * 以客户端查询的ID和问题（保留其大小写）构造应答写回TUN
+     * 应答超过客户端的UDP大小时只保留头部和问题并设置TC标志
+     *
+     * @param ttlOffsets     需要递减的TTL字段偏移，为null时不调整
+     * @param elapsedSeconds 应答已缓存的秒数
+     */
+    private void reply(Client client, byte[] response, int[] ttlOffsets, long elapsedSeconds) {
+        if (response.length > client.udpSize) {
+            byte[] payload = Arrays.copyOf(response, HEADER_LENGTH + client.question.length);
+            writeShort(payload, 0, client.id);
+            writeShort(payload, 2, readShort(response, 2) | FLAG_TC);
+            // 只保留问题，回答、权威和附加部分的记录数清零
+            Arrays.fill(payload, 6, HEADER_LENGTH, (byte) 0);
+            System.arraycopy(client.question, 0, payload, HEADER_LENGTH, client.question.length);
+            PacketTool.sendUdpPacket(client, payload);
+            return;
+        }
+        byte[] payload = response.clone();
+        writeShort(payload, 0, client.id);
+        System.arraycopy(client.question, 0, payload, HEADER_LENGTH, client.question.length);
+        if (ttlOffsets != null) {
+            for (int offset : ttlOffsets) {
+                long ttl = readInt(payload, offset) & 0xFFFFFFFFL;
+                writeInt(payload, offset, (int) Math.max(0, ttl - elapsedSeconds));
+            }
+        }
+        PacketTool.sendUdpPacket(client, payload);
+    }
+
+    /**
+     * 周期清理超时未应答的上游查询
+     */
+    private void sweep() {
+        if (!isOpen()) return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            Iterator<Pending> iterator = pendingByQuestion.values().iterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                if (now - pending.createdAt >= PENDING_TIMEOUT_NANOS) {
+                    iterator.remove();
+                    pendingById[pending.id] = null;
+                }
+            }
+        }
+        loop.schedule(this::sweep, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        Upstream[] upstreams = this.upstreams;
+        if (upstreams == null) return;
+        close(upstreams);
+    }
+
+    private static void close(Upstream[] upstreams) {
+        for (Upstream upstream : upstreams) {
+            if (upstream == null) continue;
+            try {
+                upstream.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 合并到进行中的上游查询的次数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 只有一个问题的报文中问题部分的结束位置，名字不允许压缩
+     *
+     * @return 无法解析时返回-1
+     */
+    static int questionEnd(byte[] data, int offset, int length) {
+        if (length < HEADER_LENGTH || readShort(data, offset + 4) != 1) return -1;
+        int end = offset + length;
+        int position = offset + HEADER_LENGTH;
+        while (position < end) {
+            int labelLength = data[position] & 0xFF;
+            if (labelLength == 0) {
+                // 名字结尾之后是类型和类
+                return position + 5 <= end ? position + 5 : -1;
+            }
+            if ((labelLength & 0xC0) != 0) return -1;
+            position += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    /**
+     * 解析查询附加部分中的OPT记录
+     *
+     * @return 低16位为客户端能接收的UDP应答大小，另有 {@link #EDNS_PRESENT}、{@link #EDNS_DO} 标志；
+     * 记录无法解析时返回-1
+     */
+    static int edns(byte[] data, int offset, int length, int questionEnd) {
+        int end = offset + length;
+        int records = readShort(data, offset + 6) + readShort(data, offset + 8) + readShort(data, offset + 10);
+        int position = questionEnd;
+        for (int i = 0; i < records; i++) {
+            position = skipName(data, position, end);
+            if (position < 0 || position + 10 > end) return -1;
+            if (readShort(data, position) == TYPE_OPT) {
+                // 类字段为UDP大小，小于512时按512处理（RFC 6891）
+                int size = Math.max(MIN_UDP_SIZE, readShort(data, position + 2));
+                boolean dnssecOk = (readShort(data, position + 6) & EDNS_FLAG_DO) != 0;
+                return size | EDNS_PRESENT | (dnssecOk ? EDNS_DO : 0);
+            }
+            position += 10 + readShort(data, position + 8);
+            if (position > end) return -1;
+        }
+        return MIN_UDP_SIZE;
+    }
+
+    /**
+     * 问题之后附加一个字符区分EDNS、DO、CD和UDP大小档位，这些不同的查询可能得到不同的应答
+     */
+    static String cacheKey(String question, int edns, int flags) {
+        int size = edns & UDP_SIZE_MASK;
+        int sizeClass = 0;
+        while (sizeClass < UDP_SIZE_CLASSES.length && size >= UDP_SIZE_CLASSES[sizeClass]) {
+            sizeClass++;
+        }
+        int variant = sizeClass << 3
+                | ((edns & EDNS_PRESENT) != 0 ? 1 : 0)
+                | ((edns & EDNS_DO) != 0 ? 2 : 0)
+                | ((flags & FLAG_CD) != 0 ? 4 : 0);
+        return question + (char) variant;
+    }
+
+    /**
+     * 问题部分作为缓存的键，名字按ASCII转成小写
+     */
+    static String questionKey(byte[] data, int offset, int questionEnd) {
+        int start = offset + HEADER_LENGTH;
+        // 最后4字节是类型和类，不转换
+        int nameEnd = questionEnd - 4;
+        char[] chars = new char[questionEnd - start];
+        int labelEnd = start;
+        for (int i = start; i < questionEnd; i++) {
+            int b = data[i] & 0xFF;
+            if (i == labelEnd) {
+                // 标签长度字节
+                labelEnd = i + 1 + b;
+            } else if (i < nameEnd && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            chars[i - start] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    private static int skipName(byte[] data, int position, int end) {
+        while (position < end) {
+            int labelLength = data[position] & 0xFF;
+            if (labelLength == 0) return position + 1;
+            if ((labelLength & 0xC0) == 0xC0) return position + 2 <= end ? position + 2 : -1;
+            if ((labelLength & 0xC0) != 0) return -1;
+            position += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        writeShort(data, offset, value >>> 16);
+        writeShort(data, offset + 2, value);
+    }
+
+    /**
+     * 缓存的应答
+     */
+    static final class Entry {
+        final byte[] response;
+        // 各条记录TTL字段在应答中的偏移
+        final int[] ttlOffsets;
+        final long storedAt;
+        final long expiresAt;
+
+        private Entry(byte[] response, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * 遍历所有记录，取最小的TTL作为缓存时间；否定应答（NXDOMAIN或没有答案）的缓存时间为
+         * 权威部分SOA记录的TTL与其MINIMUM字段中较小的一个（RFC 2308 第5节）
+         *
+         * @return 截断、出错、没有记录或TTL为0的应答不缓存，返回null；头部声称的记录数超出报文能容纳的数量时同样返回null
+         */
+        static Entry parse(byte[] response, int questionEnd, long now) {
+            int flags = readShort(response, 2);
+            int rcode = flags & RCODE_MASK;
+            if ((flags & FLAG_TC) != 0 || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+                return null;
+            }
+            int answers = readShort(response, 6);
+            int authorityEnd = answers + readShort(response, 8);
+            int records = authorityEnd + readShort(response, 10);
+            if (records > (response.length - questionEnd) / MIN_RECORD_LENGTH) return null;
+            boolean negative = rcode == RCODE_NXDOMAIN || answers == 0;
+            int[] offsets = new int[records];
+            int count = 0;
+            long minTtl = MAX_TTL_SECONDS;
+            int position = questionEnd;
+            for (int i = 0; i < records; i++) {
+                position = skipName(response, position, response.length);
+                if (position < 0 || position + 10 > response.length) return null;
+                int type = readShort(response, position);
+                long ttl = readInt(response, position + 4) & 0xFFFFFFFFL;
+                int rdataEnd = position + 10 + readShort(response, position + 8);
+                if (rdataEnd > response.length) return null;
+                if (type != TYPE_OPT) {
+                    offsets[count++] = position + 4;
+                    if (negative && type == TYPE_SOA && i >= answers && i < authorityEnd
+                            && rdataEnd - position - 10 >= MIN_SOA_RDATA) {
+                        ttl = Math.min(ttl, readInt(response, rdataEnd - 4) & 0xFFFFFFFFL);
+                    }
+                    // 最高位为1的TTL按0处理
+                    minTtl = Math.min(minTtl, ttl > Integer.MAX_VALUE ? 0 : ttl);
+                }
+                position = rdataEnd;
+            }
+            if (count == 0 || minTtl == 0) return null;
+            return new Entry(response, Arrays.copyOf(offsets, count), now,
+                    now + TimeUnit.SECONDS.toNanos(minTtl));
+        }
+    }
+
+    /**
+     * 进行中的上游查询，以及等待这次应答的客户端
+     */
+    private static final class Pending {
+        final String key;
+        final String question;
+        final int id;
+        final Upstream upstream;
+        final InetSocketAddress server;
+        final byte[] query;
+        final long createdAt;
+        long sentAt;
+        final List<Client> clients = new ArrayList<>(1);
+
+        Pending(String key, String question, int id, Upstream upstream, InetSocketAddress server,
+                byte[] query, long now) {
+            this.key = key;
+            this.question = question;
+            this.id = id;
+            this.upstream = upstream;
+            this.server = server;
+            this.query = query;
+            this.createdAt = this.sentAt = now;
+        }
+    }
+
+    /**
+     * 一个上游socket，在事件循环中接收应答
+     */
+    private final class Upstream implements NioEngine.Handler {
+        final DatagramChannel channel;
+
+        Upstream(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if (!key.isReadable()) return;
+            ByteBuffer buffer = loop.readBuffer();
+            SocketAddress from;
+            while ((from = channel.receive(buffer)) != null) {
+                onResponse(this, from, buffer.array(), buffer.position());
+                buffer.clear();
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * 发起查询的客户端，应答以它查询的服务器地址为源地址写回
+     */
+    private final class Client implements PacketTool.NetworkChannel {
+        final InetSocketAddress server;
+        final InetSocketAddress address;
+        final int id;
+        final byte[] question;
+        // 客户端能接收的UDP应答大小
+        final int udpSize;
+        private PacketTemplate template;
+
+        Client(InetSocketAddress server, InetSocketAddress address, int id, byte[] question, int udpSize) {
+            this.server = server;
+            this.address = address;
+            this.id = id;
+            this.question = question;
+            this.udpSize = udpSize;
+        }
+
+        @Override
+        public AtomicInteger getSequenceNumber() {
+            return null;
+        }
+
+        @Override
+        public AtomicInteger getAckNumber() {
+            return null;
+        }
+
+        /**
+         * 写队列空间不足时按UDP语义丢弃，由客户端重试，不占用留给TCP控制包的位置
+         */
+        @Override
+        public void sendToVpn(PacketBuffer packet) {
+            bytesParse.pushDatagram(packet);
+        }
+
+        @Override
+        public InetSocketAddress getSrcAddress() {
+            return server;
+        }
+
+        @Override
+        public InetSocketAddress getDstAddress() {
+            return address;
+        }
+
+        @Override
+        public PacketTemplate getTemplate() {
+            if (template == null) {
+                template = PacketTemplate.udp(server, address, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS);
+            }
+            return template;
+        }
+
+        @Override
+        public BufferPool getBufferPool() {
+            return bytesParse.getBufferPool();
+        }
+    }
+}
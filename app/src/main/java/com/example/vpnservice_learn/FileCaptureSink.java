@@ -0,0 +1,56 @@
+package com.example.vpnservice_learn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 抓包写到本地目录，使用FileChannel按偏移写入
+ */
+public class FileCaptureSink implements CaptureSink {
+
+    private final File directory;
+
+    public FileCaptureSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Output open(String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        FileChannel channel = FileChannel.open(new File(directory, name).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return new Output() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void write(ByteBuffer data, long position) throws IOException {
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(new File(directory, name).toPath());
+    }
+
+    @Override
+    public void close() {
+    }
+}
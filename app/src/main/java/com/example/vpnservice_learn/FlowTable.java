@@ -0,0 +1,261 @@
+package com.example.vpnservice_learn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * 以五元组为键的连接表
+ * 键打包为定长long数组（IPv4为2个long，IPv6为5个long），开放寻址线性探测存储，查找不分配任何对象。
+ * 查找走StampedLock乐观读，插入和删除持写锁，适合读线程高频查找、连接线程低频增删的场景。
+ *
+ * @param <V> 连接对象类型
+ */
+public class FlowTable<V> {
+
+    public static final int IPV4_KEY_LONGS = 2;
+    public static final int IPV6_KEY_LONGS = 5;
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_CAPACITY = 16;
+
+    private final int keyLongs;
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    // 以下字段只在持有写锁时修改
+    private int size;
+    private int tombstones;
+
+    public FlowTable(int keyLongs, int initialCapacity) {
+        this.keyLongs = keyLongs;
+        this.table = new Table(tableSize(initialCapacity * 2), keyLongs);
+    }
+
+    /**
+     * 把数据包的五元组写入key，key长度需为 {@link #keyLength(PacketView)}
+     * IPv4: [源地址<<32 | 目的地址, 源端口<<48 | 目的端口<<32 | 协议号]
+     * IPv6: [源地址高/低64位, 目的地址高/低64位, 端口和协议号]
+     */
+    public static void key(PacketView packet, long[] key) {
+        long ports = ((long) packet.srcPort() << 48) | ((long) packet.dstPort() << 32) | packet.protocol();
+        byte[] data = packet.array();
+        int offset = packet.offset();
+        if (packet.isIPv6()) {
+            key[0] = readLong(data, offset + 8);
+            key[1] = readLong(data, offset + 16);
+            key[2] = readLong(data, offset + 24);
+            key[3] = readLong(data, offset + 32);
+            key[4] = ports;
+        } else {
+            key[0] = ((long) packet.srcIpv4() << 32) | (packet.dstIpv4() & 0xFFFFFFFFL);
+            key[1] = ports;
+        }
+    }
+
+    public static int keyLength(PacketView packet) {
+        return packet.isIPv6() ? IPV6_KEY_LONGS : IPV4_KEY_LONGS;
+    }
+
+    public V get(long[] key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            V value = find(table, key);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(table, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 键不存在时插入
+     *
+     * @return 已存在的值，插入成功时返回null
+     */
+    public V putIfAbsent(long[] key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            V existing = find(table, key);
+            if (existing != null) {
+                return existing;
+            }
+            if ((size + tombstones + 1) * 2 > table.capacity) {
+                rehash();
+            }
+            Table t = table;
+            int index = slot(key, t.mask);
+            while (true) {
+                Object current = t.values[index];
+                if (current == null || current == TOMBSTONE) {
+                    if (current == TOMBSTONE) tombstones--;
+                    System.arraycopy(key, 0, t.keys, index * keyLongs, keyLongs);
+                    t.values[index] = value;
+                    size++;
+                    return null;
+                }
+                index = (index + 1) & t.mask;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 仅当键当前映射到value时删除，避免误删同一五元组上新建立的连接
+     */
+    public boolean remove(long[] key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int index = indexOf(t, key);
+            if (index < 0 || t.values[index] != value) {
+                return false;
+            }
+            t.values[index] = TOMBSTONE;
+            size--;
+            tombstones++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 遍历当前存活的连接，先在读锁内做快照，回调中可以安全地增删
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super V> action) {
+        List<V> snapshot;
+        long stamp = lock.readLock();
+        try {
+            snapshot = new ArrayList<>(size);
+            for (Object value : table.values) {
+                if (value != null && value != TOMBSTONE) {
+                    snapshot.add((V) value);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (V value : snapshot) {
+            action.accept(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V find(Table t, long[] key) {
+        int index = indexOf(t, key);
+        if (index < 0) return null;
+        Object value = t.values[index];
+        return value == TOMBSTONE ? null : (V) value;
+    }
+
+    /**
+     * 查找键所在槽位，乐观读期间表可能被并发修改，探测次数以容量为上限
+     */
+    private int indexOf(Table t, long[] key) {
+        int index = slot(key, t.mask);
+        for (int probes = 0; probes <= t.mask; probes++) {
+            Object value = t.values[index];
+            if (value == null) {
+                return -1;
+            }
+            if (value != TOMBSTONE && matches(t.keys, index * keyLongs, key)) {
+                return index;
+            }
+            index = (index + 1) & t.mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(long[] keys, int base, long[] key) {
+        for (int i = 0; i < keyLongs; i++) {
+            if (keys[base + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        Table old = table;
+        // 墓碑较多时按原容量重建即可
+        int capacity = (size + 1) * 4 > old.capacity ? old.capacity * 2 : old.capacity;
+        Table t = new Table(capacity, keyLongs);
+        long[] key = new long[keyLongs];
+        for (int i = 0; i < old.capacity; i++) {
+            Object value = old.values[i];
+            if (value == null || value == TOMBSTONE) continue;
+            System.arraycopy(old.keys, i * keyLongs, key, 0, keyLongs);
+            int index = slot(key, t.mask);
+            while (t.values[index] != null) {
+                index = (index + 1) & t.mask;
+            }
+            System.arraycopy(key, 0, t.keys, index * keyLongs, keyLongs);
+            t.values[index] = value;
+        }
+        tombstones = 0;
+        table = t;
+    }
+
+    private int slot(long[] key, int mask) {
+        return (int) hash(key) & mask;
+    }
+
+    /**
+     * 键的64位哈希，表内取低位作为下标，需要再按键分组时应取高位
+     */
+    public static long hash(long[] key) {
+        long h = 0;
+        for (long k : key) {
+            h = (h ^ k) * 0x9E3779B97F4A7C15L;
+        }
+        // 乘法只向高位扩散，只有端口不同的键（如同一DNS服务器的多个会话）差异全在高位，
+        // 需要再混合一次才能影响到作为下标的低位
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int tableSize(int capacity) {
+        int size = MIN_CAPACITY;
+        while (size < capacity) size <<= 1;
+        return size;
+    }
+
+    private static long readLong(byte[] data, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[index + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static final class Table {
+        final int capacity;
+        final int mask;
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity, int keyLongs) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.keys = new long[capacity * keyLongs];
+            this.values = new Object[capacity];
+        }
+    }
+}
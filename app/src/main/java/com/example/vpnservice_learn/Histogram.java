@@ -0,0 +1,111 @@
+package com.example.vpnservice_learn;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录非负长整数分布的直方图，与HdrHistogram相同的对数线性分桶
+ * 小于32的值每个值一个桶，更大的值按2的幂分段、每段再等分16个桶，相对误差不超过1/16，
+ * 覆盖整个long范围只需要960个桶。记录是一次数组下标计算加一次原子自增，不分配对象，可在任意线程调用。
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /**
+     * 复制当前的计数，复制期间的并发记录可能部分计入
+     */
+    public Summary summary() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Summary(copy);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (SUB_BUCKET_BITS - 1);
+        // 最高的5位在16到31之间
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶中最大的值
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long mantissa = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 某一时刻的分布
+     */
+    public static final class Summary {
+        private final long[] counts;
+        private final long count;
+
+        private Summary(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * 第p百分位所在桶的上界，没有记录时返回0
+         *
+         * @param percentile 0到100
+         */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return max();
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) return upperBound(i);
+            }
+            return 0;
+        }
+
+        public double mean() {
+            if (count == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) sum += (double) counts[i] * upperBound(i);
+            }
+            return sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "n=%d p50=%d p99=%d max=%d",
+                    count, percentile(50), percentile(99), max());
+        }
+    }
+}
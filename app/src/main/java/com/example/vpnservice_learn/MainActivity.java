@@ -105,6 +105,7 @@ public class MainActivity extends AppCompatActivity {
                     public void onReceive(Context context, Intent intent) {
                         String status = intent.getStringExtra("status");
                         String speed= intent.getStringExtra("speed");
+                        String upload = intent.getStringExtra("upload");
                         if (status != null) {
                             // 更新开关状态以反映VPN实际状态
                             @SuppressLint("UseSwitchCompatOrMaterialCode") Switch switchBtn = findViewById(R.id.vpnSwitch);
@@ -118,7 +119,7 @@ public class MainActivity extends AppCompatActivity {
                         }
 
                         if(speed!=null){
-                            speedText.setText("下载速度："+speed);
+                            speedText.setText("下载速度："+speed + (upload == null ? "" : "  上传速度：" + upload));
                         }
                     }
                 },
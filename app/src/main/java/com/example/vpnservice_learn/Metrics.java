@@ -0,0 +1,116 @@
+package com.example.vpnservice_learn;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 引擎的指标注册表
+ * 计数器使用LongAdder，多个线程同时累加时落在不同的槽上，不争用同一个缓存行；
+ * 仪表在取快照时才调用，用于队列长度、连接数这类已有的状态；直方图见 {@link Histogram}。
+ * 名字只在注册时查找一次，调用方在字段中保存返回的计数器或直方图，热路径上不查表。
+ * 界面和测试通过 {@link #snapshot()} 定期取值，两次快照相减即为区间内的速率。
+ */
+public class Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * 返回指定名字的计数器，不存在时创建
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * 注册仪表，同名的仪表会被替换
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 返回指定名字的直方图，不存在时创建
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().getAsLong());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        Map<String, Histogram.Summary> summaries = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            summaries.put(entry.getKey(), entry.getValue().summary());
+        }
+        return new Snapshot(System.nanoTime(), values, summaries);
+    }
+
+    /**
+     * 某一时刻所有指标的值，按名字排序
+     */
+    public static final class Snapshot {
+        private final long nanoTime;
+        private final Map<String, Long> values;
+        private final Map<String, Histogram.Summary> histograms;
+
+        private Snapshot(long nanoTime, Map<String, Long> values, Map<String, Histogram.Summary> histograms) {
+            this.nanoTime = nanoTime;
+            this.values = Collections.unmodifiableMap(values);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /**
+         * 取快照时的System.nanoTime()，用于计算两次快照之间的速率
+         */
+        public long nanoTime() {
+            return nanoTime;
+        }
+
+        /**
+         * 计数器或仪表的值，不存在时返回0
+         */
+        public long get(String name) {
+            Long value = values.get(name);
+            return value == null ? 0 : value;
+        }
+
+        public Histogram.Summary histogram(String name) {
+            return histograms.get(name);
+        }
+
+        public Map<String, Long> values() {
+            return values;
+        }
+
+        public Map<String, Histogram.Summary> histograms() {
+            return histograms;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Histogram.Summary> entry : histograms.entrySet()) {
+                text.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.vpnservice_learn;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 有界的多生产者单消费者环形队列
+ * 生产者用CAS领取序号后写入槽位，消费者取出后清空槽位再推进序号，入队出队都不加锁、不分配节点。
+ * 生产者和消费者的序号放在同一个数组中相隔128字节的位置，互不在同一缓存行上。
+ * 入队前先在占用计数上预留位置，计数只在消费者清空槽位后减少，预留成功后入队一定成功；
+ * 生产者可以在产生数据之前用 {@link #tryReserve} 预留，确保产生的数据都能放入。
+ * 队列满时 {@link #offer} 返回false，由调用方决定丢弃还是暂停生产；
+ * 消费者等待新元素的方式由 {@link WaitStrategy} 决定。
+ */
+public final class MpscRingBuffer<E> {
+
+    private static final int PAD = 16;
+    private static final int TAIL = PAD;
+    private static final int HEAD = PAD * 2;
+    // 已入队和已预留的位置数，不超过容量
+    private static final int COMMITTED = PAD * 3;
+    private static final int SPIN_ROUNDS = 128;
+    private static final int YIELD_ROUNDS = 64;
+    // 挂起的最长时间，作为漏掉唤醒时的兜底
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLongArray sequences = new AtomicLongArray(PAD * 4);
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+    private volatile WaitStrategy waitStrategy;
+    // 挂起等待的消费者线程，生产者入队后据此唤醒
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity 容量，向上取整到2的幂
+     */
+    public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 任意线程调用
+     *
+     * @return 队列已满时返回false，元素没有入队
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        if (!tryReserve(1, 0)) {
+            return false;
+        }
+        offerReserved(e);
+        return true;
+    }
+
+    /**
+     * 一次放入items的前count个元素，只唤醒一次消费者
+     * 同一批元素在队列中相邻，不会与其他生产者的元素交错
+     *
+     * @return 剩余空间不足count时返回false，所有元素都没有入队
+     */
+    public boolean offer(E[] items, int count) {
+        checkNotNull(items, count);
+        if (!tryReserve(count, 0)) {
+            return false;
+        }
+        offerReserved(items, count);
+        return true;
+    }
+
+    /**
+     * 预留count个位置，之后用 {@link #offerReserved} 入队一定成功，用不完的位置用 {@link #cancelReserved} 归还
+     *
+     * @param keepFree 预留后至少还要剩余的位置数，留给不能等待的生产者
+     * @return 空间不足时返回false，没有预留任何位置
+     */
+    public boolean tryReserve(int count, int keepFree) {
+        long committed;
+        do {
+            committed = sequences.get(COMMITTED);
+            if (committed + count > capacity - keepFree) {
+                return false;
+            }
+        } while (!sequences.compareAndSet(COMMITTED, committed, committed + count));
+        return true;
+    }
+
+    /**
+     * 归还预留后没有使用的位置
+     */
+    public void cancelReserved(int count) {
+        sequences.addAndGet(COMMITTED, -count);
+    }
+
+    /**
+     * 使用一个已预留的位置入队
+     */
+    public void offerReserved(E e) {
+        if (e == null) throw new NullPointerException();
+        long tail = sequences.getAndIncrement(TAIL);
+        slots.lazySet((int) tail & mask, e);
+        wakeConsumer();
+    }
+
+    /**
+     * 使用count个已预留的位置放入items的前count个元素，这一批在队列中相邻
+     */
+    public void offerReserved(E[] items, int count) {
+        checkNotNull(items, count);
+        long tail = sequences.getAndAdd(TAIL, count);
+        for (int i = 0; i < count; i++) {
+            slots.lazySet((int) (tail + i) & mask, items[i]);
+        }
+        wakeConsumer();
+    }
+
+    private static void checkNotNull(Object[] items, int count) {
+        for (int i = 0; i < count; i++) {
+            // 领取序号后不能再失败，否则消费者会停在未写入的槽位上
+            if (items[i] == null) throw new NullPointerException();
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * 只能由消费者线程调用
+     *
+     * @return 队列为空，或生产者已领取序号但尚未写入时返回null
+     */
+    public E poll() {
+        long head = sequences.get(HEAD);
+        int index = (int) head & mask;
+        E e = slots.get(index);
+        if (e == null) return null;
+        slots.lazySet(index, null);
+        sequences.lazySet(HEAD, head + 1);
+        // 槽位清空之后才释放位置，生产者领取到这个槽位时它一定已为空
+        sequences.decrementAndGet(COMMITTED);
+        return e;
+    }
+
+    /**
+     * 等待直到取到元素，只能由消费者线程调用
+     */
+    public E take() throws InterruptedException {
+        return await(Long.MAX_VALUE);
+    }
+
+    /**
+     * 最多等待timeout，只能由消费者线程调用
+     *
+     * @return 超时时返回null
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * 取出最多max个元素放入to，不等待，只能由消费者线程调用
+     *
+     * @return 取出的个数
+     */
+    public int drainTo(Collection<? super E> to, int max) {
+        int count = 0;
+        E e;
+        while (count < max && (e = poll()) != null) {
+            to.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param deadline System.nanoTime()的截止值，Long.MAX_VALUE表示不限
+     */
+    private E await(long deadline) throws InterruptedException {
+        WaitStrategy strategy = waitStrategy;
+        E e;
+        for (int round = 0; (e = poll()) == null; round++) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            if (round < SPIN_ROUNDS || strategy == WaitStrategy.SPIN) {
+                continue;
+            }
+            if (round < SPIN_ROUNDS + YIELD_ROUNDS || strategy == WaitStrategy.YIELD) {
+                Thread.yield();
+                continue;
+            }
+            // 先登记再复查，与生产者的领取序号、读取waiter配合，不会漏掉唤醒
+            waiter = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            }
+            waiter = null;
+        }
+        return e;
+    }
+
+    /**
+     * 生产者已领取的序号都已被取走
+     */
+    public boolean isEmpty() {
+        return sequences.get(TAIL) == sequences.get(HEAD);
+    }
+
+    public int size() {
+        long head = sequences.get(HEAD);
+        long tail = sequences.get(TAIL);
+        return (int) Math.max(0, Math.min(capacity, tail - head));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 剩余可入队或预留的个数，多个生产者并发时只是近似值
+     */
+    public int remainingCapacity() {
+        return (int) (capacity - sequences.get(COMMITTED));
+    }
+
+    /**
+     * 替换等待方式，消费者下一次开始等待时生效
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+}
@@ -2,17 +2,22 @@ package com.example.vpnservice_learn;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 import android.net.VpnService;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -20,9 +25,21 @@ import java.util.concurrent.atomic.AtomicLong;
  * 负责建立和管理VPN连接
  */
 public class MyVpnService extends VpnService {
+    // 抓包上传的SMB共享
+    private static final String SMB_SERVER = "192.168.10.195";
+    private static final String SMB_SHARE = "share";
+    private static final String SMB_USER = "test";
+    private static final String SMB_PASS = "123";
+    // 抓包环形缓冲：保留的文件数，单个文件的大小和时长上限
+    private static final int CAPTURE_RING_FILES = 8;
+    private static final long CAPTURE_FILE_BYTES = 64L * 1024 * 1024;
+    private static final long CAPTURE_FILE_MINUTES = 30;
+
     // VPN隧道接口的文件描述符，用于管理VPN连接
     public ParcelFileDescriptor descriptor;
     private Thread thread;
+    private BytesParse bytesParse;
+    private PcapWriter capture;
 
     public final AtomicLong downloadNum = new AtomicLong();
     private Timer timer;
@@ -44,6 +61,9 @@ public class MyVpnService extends VpnService {
             case "stop":
                 stopVpn();  // 停止VPN连接
                 break;
+            case "filter":
+                setCaptureFilter(intent.getStringExtra("filter")); // 运行中替换抓包过滤器
+                break;
         }
         return START_STICKY;
     }
@@ -58,8 +78,10 @@ public class MyVpnService extends VpnService {
                 System.runFinalization();
             }
 
-            if (thread != null) {
-                thread.interrupt();
+            if (bytesParse != null) {
+                // 中断读写线程，读线程退出时关闭事件循环和抓包
+                bytesParse.close();
+                bytesParse = null;
             }
 
             if (timer != null) {
@@ -72,6 +94,7 @@ public class MyVpnService extends VpnService {
             // 关闭时的IO异常通常可以忽略
         } finally {
             descriptor = null; // 释放引用
+            capture = null;
             sendStatusUpdate("stop"); // 通知UI已停止
             stopSelf(); // 停止服务自身
             onDestroy();
@@ -89,6 +112,7 @@ public class MyVpnService extends VpnService {
         try {
             // 使用Builder模式配置VPN参数
             descriptor = new Builder()
+                    .setMtu(BufferPool.MTU)             // 每个包不超过一个池化缓冲区
                     .addAddress("10.0.0.2", 32)       // 设置虚拟IP地址
                     .addRoute("0.0.0.0", 0)            // 拦截所有IPv4流量
                     .addDnsServer("114.114.114.114")    // 设置DNS服务器
@@ -103,13 +127,56 @@ public class MyVpnService extends VpnService {
         }
 
         //解析数据包
-        BytesParse bytesParse = new BytesParse(this);
+        VpnTunnel tunnel = new VpnTunnel(this, descriptor);
+        CaptureSink sink = new SmbCaptureSink(tunnel, SMB_SERVER, SMB_SHARE, SMB_USER, SMB_PASS);
+        capture = new PcapWriter(sink);
+        capture.setFormat(new PcapngFormat("tun0"));
+        capture.setRing(CAPTURE_RING_FILES, CAPTURE_FILE_BYTES, CAPTURE_FILE_MINUTES, TimeUnit.MINUTES);
+        capture.setFlowLabeler(this::appOf);
+        bytesParse = new BytesParse(tunnel, capture, downloadNum);
+        Metrics metrics = bytesParse.getMetrics();
+        metrics.gauge("capture.dropped", capture::getDropped);
+        metrics.gauge("capture.filtered", capture::getFiltered);
+        metrics.gauge("capture.written.bytes", capture::getWritten);
         thread = new Thread(bytesParse);
         thread.start();
 
         startTimerTask();
     }
 
+    /**
+     * 替换抓包过滤器，表达式为空时抓取所有包，语法错误时保留原过滤器
+     * 例如 adb shell am startservice -n 包名/.MyVpnService --es status filter --es filter "tcp port 443"
+     */
+    private synchronized void setCaptureFilter(String expression) {
+        if (capture == null) return;
+        try {
+            capture.setFilter(CaptureFilter.compile(expression));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 流所属应用的包名，写入抓包文件的流注释；Android 10以下无法查询
+     * 流的第一个包可能是任一方向，先按客户端发出的方向查询，查不到再反过来
+     */
+    private String appOf(PacketView packet) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return null;
+        try {
+            ConnectivityManager manager = getSystemService(ConnectivityManager.class);
+            InetSocketAddress src = new InetSocketAddress(packet.srcAddress(), packet.srcPort());
+            InetSocketAddress dst = new InetSocketAddress(packet.dstAddress(), packet.dstPort());
+            int uid = manager.getConnectionOwnerUid(packet.protocol(), src, dst);
+            if (uid == Process.INVALID_UID) {
+                uid = manager.getConnectionOwnerUid(packet.protocol(), dst, src);
+            }
+            return uid == Process.INVALID_UID ? null : getPackageManager().getNameForUid(uid);
+        } catch (SecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * 发送状态更新广播
      *
@@ -123,21 +190,28 @@ public class MyVpnService extends VpnService {
 
     public void startTimerTask() {
         timer = new Timer();
+        Metrics metrics = bytesParse.getMetrics();
 
         timer.schedule(new TimerTask() {
 
             private long oldNum = downloadNum.get();
+            // 客户端发往隧道的字节数，即上传方向
+            private long oldUpload = metrics.snapshot().get("tun.in.bytes");
 
             @Override
             public void run() {
                 // 在子线程执行，需切换到主线程更新 UI
                 uiHandler.post(() -> {
                     long now = downloadNum.get();
+                    long upload = metrics.snapshot().get("tun.in.bytes");
                     String speed = formatNetworkSpeed(now - oldNum);
+                    String uploadSpeed = formatNetworkSpeed(upload - oldUpload);
                     oldNum = now;
+                    oldUpload = upload;
                     LocalBroadcastManager.getInstance(MyVpnService.this)
                             .sendBroadcast(new Intent("com.example.UPDATE_TEXT")
-                                    .putExtra("speed", speed));
+                                    .putExtra("speed", speed)
+                                    .putExtra("upload", uploadSpeed));
                 });
             }
         }, 0, 1000); // 延迟 0ms，间隔 1000ms（1秒）
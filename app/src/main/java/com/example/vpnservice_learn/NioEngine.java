@@ -0,0 +1,330 @@
+package com.example.vpnservice_learn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于Selector的事件循环引擎，也是所有连接共用的调度器
+ * 固定数量的线程各持有一个Selector，所有连接的上游通道以非阻塞方式注册到其中一个循环上，
+ * 连接数量不再影响线程数量，连接风暴也不会创建新线程。
+ * 每个循环对绑定在其上的连接就是一个串行执行器：同一连接的回调和任务都在同一个线程中按提交顺序执行，
+ * 不同连接分布在各个循环上并行执行。关闭后不再接受其他线程提交的任务，并统计被拒绝的次数。
+ */
+public class NioEngine implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioEngine(int threads) {
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("NioEngine-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * 轮询选出一个事件循环，新连接在其整个生命周期内都使用它
+     */
+    public EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+    /**
+     * 等待所有循环线程退出
+     *
+     * @return 超时前全部退出时返回true
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (EventLoop loop : loops) {
+            if (!loop.terminated.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int threads() {
+        return loops.length;
+    }
+
+    /**
+     * 所有循环中等待执行的任务数
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (EventLoop loop : loops) {
+            depth += loop.pendingTasks.get();
+        }
+        return depth;
+    }
+
+    /**
+     * 关闭后被拒绝的任务数
+     */
+    public long rejected() {
+        long rejected = 0;
+        for (EventLoop loop : loops) {
+            rejected += loop.rejected.get();
+        }
+        return rejected;
+    }
+
+    /**
+     * 启动以来循环线程处理事件、任务和定时任务的时间占运行时间的比例，0到1
+     */
+    public double utilization() {
+        long busy = 0;
+        long elapsed = 0;
+        for (EventLoop loop : loops) {
+            if (loop.startedAt == 0) continue;
+            busy += loop.busyNanos;
+            elapsed += System.nanoTime() - loop.startedAt;
+        }
+        return elapsed == 0 ? 0 : (double) busy / elapsed;
+    }
+
+    /**
+     * 通道事件回调，所有方法都在所属事件循环线程中调用
+     */
+    public interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * onReady抛出异常时回调，用于释放连接
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * 定时任务句柄
+     */
+    public static final class Timeout implements Comparable<Timeout> {
+        private final long deadline;
+        private final Runnable task;
+        private volatile boolean cancelled;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timeout o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    public static final class EventLoop implements Runnable, Closeable {
+        private final String name;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingTasks = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        // 只在循环线程中访问
+        private final PriorityQueue<Timeout> timeouts = new PriorityQueue<>();
+        // 循环内所有连接共享的读缓冲区，读出后立即构造成包，不跨回调保留
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private Selector selector;
+        private Thread thread;
+        private volatile boolean running;
+        private volatile boolean closed;
+        // 运行开始的时间和累计的忙碌时间，只由循环线程写入
+        private volatile long startedAt;
+        private volatile long busyNanos;
+
+        private EventLoop(String name) {
+            this.name = name;
+        }
+
+        private void start() throws IOException {
+            selector = Selector.open();
+            startedAt = System.nanoTime();
+            running = true;
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        public boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * 在循环线程中执行任务，任务按提交顺序执行
+         * 循环关闭后只接受循环线程自身提交的任务，它们在退出前执行完，用于释放连接持有的缓冲区
+         *
+         * @return 循环已关闭、任务被拒绝时返回false
+         */
+        public boolean execute(Runnable task) {
+            boolean inLoop = inLoop();
+            if (closed && !inLoop) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            pendingTasks.incrementAndGet();
+            tasks.offer(task);
+            if (!inLoop) {
+                selector.wakeup();
+            }
+            return true;
+        }
+
+        /**
+         * 注册通道，只能在循环线程中调用
+         */
+        public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+            return channel.register(selector, ops, handler);
+        }
+
+        /**
+         * 延迟执行任务，任务在循环线程中执行
+         */
+        public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+            Timeout timeout = new Timeout(System.nanoTime() + unit.toNanos(delay), task);
+            if (inLoop()) {
+                timeouts.offer(timeout);
+            } else {
+                execute(() -> timeouts.offer(timeout));
+            }
+            return timeout;
+        }
+
+        /**
+         * 循环共享的读缓冲区，只能在循环线程中使用
+         */
+        public ByteBuffer readBuffer() {
+            readBuffer.clear();
+            return readBuffer;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long wait = nextTimeoutMillis();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.select();
+                    }
+                    long start = System.nanoTime();
+                    processSelectedKeys();
+                    runTasks();
+                    runTimeouts();
+                    busyNanos += System.nanoTime() - start;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            // 通道已关闭，剩余任务执行时会失败并释放各自持有的缓冲区
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            terminated.countDown();
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onReady(key);
+                    }
+                } catch (Exception e) {
+                    handler.onError(e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                pendingTasks.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runTimeouts() {
+            long now = System.nanoTime();
+            Timeout timeout;
+            while ((timeout = timeouts.peek()) != null && timeout.deadline - now <= 0) {
+                timeouts.poll();
+                if (timeout.cancelled) continue;
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 距离最近一个定时任务的毫秒数，0表示没有定时任务
+         */
+        private long nextTimeoutMillis() {
+            Timeout timeout = timeouts.peek();
+            if (timeout == null) return 0;
+            long millis = TimeUnit.NANOSECONDS.toMillis(timeout.deadline - System.nanoTime());
+            return Math.max(1, millis);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            running = false;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+}
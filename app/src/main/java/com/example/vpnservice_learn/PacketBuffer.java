@@ -0,0 +1,99 @@
+package com.example.vpnservice_learn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带引用计数的包缓冲区
+ * 从 {@link BufferPool} 取出时引用计数为1，每个需要跨线程持有它的环节先 {@link #retain()}，
+ * 用完后 {@link #release()}，计数归零时自动归还缓冲池。
+ * {@link #nioBuffer(int, int)} 返回的是缓存的同一个ByteBuffer，只供负责转发该包的一方使用，
+ * 抓包等旁路只读取 {@link #array()}。
+ */
+public final class PacketBuffer {
+
+    private final byte[] array;
+    private final ByteBuffer nioBuffer;
+    private final BufferPool pool;
+    private final AtomicInteger refCnt = new AtomicInteger();
+    private int length;
+    // 抓包入队时间
+    private long timestamp;
+    // 开启泄漏追踪时记录申请位置
+    Throwable acquiredAt;
+
+    PacketBuffer(int capacity, BufferPool pool) {
+        this.array = new byte[capacity];
+        this.nioBuffer = ByteBuffer.wrap(array);
+        this.pool = pool;
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public PacketBuffer setLength(int length) {
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * 指向 [offset, offset + length) 的缓存ByteBuffer
+     */
+    public ByteBuffer nioBuffer(int offset, int length) {
+        nioBuffer.limit(offset + length).position(offset);
+        return nioBuffer;
+    }
+
+    /**
+     * 清空后的缓存ByteBuffer，用于整块读入
+     */
+    public ByteBuffer readBuffer() {
+        nioBuffer.clear();
+        return nioBuffer;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public PacketBuffer retain() {
+        if (refCnt.getAndIncrement() <= 0) {
+            refCnt.getAndDecrement();
+            throw new IllegalStateException("buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = refCnt.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(this);
+        } else if (count < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("buffer released too many times");
+        }
+    }
+
+    int refCnt() {
+        return refCnt.get();
+    }
+
+    void reset() {
+        refCnt.set(1);
+        length = 0;
+        timestamp = 0;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.vpnservice_learn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 抓包旁路，引擎把收发的每个包交给它保存
+ * 实现需要自行retain保留的包，写完后release
+ */
+public interface PacketCapture extends Closeable {
+
+    /**
+     * 不抓包
+     */
+    PacketCapture NONE = new PacketCapture() {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void addQueue(PacketBuffer packet) {
+        }
+
+        @Override
+        public void addQueue(List<PacketBuffer> packets) {
+        }
+
+        @Override
+        public int queueDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    void start() throws IOException;
+
+    void addQueue(PacketBuffer packet);
+
+    /**
+     * 批量入队，同一批使用同一个时间戳
+     */
+    void addQueue(List<PacketBuffer> packets);
+
+    /**
+     * 等待写出的包数
+     */
+    int queueDepth();
+
+    @Override
+    void close();
+}
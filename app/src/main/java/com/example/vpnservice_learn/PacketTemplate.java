@@ -0,0 +1,268 @@
+package com.example.vpnservice_learn;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+
+/**
+ * 单条连接的IP+TCP/UDP头部模板
+ * 建立连接时按地址和端口预先生成一次头部以及校验和中不变部分的累加值，
+ * 之后每个包只需拷贝模板、改写序号/确认号/标志位/长度/标识并增量计算校验和，
+ * 直接写入调用方提供的缓冲区。
+ */
+public final class PacketTemplate {
+
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private final byte[] header;
+    private final boolean ipv6;
+    private final int protocol;
+    private final int ipHeaderLength;
+    // IPv4头部除总长度、标识、校验和以外各字的累加
+    private final int ipChecksumBase;
+    // 伪首部地址、协议号以及端口的累加
+    private final int transportChecksumBase;
+
+    private PacketTemplate(InetSocketAddress src, InetSocketAddress dst, int protocol, byte ttl, byte tos) {
+        this.ipv6 = dst.getAddress() instanceof Inet6Address;
+        this.protocol = protocol;
+        this.ipHeaderLength = ipv6 ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH;
+        int transportLength = protocol == PacketView.PROTOCOL_TCP ? TCP_HEADER_LENGTH : UDP_HEADER_LENGTH;
+        this.header = new byte[ipHeaderLength + transportLength];
+
+        byte[] srcAddr = src.getAddress().getAddress();
+        byte[] dstAddr = dst.getAddress().getAddress();
+        if (ipv6) {
+            header[0] = (byte) (0x60 | ((tos >> 4) & 0xF));
+            header[1] = (byte) ((tos & 0xF) << 4);
+            header[6] = (byte) protocol;
+            header[7] = ttl;
+            System.arraycopy(srcAddr, 0, header, 8, 16);
+            System.arraycopy(dstAddr, 0, header, 24, 16);
+            ipChecksumBase = 0;
+        } else {
+            header[0] = 0x45;
+            header[1] = tos;
+            header[8] = ttl;
+            header[9] = (byte) protocol;
+            System.arraycopy(srcAddr, 0, header, 12, 4);
+            System.arraycopy(dstAddr, 0, header, 16, 4);
+            ipChecksumBase = sum(header, 0, IPV4_HEADER_LENGTH, 0);
+        }
+
+        int t = ipHeaderLength;
+        writeShort(header, t, src.getPort());
+        writeShort(header, t + 2, dst.getPort());
+        if (protocol == PacketView.PROTOCOL_TCP) {
+            // 不带选项时数据偏移为5个字，带选项时写包时改写
+            header[t + 12] = (byte) ((TCP_HEADER_LENGTH / 4) << 4);
+        }
+
+        int base = sum(srcAddr, 0, srcAddr.length, 0);
+        base = sum(dstAddr, 0, dstAddr.length, base);
+        base += protocol;
+        base += src.getPort() + dst.getPort();
+        this.transportChecksumBase = base;
+    }
+
+    public static PacketTemplate tcp(InetSocketAddress src, InetSocketAddress dst, byte ttl, byte tos) {
+        return new PacketTemplate(src, dst, PacketView.PROTOCOL_TCP, ttl, tos);
+    }
+
+    public static PacketTemplate udp(InetSocketAddress src, InetSocketAddress dst, byte ttl, byte tos) {
+        return new PacketTemplate(src, dst, PacketView.PROTOCOL_UDP, ttl, tos);
+    }
+
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * 头部总长度（IP头 + 传输层头）
+     */
+    public int headerLength() {
+        return header.length;
+    }
+
+    /**
+     * 写入一个不带选项的TCP包
+     *
+     * @param out    目标缓冲区，需要至少 {@link #headerLength()} + length 字节的空间
+     * @param flags  TCP标志位，取值见 {@link PacketView#TCP_SYN} 等
+     * @return 写入的总字节数
+     */
+    public int writeTcp(byte[] out, int outOffset, int id, int seq, int ack, int flags, int window,
+                        byte[] payload, int offset, int length) {
+        return writeTcp(out, outOffset, id, seq, ack, flags, window, 0, payload, offset, length);
+    }
+
+    /**
+     * 写入一个TCP包，选项由调用方预先写在 out[outOffset + {@link #headerLength()}] 处
+     *
+     * @param out           目标缓冲区，需要至少 {@link #headerLength()} + optionsLength + length 字节的空间
+     * @param flags         TCP标志位，取值见 {@link PacketView#TCP_SYN} 等
+     * @param optionsLength 选项长度，需为4的倍数
+     * @return 写入的总字节数
+     */
+    public int writeTcp(byte[] out, int outOffset, int id, int seq, int ack, int flags, int window,
+                        int optionsLength, byte[] payload, int offset, int length) {
+        int headerLength = header.length + optionsLength;
+        int total = headerLength + length;
+        System.arraycopy(header, 0, out, outOffset, header.length);
+        if (length > 0) {
+            System.arraycopy(payload, offset, out, outOffset + headerLength, length);
+        }
+        writeIpHeader(out, outOffset, total, id);
+
+        int t = outOffset + ipHeaderLength;
+        int tcpHeaderLength = TCP_HEADER_LENGTH + optionsLength;
+        writeInt(out, t + 4, seq);
+        writeInt(out, t + 8, ack);
+        out[t + 12] = (byte) ((tcpHeaderLength / 4) << 4);
+        out[t + 13] = (byte) flags;
+        writeShort(out, t + 14, window);
+
+        int tcpLength = tcpHeaderLength + length;
+        int sum = transportChecksumBase + tcpLength
+                + (seq >>> 16) + (seq & 0xFFFF)
+                + (ack >>> 16) + (ack & 0xFFFF)
+                + (((tcpHeaderLength / 4) << 12) | (flags & 0xFF))
+                + (window & 0xFFFF);
+        sum = sum(out, t + TCP_HEADER_LENGTH, optionsLength + length, sum);
+        writeShort(out, t + 16, ~fold(sum));
+        return total;
+    }
+
+    /**
+     * 为一批负载已就位、序号连续的数据分段写入头部
+     * 确认号、标志位、窗口和选项在一批中相同，校验和中这部分只累加一次，每个分段只再累加序号、长度和负载
+     *
+     * @param packets       负载已写在各缓冲区 {@link #headerLength()} + optionsLength 处，
+     *                      选项只需写在第一个缓冲区中，其余分段从中复制
+     * @param firstId       第一个分段的IP标识，之后依次加1
+     * @param segmentSize   除最后一个分段外每个分段的负载长度
+     * @param length        这一批负载的总长度
+     */
+    public void writeTcpSegments(PacketBuffer[] packets, int count, int firstId, int seq, int ack, int flags,
+                                 int window, int optionsLength, int segmentSize, int length) {
+        int headerLength = header.length + optionsLength;
+        int tcpHeaderLength = TCP_HEADER_LENGTH + optionsLength;
+        byte[] first = packets[0].array();
+        int base = transportChecksumBase
+                + (ack >>> 16) + (ack & 0xFFFF)
+                + (((tcpHeaderLength / 4) << 12) | (flags & 0xFF))
+                + (window & 0xFFFF);
+        base = sum(first, header.length, optionsLength, base);
+
+        int remaining = length;
+        for (int i = 0; i < count; i++) {
+            byte[] out = packets[i].array();
+            int size = Math.min(segmentSize, remaining);
+            System.arraycopy(header, 0, out, 0, header.length);
+            if (i > 0 && optionsLength > 0) {
+                System.arraycopy(first, header.length, out, header.length, optionsLength);
+            }
+            int total = headerLength + size;
+            writeIpHeader(out, 0, total, firstId + i);
+
+            int t = ipHeaderLength;
+            writeInt(out, t + 4, seq);
+            writeInt(out, t + 8, ack);
+            out[t + 12] = (byte) ((tcpHeaderLength / 4) << 4);
+            out[t + 13] = (byte) flags;
+            writeShort(out, t + 14, window);
+            int sum = base + tcpHeaderLength + size + (seq >>> 16) + (seq & 0xFFFF);
+            sum = sum(out, headerLength, size, sum);
+            writeShort(out, t + 16, ~fold(sum));
+
+            packets[i].setLength(total);
+            seq += size;
+            remaining -= size;
+        }
+    }
+
+    /**
+     * 写入一个UDP包
+     *
+     * @return 写入的总字节数
+     */
+    public int writeUdp(byte[] out, int outOffset, int id, byte[] payload, int offset, int length) {
+        int total = header.length + length;
+        System.arraycopy(header, 0, out, outOffset, header.length);
+        if (length > 0) {
+            System.arraycopy(payload, offset, out, outOffset + header.length, length);
+        }
+        writeIpHeader(out, outOffset, total, id);
+
+        int t = outOffset + ipHeaderLength;
+        int udpLength = UDP_HEADER_LENGTH + length;
+        writeShort(out, t + 4, udpLength);
+
+        // UDP长度在伪首部和UDP头部中各出现一次
+        int sum = transportChecksumBase + udpLength + udpLength;
+        sum = sum(out, t + UDP_HEADER_LENGTH, length, sum);
+        int checksum = ~fold(sum) & 0xFFFF;
+        // 校验和为0表示未计算，按RFC 768改为全1
+        writeShort(out, t + 6, checksum == 0 ? 0xFFFF : checksum);
+        return total;
+    }
+
+    private void writeIpHeader(byte[] out, int outOffset, int total, int id) {
+        if (ipv6) {
+            writeShort(out, outOffset + 4, total - IPV6_HEADER_LENGTH);
+        } else {
+            writeShort(out, outOffset + 2, total);
+            writeShort(out, outOffset + 4, id);
+            int sum = ipChecksumBase + total + (id & 0xFFFF);
+            writeShort(out, outOffset + 10, ~fold(sum));
+        }
+    }
+
+    /**
+     * 按16位大端字累加 [offset, offset + length) 的内容，奇数长度时末字节补0
+     * 每次取8字节按两个32位大端字累加到long中，最后折叠回不超过17位；
+     * 2^16与1模0xFFFF同余，结果与逐个16位字累加等价（RFC 1071）。直接读数组，不分配对象
+     */
+    static int sum(byte[] data, int offset, int length, int sum) {
+        long acc = sum & 0xFFFFFFFFL;
+        int i = offset;
+        int end = offset + (length & ~7);
+        for (; i < end; i += 8) {
+            long high = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            long low = ((data[i + 4] & 0xFF) << 24) | ((data[i + 5] & 0xFF) << 16)
+                    | ((data[i + 6] & 0xFF) << 8) | (data[i + 7] & 0xFF);
+            acc += (high & 0xFFFFFFFFL) + (low & 0xFFFFFFFFL);
+        }
+        end = offset + (length & ~1);
+        for (; i < end; i += 2) {
+            acc += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        if ((length & 1) != 0) {
+            acc += (data[end] & 0xFF) << 8;
+        }
+        acc = (acc & 0xFFFFFFFFL) + (acc >>> 32);
+        acc = (acc & 0xFFFFFFFFL) + (acc >>> 32);
+        return (int) ((acc & 0xFFFF) + (acc >>> 16));
+    }
+
+    static int fold(int sum) {
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        return sum;
+    }
+
+    private static void writeShort(byte[] out, int index, int value) {
+        out[index] = (byte) (value >> 8);
+        out[index + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] out, int index, int value) {
+        out[index] = (byte) (value >> 24);
+        out[index + 1] = (byte) (value >> 16);
+        out[index + 2] = (byte) (value >> 8);
+        out[index + 3] = (byte) value;
+    }
+}
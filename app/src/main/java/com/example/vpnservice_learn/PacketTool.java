@@ -1,172 +1,153 @@
 package com.example.vpnservice_learn;
 
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.pcap4j.packet.*;
-import org.pcap4j.packet.namednumber.*;
-
 
 /**
  * TCP/UDP数据包构造工具类
+ * 每个包基于连接的 {@link PacketTemplate} 直接写入池化缓冲区，不经过pcap4j的Builder
  */
 public final class PacketTool {
     private static final AtomicInteger IP_IDENTIFIER = new AtomicInteger(0);
-    private static final byte DEFAULT_TTL = 45;
-    private static final byte DEFAULT_TOS = 0;
+    static final byte DEFAULT_TTL = 45;
+    static final byte DEFAULT_TOS = 0;
+    private static final byte[] EMPTY = new byte[0];
 
     private PacketTool() {
     } // 工具类，防止实例化
 
-    // TCP控制标志位常量
-    private static final int TCP_SYN_FLAG = 1;
-    private static final int TCP_PSH_FLAG = 2;
-    private static final int TCP_FIN_FLAG = 4;
-    private static final int TCP_ACK_FLAG = 8;
-    private static final int TCP_RST_FLAG = 16;
+    // TCP控制标志位常量（取值与TCP头部一致，可直接写入）
+    private static final int TCP_SYN_FLAG = PacketView.TCP_SYN;
+    private static final int TCP_PSH_FLAG = PacketView.TCP_PSH;
+    private static final int TCP_FIN_FLAG = PacketView.TCP_FIN;
+    private static final int TCP_ACK_FLAG = PacketView.TCP_ACK;
+    private static final int TCP_RST_FLAG = PacketView.TCP_RST;
+
+    public static void sendRstPacket(TcpChannel channel) {
+        buildAndSendPacket(channel, TCP_RST_FLAG);
+    }
 
-    public static void sendRstPacket(NetworkChannel channel) {
-        buildAndSendPacket(channel, new byte[0], TCP_RST_FLAG);
+    /**
+     * 拒绝SYN时使用，确认号需为客户端的初始序号加1
+     */
+    public static void sendRstAckPacket(TcpChannel channel) {
+        buildAndSendPacket(channel, TCP_RST_FLAG | TCP_ACK_FLAG);
     }
 
-    public static void sendFinPacket(NetworkChannel channel) {
-        IpPacket packet = buildTcpPacket(channel, new byte[0], TCP_FIN_FLAG | TCP_ACK_FLAG);
+    public static void sendFinPacket(TcpChannel channel) {
+        PacketBuffer packet = buildTcpPacket(channel, EMPTY, 0, 0, TCP_FIN_FLAG | TCP_ACK_FLAG);
         channel.getSequenceNumber().incrementAndGet();
-        channel.sendToVpn(packet.getRawData());
+        channel.sendToVpn(packet);
     }
 
-    public static void sendSynAckPacket(NetworkChannel channel) {
+    public static void sendSynAckPacket(TcpChannel channel) {
         channel.getAckNumber().incrementAndGet();
-        IpPacket packet = buildTcpPacket(channel, new byte[0], TCP_SYN_FLAG | TCP_ACK_FLAG);
+        PacketBuffer packet = buildTcpPacket(channel, EMPTY, 0, 0, TCP_SYN_FLAG | TCP_ACK_FLAG);
         channel.getSequenceNumber().incrementAndGet();
-        channel.sendToVpn(packet.getRawData());
+        channel.sendToVpn(packet);
+    }
+
+    /**
+     * 重发SYN-ACK，序号和确认号不再前进
+     *
+     * @param seq 本端的初始序号
+     * @param ack 客户端的初始序号加1
+     */
+    public static void resendSynAckPacket(TcpChannel channel, int seq, int ack) {
+        channel.sendToVpn(buildTcpPacket(channel, seq, ack, EMPTY, 0, 0, TCP_SYN_FLAG | TCP_ACK_FLAG));
+    }
+
+    public static void sendDataPacket(TcpChannel channel, byte[] payload) {
+        sendDataPacket(channel, payload, 0, payload.length);
     }
 
-    public static void sendDataPacket(NetworkChannel channel, byte[] payload) {
-        IpPacket packet = buildTcpPacket(channel, payload, TCP_PSH_FLAG | TCP_ACK_FLAG);
-        channel.getSequenceNumber().addAndGet(payload.length);
-        channel.sendToVpn(packet.getRawData());
+    public static void sendDataPacket(TcpChannel channel, byte[] payload, int offset, int length) {
+        PacketBuffer packet = buildTcpPacket(channel, payload, offset, length, TCP_PSH_FLAG | TCP_ACK_FLAG);
+        channel.getSequenceNumber().addAndGet(length);
+        channel.sendToVpn(packet);
     }
 
-    public static void sendAckPacket(NetworkChannel channel) {
-        buildAndSendPacket(channel, new byte[0], TCP_ACK_FLAG);
+    /**
+     * 上游数据负载在缓冲区中的起始位置，前面留给IP/TCP头部和选项
+     */
+    public static int segmentOffset(TcpChannel channel) {
+        return channel.getTemplate().headerLength() + channel.getTcpOptions().length();
     }
 
-    public static void sendAckPacket(NetworkChannel channel, int ackIncrement) {
+    /**
+     * 发送一批负载已读入packets中 {@link #segmentOffset} 处的数据分段，写入头部后整批交给TUN写线程
+     * 交出成功后序号才前进；失败时包仍归调用方，重新发送时会按当时的确认号和窗口重写头部
+     *
+     * @param segmentSize 除最后一个分段外每个分段的负载长度
+     * @param length      这一批负载的总长度
+     * @return 写队列不接受这一批时返回false
+     */
+    public static boolean sendDataSegments(TcpChannel channel, PacketBuffer[] packets, int count,
+                                        int segmentSize, int length) {
+        PacketTemplate template = channel.getTemplate();
+        TcpOptions options = channel.getTcpOptions();
+        int optionsLength = options.write(packets[0].array(), template.headerLength());
+        template.writeTcpSegments(packets, count, IP_IDENTIFIER.getAndAdd(count) + 1,
+                channel.getSequenceNumber().get(), channel.getAckNumber().get(),
+                TCP_PSH_FLAG | TCP_ACK_FLAG, options.windowField(false), optionsLength, segmentSize, length);
+        if (!channel.sendToVpn(packets, count)) {
+            return false;
+        }
+        channel.getSequenceNumber().addAndGet(length);
+        return true;
+    }
+
+    public static void sendAckPacket(TcpChannel channel) {
+        buildAndSendPacket(channel, TCP_ACK_FLAG);
+    }
+
+    public static void sendAckPacket(TcpChannel channel, int ackIncrement) {
         channel.getAckNumber().addAndGet(ackIncrement);
-        buildAndSendPacket(channel, new byte[0], TCP_ACK_FLAG);
+        buildAndSendPacket(channel, TCP_ACK_FLAG);
     }
 
     public static void sendUdpPacket(NetworkChannel channel, byte[] payload) {
-        IpPacket packet = buildUdpPacket(channel, payload);
-        channel.sendToVpn(packet.getRawData());
+        sendUdpPacket(channel, payload, 0, payload.length);
     }
 
-    private static void buildAndSendPacket(NetworkChannel channel,
-                                           byte[] data, int flags) {
-        IpPacket packet = buildTcpPacket(channel, data, flags);
-        channel.sendToVpn(packet.getRawData());
+    public static void sendUdpPacket(NetworkChannel channel, byte[] payload, int offset, int length) {
+        PacketTemplate template = channel.getTemplate();
+        PacketBuffer packet = channel.getBufferPool().acquire(template.headerLength() + length);
+        packet.setLength(template.writeUdp(packet.array(), 0, nextIdentifier(), payload, offset, length));
+        channel.sendToVpn(packet);
     }
 
-    private static IpPacket buildTcpPacket(NetworkChannel channel, byte[] payload, int flags) {
-        TcpPacket.Builder tcpBuilder = createTcpBuilder(channel, flags);
+    private static void buildAndSendPacket(TcpChannel channel, int flags) {
+        channel.sendToVpn(buildTcpPacket(channel, EMPTY, 0, 0, flags));
+    }
+
+    private static PacketBuffer buildTcpPacket(TcpChannel channel, byte[] payload, int offset, int length, int flags) {
+        return buildTcpPacket(channel, channel.getSequenceNumber().get(), channel.getAckNumber().get(),
+                payload, offset, length, flags);
+    }
 
-        if (payload.length > 0) {
-            tcpBuilder.payloadBuilder(new UnknownPacket.Builder().rawData(payload));
+    private static PacketBuffer buildTcpPacket(TcpChannel channel, int seq, int ack,
+                                               byte[] payload, int offset, int length, int flags) {
+        PacketTemplate template = channel.getTemplate();
+        TcpOptions options = channel.getTcpOptions();
+        boolean syn = (flags & TCP_SYN_FLAG) != 0;
+        int optionsLength = syn ? options.synLength() : options.length();
+        PacketBuffer packet = channel.getBufferPool().acquire(template.headerLength() + optionsLength + length);
+        byte[] out = packet.array();
+        // 选项紧跟在模板头部之后，由writeTcp计入数据偏移和校验和
+        if (syn) {
+            options.writeSyn(out, template.headerLength());
+        } else {
+            options.write(out, template.headerLength());
         }
+        packet.setLength(template.writeTcp(out, 0, nextIdentifier(), seq, ack, flags,
+                options.windowField(syn), optionsLength, payload, offset, length));
+        return packet;
+    }
 
-        return isIPv6(channel) ?
-                buildIPv6Packet(tcpBuilder, channel) :
-                buildIPv4Packet(tcpBuilder, channel);
-    }
-
-    private static TcpPacket.Builder createTcpBuilder(NetworkChannel channel, int flags) {
-        return new TcpPacket.Builder()
-                .srcPort(getTcpPort(channel.getSrcAddress()))
-                .dstPort(getTcpPort(channel.getDstAddress()))
-                .sequenceNumber(channel.getSequenceNumber().get())
-                .window(Short.MIN_VALUE)
-                .acknowledgmentNumber(channel.getAckNumber().get())
-                .syn((flags & TCP_SYN_FLAG) != 0)
-                .psh((flags & TCP_PSH_FLAG) != 0)
-                .fin((flags & TCP_FIN_FLAG) != 0)
-                .ack((flags & TCP_ACK_FLAG) != 0)
-                .rst((flags & TCP_RST_FLAG) != 0)
-                .srcAddr(channel.getSrcAddress().getAddress())
-                .dstAddr(channel.getDstAddress().getAddress())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true);
-    }
-
-    private static IpPacket buildUdpPacket(NetworkChannel channel, byte[] payload) {
-        UdpPacket.Builder udpBuilder = new UdpPacket.Builder()
-                .srcPort(getUdpPort(channel.getSrcAddress()))
-                .dstPort(getUdpPort(channel.getDstAddress()))
-                .payloadBuilder(new UnknownPacket.Builder().rawData(payload))
-                .correctLengthAtBuild(true);
-
-        return isIPv6(channel) ?
-                new IpV6Packet.Builder()
-                        .version(IpVersion.IPV6)
-                        .srcAddr((Inet6Address) channel.getSrcAddress().getAddress())
-                        .dstAddr((Inet6Address) channel.getDstAddress().getAddress())
-                        .correctLengthAtBuild(true)
-                        .payloadBuilder(udpBuilder)
-                        .build() :
-                new IpV4Packet.Builder()
-                        .version(IpVersion.IPV4)
-                        .ttl(DEFAULT_TTL)
-                        .tos(IpV4Rfc1349Tos.newInstance(DEFAULT_TOS))
-                        .protocol(IpNumber.UDP)
-                        .srcAddr((Inet4Address) channel.getSrcAddress().getAddress())
-                        .dstAddr((Inet4Address) channel.getDstAddress().getAddress())
-                        .correctLengthAtBuild(true)
-                        .correctChecksumAtBuild(true)
-                        .payloadBuilder(udpBuilder)
-                        .identification((short) IP_IDENTIFIER.incrementAndGet())
-                        .build();
-    }
-
-    private static IpPacket buildIPv6Packet(TcpPacket.Builder tcpBuilder, NetworkChannel channel) {
-        return new IpV6Packet.Builder()
-                .version(IpVersion.IPV6)
-                .srcAddr((Inet6Address) channel.getSrcAddress().getAddress())
-                .dstAddr((Inet6Address) channel.getDstAddress().getAddress())
-                .correctLengthAtBuild(true)
-                .payloadBuilder(tcpBuilder)
-                .trafficClass(IpV6SimpleTrafficClass.newInstance(DEFAULT_TOS))
-                .flowLabel(IpV6SimpleFlowLabel.newInstance(0))
-                .nextHeader(IpNumber.TCP)
-                .build();
-    }
-
-    private static IpPacket buildIPv4Packet(TcpPacket.Builder tcpBuilder, NetworkChannel channel) {
-        return new IpV4Packet.Builder()
-                .version(IpVersion.IPV4)
-                .ttl(DEFAULT_TTL)
-                .tos(IpV4Rfc1349Tos.newInstance(DEFAULT_TOS))
-                .protocol(IpNumber.TCP)
-                .srcAddr((Inet4Address) channel.getSrcAddress().getAddress())
-                .dstAddr((Inet4Address) channel.getDstAddress().getAddress())
-                .correctLengthAtBuild(true)
-                .correctChecksumAtBuild(true)
-                .payloadBuilder(tcpBuilder)
-                .identification((short) IP_IDENTIFIER.incrementAndGet())
-                .build();
-    }
-
-    private static boolean isIPv6(NetworkChannel channel) {
-        return channel.getDstAddress().getAddress() instanceof Inet6Address;
-    }
-
-    private static TcpPort getTcpPort(InetSocketAddress address) {
-        return TcpPort.getInstance((short) address.getPort());
-    }
-
-    private static UdpPort getUdpPort(InetSocketAddress address) {
-        return UdpPort.getInstance((short) address.getPort());
+    private static int nextIdentifier() {
+        return IP_IDENTIFIER.incrementAndGet();
     }
 
     /**
@@ -177,10 +158,34 @@ public final class PacketTool {
 
         AtomicInteger getAckNumber();
 
-        void sendToVpn(byte[] packetData);
+        /**
+         * 把构造好的包交给TUN写线程，同时转移缓冲区的所有权
+         */
+        void sendToVpn(PacketBuffer packet);
 
         InetSocketAddress getSrcAddress();
 
         InetSocketAddress getDstAddress();
+
+        /**
+         * 连接建立时生成的头部模板，源/目的地址与 {@link #getSrcAddress()}/{@link #getDstAddress()} 一致
+         */
+        PacketTemplate getTemplate();
+
+        BufferPool getBufferPool();
+    }
+
+    /**
+     * TCP连接的通道，额外提供协商后的选项和通告窗口
+     */
+    public interface TcpChannel extends NetworkChannel {
+        TcpOptions getTcpOptions();
+
+        /**
+         * 把一批包整体交给TUN写线程，成功时同时转移这些缓冲区的所有权
+         *
+         * @return 写队列不接受时返回false，缓冲区仍归调用方
+         */
+        boolean sendToVpn(PacketBuffer[] packets, int count);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,324 @@
+package com.example.vpnservice_learn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * IP数据包的零拷贝视图
+ * 直接从读缓冲区解析IPv4/IPv6头部以及TCP/UDP头部字段，不创建任何中间对象。
+ * 同一个实例可以通过 {@link #wrap(PacketBuffer)} 反复复用，
+ * 视图只在缓冲区内容未被覆盖之前有效，需要跨线程保存时对 {@link #buffer()} 调用retain，由对方重新wrap。
+ */
+public final class PacketView {
+
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    // TCP控制标志位（与TCP头部第13字节的位布局一致）
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+    public static final int TCP_PSH = 0x08;
+    public static final int TCP_ACK = 0x10;
+
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+    private static final int TCP_OPTION_WINDOW_SCALE = 3;
+    private static final int TCP_OPTION_SACK_PERMITTED = 4;
+    private static final int TCP_OPTION_TIMESTAMP = 8;
+
+    private static final int IPV4_HEADER_MIN = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int TCP_HEADER_MIN = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    // IPv4头部第6、7字节中的MF标志和分片偏移
+    private static final int IPV4_MORE_FRAGMENTS = 0x2000;
+    private static final int IPV4_FRAGMENT_OFFSET = 0x1FFF;
+
+    private byte[] data;
+    private PacketBuffer buffer;
+    private int offset;
+    private int length;
+
+    private int version;
+    private int protocol;
+    private int transportOffset;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * 将视图绑定到池化缓冲区，需要跨线程保留数据时对 {@link #buffer()} 调用retain
+     *
+     * @return 是否为可识别的TCP/UDP数据包
+     */
+    public boolean wrap(PacketBuffer buffer) {
+        boolean result = wrap(buffer.array(), 0, buffer.length());
+        this.buffer = buffer;
+        return result;
+    }
+
+    /**
+     * 将视图绑定到一段缓冲区并解析头部
+     * 不重组IP分片：IPv4的任何分片（偏移不为0，或偏移为0但设置了MF）都不是完整的TCP/UDP数据包，
+     * 后续分片的负载不是传输层头部，首个分片的负载也不完整，都按无法识别处理，只抓包不转发；
+     * IPv6分片的下一个头部是分片扩展头，同样不识别。客户端的TCP按PMTU设置DF不会分片，
+     * 被分片的UDP数据报整体丢弃，由应用重试。
+     *
+     * @return 是否为可识别的TCP/UDP数据包
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.buffer = null;
+        this.offset = offset;
+        this.length = length;
+        this.version = 0;
+        this.protocol = -1;
+        this.transportOffset = -1;
+        this.payloadOffset = -1;
+        this.payloadLength = 0;
+
+        if (length < 1) return false;
+        version = (data[offset] >> 4) & 0xF;
+
+        int end;
+        if (version == 4) {
+            if (length < IPV4_HEADER_MIN) return false;
+            int ihl = (data[offset] & 0xF) * 4;
+            int totalLength = readShort(offset + 2);
+            if (ihl < IPV4_HEADER_MIN || totalLength < ihl) return false;
+            // 去掉可能存在的尾部填充
+            end = offset + Math.min(totalLength, length);
+            protocol = data[offset + 9] & 0xFF;
+            if ((readShort(offset + 6) & (IPV4_MORE_FRAGMENTS | IPV4_FRAGMENT_OFFSET)) != 0) return false;
+            transportOffset = offset + ihl;
+        } else if (version == 6) {
+            if (length < IPV6_HEADER_LENGTH) return false;
+            int payload = readShort(offset + 4);
+            end = offset + Math.min(IPV6_HEADER_LENGTH + payload, length);
+            protocol = data[offset + 6] & 0xFF;
+            transportOffset = offset + IPV6_HEADER_LENGTH;
+        } else {
+            return false;
+        }
+
+        if (protocol == PROTOCOL_TCP) {
+            if (end - transportOffset < TCP_HEADER_MIN) return false;
+            int dataOffset = ((data[transportOffset + 12] >> 4) & 0xF) * 4;
+            if (dataOffset < TCP_HEADER_MIN || transportOffset + dataOffset > end) return false;
+            payloadOffset = transportOffset + dataOffset;
+        } else if (protocol == PROTOCOL_UDP) {
+            if (end - transportOffset < UDP_HEADER_LENGTH) return false;
+            payloadOffset = transportOffset + UDP_HEADER_LENGTH;
+        } else {
+            return false;
+        }
+        payloadLength = end - payloadOffset;
+        return true;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * 视图所在的池化缓冲区，通过 {@link #wrap(byte[], int, int)} 绑定时为null
+     */
+    public PacketBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public boolean isIPv6() {
+        return version == 6;
+    }
+
+    public int protocol() {
+        return protocol;
+    }
+
+    public boolean isTcp() {
+        return protocol == PROTOCOL_TCP;
+    }
+
+    public boolean isUdp() {
+        return protocol == PROTOCOL_UDP;
+    }
+
+    /**
+     * IPv4源地址（大端整数），仅对IPv4有效
+     */
+    public int srcIpv4() {
+        return readInt(offset + 12);
+    }
+
+    /**
+     * IPv4目的地址（大端整数），仅对IPv4有效
+     */
+    public int dstIpv4() {
+        return readInt(offset + 16);
+    }
+
+    /**
+     * 源地址，会创建InetAddress对象，只在建立连接等低频路径使用
+     */
+    public InetAddress srcAddress() {
+        return version == 4 ? address(offset + 12, 4) : address(offset + 8, 16);
+    }
+
+    /**
+     * 目的地址，会创建InetAddress对象，只在建立连接等低频路径使用
+     */
+    public InetAddress dstAddress() {
+        return version == 4 ? address(offset + 16, 4) : address(offset + 24, 16);
+    }
+
+    public int srcPort() {
+        return readShort(transportOffset);
+    }
+
+    public int dstPort() {
+        return readShort(transportOffset + 2);
+    }
+
+    public int sequenceNumber() {
+        return readInt(transportOffset + 4);
+    }
+
+    public int acknowledgmentNumber() {
+        return readInt(transportOffset + 8);
+    }
+
+    public int tcpFlags() {
+        return data[transportOffset + 13] & 0x3F;
+    }
+
+    public boolean syn() {
+        return (tcpFlags() & TCP_SYN) != 0;
+    }
+
+    public boolean fin() {
+        return (tcpFlags() & TCP_FIN) != 0;
+    }
+
+    public boolean rst() {
+        return (tcpFlags() & TCP_RST) != 0;
+    }
+
+    public boolean psh() {
+        return (tcpFlags() & TCP_PSH) != 0;
+    }
+
+    public boolean ack() {
+        return (tcpFlags() & TCP_ACK) != 0;
+    }
+
+    public int window() {
+        return readShort(transportOffset + 14);
+    }
+
+    /**
+     * TCP选项中的MSS，未携带时返回-1
+     */
+    public int mss() {
+        int index = findTcpOption(TCP_OPTION_MSS);
+        return index < 0 ? -1 : readShort(index + 2);
+    }
+
+    /**
+     * TCP选项中的窗口缩放位数，未携带时返回-1
+     */
+    public int windowScale() {
+        int index = findTcpOption(TCP_OPTION_WINDOW_SCALE);
+        return index < 0 || (data[index + 1] & 0xFF) != 3 ? -1 : data[index + 2] & 0xFF;
+    }
+
+    public boolean sackPermitted() {
+        return findTcpOption(TCP_OPTION_SACK_PERMITTED) >= 0;
+    }
+
+    /**
+     * TCP时间戳选项的下标，未携带时返回-1，取值见 {@link #timestampValue(int)}
+     */
+    public int timestampOption() {
+        int index = findTcpOption(TCP_OPTION_TIMESTAMP);
+        return index < 0 || (data[index + 1] & 0xFF) != 10 ? -1 : index;
+    }
+
+    /**
+     * 时间戳选项中发送方的时间戳TSval
+     *
+     * @param option {@link #timestampOption()} 的返回值
+     */
+    public int timestampValue(int option) {
+        return readInt(option + 2);
+    }
+
+    public int transportOffset() {
+        return transportOffset;
+    }
+
+    /**
+     * 负载在 {@link #array()} 中的起始下标
+     */
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * 返回指定TCP选项在 {@link #array()} 中的下标，不存在时返回-1
+     */
+    private int findTcpOption(int kind) {
+        int index = transportOffset + TCP_HEADER_MIN;
+        while (index < payloadOffset) {
+            int current = data[index] & 0xFF;
+            if (current == TCP_OPTION_END) break;
+            if (current == TCP_OPTION_NOP) {
+                index++;
+                continue;
+            }
+            if (index + 1 >= payloadOffset) break;
+            int size = data[index + 1] & 0xFF;
+            if (size < 2 || index + size > payloadOffset) break;
+            if (current == kind) return index;
+            index += size;
+        }
+        return -1;
+    }
+
+    private int readShort(int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    private int readInt(int index) {
+        return ((data[index] & 0xFF) << 24)
+                | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8)
+                | (data[index + 3] & 0xFF);
+    }
+
+    private InetAddress address(int index, int size) {
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(data, index, index + size));
+        } catch (UnknownHostException e) {
+            // 长度固定为4或16，不会发生
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.vpnservice_learn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * pcap文件格式编码
+ * 只负责生成全局头和每条记录的字节，不依赖Android和具体的写入目标。
+ * 抓到的是TUN上的裸IP包，默认使用LINKTYPE_RAW，记录头之后直接是原始包；
+ * 需要以太网链路类型的工具可以使用 {@link #ETHERNET}，补一个固定MAC的以太网头。
+ * 经典pcap的时间戳只有微秒精度，需要纳秒时间戳时使用 {@link PcapngFormat}。
+ */
+public final class PcapFormat implements CaptureFormat {
+
+    public static final int GLOBAL_HEADER_LENGTH = 24;
+    public static final int RECORD_HEADER_LENGTH = 16;
+    public static final int LINKTYPE_ETHERNET = 1;
+    // 裸IP包，没有链路层头，版本号取自IP头
+    public static final int LINKTYPE_RAW = 101;
+    public static final int SNAPLEN = 65535;
+
+    private static final int MAGIC = 0xa1b2c3d4;
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    // 不含FCS的以太网最小帧长，不足时补0
+    private static final int ETHERNET_MIN_FRAME = 60;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final byte[] DST_MAC = {0x45, 0x00, 0x00, 0x00, 0x00, 0x01};
+    private static final byte[] SRC_MAC = {0x45, 0x00, 0x00, 0x00, 0x00, 0x02};
+
+    /**
+     * 裸IP包的经典pcap
+     */
+    public static final CaptureFormat RAW = new PcapFormat(LINKTYPE_RAW);
+
+    /**
+     * 补以太网头的经典pcap
+     */
+    public static final CaptureFormat ETHERNET = new PcapFormat(LINKTYPE_ETHERNET);
+
+    private final int linkType;
+
+    private PcapFormat(int linkType) {
+        this.linkType = linkType;
+    }
+
+    @Override
+    public String extension() {
+        return "pcap";
+    }
+
+    @Override
+    public byte[] fileHeader(int snaplen) {
+        // 以太网记录比IP包多一个以太网头
+        return globalHeader(linkType, linkType == LINKTYPE_RAW
+                ? snaplen
+                : Math.min(SNAPLEN, snaplen + ETHERNET_HEADER_LENGTH));
+    }
+
+    @Override
+    public boolean supportsComments() {
+        return false;
+    }
+
+    @Override
+    public int recordLength(int capturedLength, int commentLength) {
+        return linkType == LINKTYPE_RAW ? rawRecordLength(capturedLength) : ethernetRecordLength(capturedLength);
+    }
+
+    @Override
+    public int writeRecord(ByteBuffer out, long timeNanos, byte[] data, int offset,
+                           int capturedLength, int originalLength, byte[] comment) {
+        return linkType == LINKTYPE_RAW
+                ? writeRawRecord(out, timeNanos, data, offset, capturedLength, originalLength)
+                : writeEthernetRecord(out, timeNanos, data, offset, capturedLength, originalLength);
+    }
+
+    /**
+     * 文件全局头，小端，微秒精度
+     *
+     * @param snaplen 单条记录最多保存的字节数
+     */
+    public static byte[] globalHeader(int linkType, int snaplen) {
+        return ByteBuffer.allocate(GLOBAL_HEADER_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC) // Magic Number
+                .putShort((short) 2) // Major version
+                .putShort((short) 4) // Minor version
+                .putInt(0) // GMT to local correction
+                .putInt(0) // Accuracy of timestamps
+                .putInt(snaplen) // Max length of captured packets, in octets
+                .putInt(linkType) // Data link type
+                .array();
+    }
+
+    /**
+     * 保存capturedLength字节的裸IP记录的总长度（含记录头）
+     */
+    public static int rawRecordLength(int capturedLength) {
+        return RECORD_HEADER_LENGTH + capturedLength;
+    }
+
+    /**
+     * 把一个IP包的前capturedLength字节编码成裸IP记录写入out：16字节记录头后直接是包的内容
+     *
+     * @param timeNanos 从1970年开始的纳秒数，写入时截断到微秒
+     * @return 写入的字节数，不是IPv4/IPv6时不写入并返回0
+     */
+    public static int writeRawRecord(ByteBuffer out, long timeNanos, byte[] data, int offset,
+                                     int capturedLength, int originalLength) {
+        if (capturedLength < 1) return 0;
+        int version = (data[offset] >> 4) & 0xF;
+        if (version != 4 && version != 6) return 0;
+
+        putRecordHeader(out, timeNanos, capturedLength, originalLength);
+        out.put(data, offset, capturedLength);
+        return RECORD_HEADER_LENGTH + capturedLength;
+    }
+
+    /**
+     * 保存capturedLength字节的IP包封装成以太网记录后的最大总长度（含记录头）
+     */
+    public static int ethernetRecordLength(int capturedLength) {
+        return RECORD_HEADER_LENGTH + Math.max(ETHERNET_MIN_FRAME, ETHERNET_HEADER_LENGTH + capturedLength);
+    }
+
+    /**
+     * 把一个IP包的前capturedLength字节编码成以太网封装的记录写入out，
+     * out剩余空间需不少于 {@link #ethernetRecordLength(int)}
+     * 只有完整保存的包才补齐到以太网最小帧长，截断的包不补0，原始长度按补齐后的帧长记录。
+     *
+     * @param timeNanos 从1970年开始的纳秒数，写入时截断到微秒
+     * @return 写入的字节数，不是IPv4/IPv6时不写入并返回0
+     */
+    public static int writeEthernetRecord(ByteBuffer out, long timeNanos, byte[] data, int offset,
+                                          int capturedLength, int originalLength) {
+        if (capturedLength < 1) return 0;
+        int version = (data[offset] >> 4) & 0xF;
+        int etherType;
+        if (version == 4) {
+            etherType = ETHERTYPE_IPV4;
+        } else if (version == 6) {
+            etherType = ETHERTYPE_IPV6;
+        } else {
+            return 0;
+        }
+
+        int frameLength = Math.max(ETHERNET_MIN_FRAME, ETHERNET_HEADER_LENGTH + originalLength);
+        int capturedFrame = capturedLength < originalLength
+                ? ETHERNET_HEADER_LENGTH + capturedLength
+                : frameLength;
+        putRecordHeader(out, timeNanos, capturedFrame, frameLength);
+        out.put(DST_MAC)
+                .put(SRC_MAC)
+                .put((byte) (etherType >> 8))
+                .put((byte) etherType)
+                .put(data, offset, capturedLength);
+        for (int i = ETHERNET_HEADER_LENGTH + capturedLength; i < capturedFrame; i++) {
+            out.put((byte) 0);
+        }
+        return RECORD_HEADER_LENGTH + capturedFrame;
+    }
+
+    private static void putRecordHeader(ByteBuffer out, long timeNanos, int capturedLength, int originalLength) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) (timeNanos / 1_000_000_000L))           // timestamp seconds
+                .putInt((int) (timeNanos % 1_000_000_000L / 1000))    // timestamp microseconds
+                .putInt(capturedLength)                               // captured length
+                .putInt(originalLength);                              // actual length
+        out.order(order);
+    }
+}
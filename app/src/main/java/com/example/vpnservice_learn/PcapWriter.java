@@ -0,0 +1,482 @@
+package com.example.vpnservice_learn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把抓到的包写成抓包文件，格式由 {@link CaptureFormat} 决定
+ * 写线程把记录编码进一块内存，攒满一块或距上次写出超过一定时间才写一次，
+ * 每块在文件中按块大小对齐；追加偏移在本地维护，只在打开文件时查询一次文件长度。
+ * 队列有上限，写出跟不上时丢弃新包并计数，不阻塞引擎。
+ * 入队前先经过 {@link CaptureFilter}，不关心的包不复制、不排队、不写出，过滤器可以在运行中替换；
+ * 再经过 {@link CaptureSampler} 按比例或每条流前几个包采样。
+ * 设置snaplen后每个包只保存前若干字节，记录中保留原始长度，只看头部时文件和写出量都小得多。
+ * 设置环形缓冲后按大小或时长轮换文件，只保留最近的若干个，与dumpcap的ring buffer相同。
+ */
+public class PcapWriter implements PacketCapture {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+
+    /**
+     * snaplen取此值时只保存IP头和TCP/UDP头
+     */
+    public static final int HEADERS_ONLY = 0;
+    // 只保存头部时文件头中声明的snaplen：IPv4头和TCP头都取最大60字节，再留一些余量
+    static final int HEADERS_ONLY_SNAPLEN = 128;
+
+    // 墙上时钟只有毫秒精度，纳秒时间戳由启动时的墙上时间加单调时钟的差值得到
+    private static final long BASE_WALL_NANOS = System.currentTimeMillis() * 1_000_000L;
+    private static final long BASE_NANO_TIME = System.nanoTime();
+
+    /**
+     * 为流的第一个包生成附加说明，例如所属应用，返回null表示没有
+     * 在写线程中调用
+     */
+    public interface FlowLabeler {
+        String label(PacketView packet);
+    }
+
+    private final CaptureSink sink;
+    // 分片线程、读线程和写线程入队，抓包线程单独消费
+    private final MpscRingBuffer<PacketBuffer> packetQueue = new MpscRingBuffer<>(QUEUE_CAPACITY, WaitStrategy.PARK);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile CaptureFilter filter = CaptureFilter.ALL;
+    private volatile CaptureSampler sampler = CaptureSampler.ALL;
+    private volatile boolean isRunning = false;
+    private boolean closed;
+    private Thread writeThread;
+
+    private CaptureFormat format = PcapFormat.RAW;
+    private int snaplen = PcapFormat.SNAPLEN;
+    private FlowLabeler labeler;
+    // 环形缓冲：保留的文件数，0表示不轮换；单个文件的大小和时长上限，0表示不限
+    private int ringFiles;
+    private long maxFileBytes;
+    private long maxFileMillis;
+
+    private CaptureSink.Output output;
+    private final Deque<String> files = new ArrayDeque<>();
+    private int fileIndex;
+    private long fileOpenedAt;
+    // 下一次写出在文件中的位置，chunk中尚未写出的数据从这里开始
+    private long position;
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private ByteBuffer record = ByteBuffer.allocate(BufferPool.MTU * 2);
+    private volatile long written;
+
+    // 当前文件中已经标注过的流，每个文件重新标注，使单个文件可以独立查看
+    private final FlowSet annotatedFlows = new FlowSet();
+    private final PacketView view = new PacketView();
+    private int flowCount;
+
+    public PcapWriter(CaptureSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * 文件格式，start之前设置，默认为裸IP的经典pcap
+     */
+    public void setFormat(CaptureFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * 流注释的附加说明，只对支持注释的格式生效
+     */
+    public void setFlowLabeler(FlowLabeler labeler) {
+        this.labeler = labeler;
+    }
+
+    /**
+     * 替换抓包过滤器，可以在运行中调用，之后入队的包立即按新过滤器判断
+     */
+    public void setFilter(CaptureFilter filter) {
+        this.filter = filter;
+    }
+
+    public CaptureFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * 替换采样方式，可以在运行中调用，在过滤器之后判断
+     */
+    public void setSampler(CaptureSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    public CaptureSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * 每个包最多保存的字节数，start之前设置，默认不截断
+     *
+     * @param snaplen 字节数，{@link #HEADERS_ONLY} 表示只保存IP头和TCP/UDP头
+     */
+    public void setSnaplen(int snaplen) {
+        this.snaplen = snaplen;
+    }
+
+    /**
+     * 按环形缓冲轮换文件，start之前设置
+     *
+     * @param files    最多保留的文件数，超出时删除最旧的
+     * @param maxBytes 单个文件的大小上限，0表示不限
+     * @param maxTime  单个文件的时长上限，0表示不限
+     */
+    public void setRing(int files, long maxBytes, long maxTime, TimeUnit unit) {
+        this.ringFiles = files;
+        this.maxFileBytes = maxBytes;
+        this.maxFileMillis = unit.toMillis(maxTime);
+    }
+
+    /**
+     * 从1970年开始的纳秒数
+     */
+    static long currentTimeNanos() {
+        return BASE_WALL_NANOS + (System.nanoTime() - BASE_NANO_TIME);
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (isRunning) return;
+
+        openFile();
+
+        isRunning = true;
+        writeThread = new Thread(this::runWriterLoop, "PcapWriterThread");
+        writeThread.start();
+    }
+
+    /**
+     * 增加引用后入队，写入文件后释放，调用方仍需释放自己持有的引用
+     */
+    @Override
+    public void addQueue(PacketBuffer packet) {
+        if (!isRunning || packet.length() == 0 || !accept(filter, sampler, packet)) return;
+        packet.setTimestamp(currentTimeNanos());
+        enqueue(packet);
+    }
+
+    /**
+     * 批量入队，同一批使用同一个时间戳
+     */
+    @Override
+    public void addQueue(List<PacketBuffer> packets) {
+        if (!isRunning) return;
+        long now = currentTimeNanos();
+        CaptureFilter filter = this.filter;
+        CaptureSampler sampler = this.sampler;
+        for (PacketBuffer packet : packets) {
+            if (packet.length() > 0 && accept(filter, sampler, packet)) {
+                packet.setTimestamp(now);
+                enqueue(packet);
+            }
+        }
+    }
+
+    private boolean accept(CaptureFilter filter, CaptureSampler sampler, PacketBuffer packet) {
+        if (!filter.matches(packet.array(), 0, packet.length())) {
+            filtered.incrementAndGet();
+            return false;
+        }
+        if (!sampler.sample(packet.array(), 0, packet.length())) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void enqueue(PacketBuffer packet) {
+        if (!packetQueue.offer(packet.retain())) {
+            packet.release();
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return packetQueue.size();
+    }
+
+    /**
+     * 队列满被丢弃的包数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 被过滤器排除的包数
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    /**
+     * 通过过滤器但被采样跳过的包数
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 已写入文件的字节数（不含文件头）
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    private void runWriterLoop() {
+        List<PacketBuffer> batch = new ArrayList<>(DRAIN_BATCH);
+        long flushDeadline = 0;
+        try {
+            while (isRunning || !packetQueue.isEmpty()) {
+                long wait = chunk.position() == 0
+                        ? FLUSH_INTERVAL_MILLIS
+                        : flushDeadline - System.currentTimeMillis();
+                PacketBuffer first = wait > 0 ? packetQueue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (first != null) {
+                    if (chunk.position() == 0) {
+                        flushDeadline = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+                    }
+                    batch.add(first);
+                    packetQueue.drainTo(batch, DRAIN_BATCH - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        PacketBuffer packet = batch.set(i, null);
+                        try {
+                            append(packet);
+                        } finally {
+                            packet.release();
+                        }
+                    }
+                    batch.clear();
+                }
+                if (chunk.position() > 0 && System.currentTimeMillis() >= flushDeadline) {
+                    flush();
+                }
+                if (maxFileMillis > 0 && System.currentTimeMillis() - fileOpenedAt >= maxFileMillis) {
+                    rotate();
+                }
+            }
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // 写出失败时归还这一批中还没处理的包
+            for (PacketBuffer packet : batch) {
+                if (packet != null) packet.release();
+            }
+        }
+    }
+
+    private void append(PacketBuffer packet) throws IOException {
+        int captured = capturedLength(packet);
+        // 先决定是否轮换，注释要按新文件重新生成；注释不计入上限，文件可能略微超出
+        if (ringFiles > 0 && maxFileBytes > 0
+                && position + chunk.position() + format.recordLength(captured, 0) > maxFileBytes) {
+            rotate();
+        }
+        byte[] comment = format.supportsComments() ? flowComment(packet) : null;
+        int recordLength = format.recordLength(captured, comment == null ? 0 : comment.length);
+        // 块中放得下时直接编码进块，不经过中间缓冲区
+        if (chunk.remaining() >= recordLength) {
+            format.writeRecord(chunk, packet.timestamp(), packet.array(), 0, captured, packet.length(), comment);
+            if (!chunk.hasRemaining()) {
+                flush();
+            }
+            return;
+        }
+        if (record.capacity() < recordLength) {
+            record = ByteBuffer.allocate(recordLength);
+        }
+        record.clear();
+        int length = format.writeRecord(record, packet.timestamp(), packet.array(), 0, captured, packet.length(), comment);
+        if (length == 0) {
+            // 忽略无法识别的包
+            return;
+        }
+        record.flip();
+        // 跨块边界的记录分两次放入，块满即写出
+        while (record.hasRemaining()) {
+            int n = Math.min(chunk.remaining(), record.remaining());
+            chunk.put(record.array(), record.position(), n);
+            record.position(record.position() + n);
+            if (!chunk.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * 按snaplen截断后保存的字节数
+     * 只保存头部时按包实际的头长度截断，无法解析的包按 {@link #HEADERS_ONLY_SNAPLEN} 截断
+     */
+    private int capturedLength(PacketBuffer packet) {
+        if (snaplen != HEADERS_ONLY) {
+            return Math.min(packet.length(), snaplen);
+        }
+        int limit = Math.min(packet.length(), HEADERS_ONLY_SNAPLEN);
+        return view.wrap(packet) ? Math.min(view.payloadOffset(), limit) : limit;
+    }
+
+    /**
+     * 流在当前文件中第一次出现时生成注释：流编号、协议、两端地址和附加说明
+     */
+    private byte[] flowComment(PacketBuffer packet) {
+        if (!view.wrap(packet) || !annotatedFlows.add(CaptureSampler.flowHash(packet.array(), 0, packet.length()))) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder(64)
+                .append("flow ").append(++flowCount).append(": ")
+                .append(view.isTcp() ? "TCP " : "UDP ")
+                .append(view.srcAddress().getHostAddress()).append(':').append(view.srcPort())
+                .append(" > ")
+                .append(view.dstAddress().getHostAddress()).append(':').append(view.dstPort());
+        String label = labeler == null ? null : labeler.label(view);
+        if (label != null) {
+            text.append(" app=").append(label);
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 写出chunk中已有的数据
+     * 写出后下一块的上限取到下一个块边界，使之后整块写出时都落在对齐的偏移上
+     */
+    private void flush() throws IOException {
+        if (chunk.position() == 0) return;
+        chunk.flip();
+        int length = chunk.remaining();
+        output.write(chunk, position);
+        position += length;
+        written += length;
+        beginChunk();
+    }
+
+    private void beginChunk() {
+        chunk.clear();
+        chunk.limit(CHUNK_SIZE - (int) (position % CHUNK_SIZE));
+    }
+
+    private void openFile() throws IOException {
+        String name;
+        if (ringFiles > 0) {
+            String time = new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
+            name = String.format(Locale.ROOT, "vpn_%05d_%s.%s", ++fileIndex, time, format.extension());
+        } else {
+            String time = new SimpleDateFormat("HHmmss", Locale.getDefault()).format(new Date());
+            name = "vpn_" + time + "." + format.extension();
+        }
+        output = sink.open(name);
+        files.addLast(name);
+        fileOpenedAt = System.currentTimeMillis();
+        annotatedFlows.clear();
+
+        position = output.size();
+        if (position == 0) {
+            ByteBuffer header = ByteBuffer.wrap(format.fileHeader(
+                    snaplen == HEADERS_ONLY ? HEADERS_ONLY_SNAPLEN : snaplen));
+            output.write(header, 0);
+            position = header.capacity();
+        }
+        beginChunk();
+    }
+
+    /**
+     * 写完当前文件并打开下一个，超出保留数时删除最旧的文件
+     */
+    private void rotate() throws IOException {
+        if (ringFiles <= 0) return;
+        flush();
+        output.close();
+        openFile();
+        while (files.size() > ringFiles) {
+            sink.delete(files.removeFirst());
+        }
+    }
+
+    /**
+     * 可重复调用，只有第一次生效
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        isRunning = false;
+        if (writeThread != null) {
+            try {
+                writeThread.join(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            if (output != null) output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // 写线程退出后残留的包直接归还
+        PacketBuffer packet;
+        while ((packet = packetQueue.poll()) != null) {
+            packet.release();
+        }
+    }
+
+    /**
+     * 只记录64位哈希的开放寻址集合，超过一半容量时清空，内存占用固定
+     * 哈希冲突只会导致少标注一条流
+     */
+    private static final class FlowSet {
+        private static final int CAPACITY = 8192;
+        private final long[] table = new long[CAPACITY];
+        private int size;
+
+        /**
+         * @return 之前不存在时返回true
+         */
+        boolean add(long hash) {
+            if (hash == 0) hash = 1; // 0表示空槽
+            if (size >= CAPACITY / 2) clear();
+            int index = (int) hash & (CAPACITY - 1);
+            while (table[index] != 0) {
+                if (table[index] == hash) return false;
+                index = (index + 1) & (CAPACITY - 1);
+            }
+            table[index] = hash;
+            size++;
+            return true;
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.vpnservice_learn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * pcapng文件格式编码
+ * 每个文件以Section Header Block和一个Interface Description Block开头，
+ * 包记录为Enhanced Packet Block，链路类型为裸IP，时间戳精度为纳秒（if_tsresol=9），
+ * 记录可以带opt_comment注释，写线程用它标注每条流的第一个包。
+ * 所有块使用小端字节序，读取方通过字节序标记自动识别。
+ */
+public final class PcapngFormat implements CaptureFormat {
+
+    private static final int BLOCK_SHB = 0x0A0D0D0A;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_EPB = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final short OPT_ENDOFOPT = 0;
+    private static final short OPT_COMMENT = 1;
+    private static final short SHB_OS = 3;
+    private static final short SHB_USERAPPL = 4;
+    private static final short IF_NAME = 2;
+    private static final short IF_TSRESOL = 9;
+
+    // 块类型、块长度、接口号、时间戳高低位、捕获长度、原始长度、结尾的块长度
+    private static final int EPB_OVERHEAD = 32;
+    // 选项头4字节，加结尾的opt_endofopt 4字节
+    private static final int COMMENT_OVERHEAD = 8;
+
+    private static final String APPLICATION = "vpnservice_learn";
+
+    private final String interfaceName;
+
+    /**
+     * @param interfaceName 写入接口描述块的接口名，Wireshark中显示为抓包接口
+     */
+    public PcapngFormat(String interfaceName) {
+        this.interfaceName = interfaceName;
+    }
+
+    @Override
+    public String extension() {
+        return "pcapng";
+    }
+
+    @Override
+    public byte[] fileHeader(int snaplen) {
+        byte[] os = (System.getProperty("os.name") + " " + System.getProperty("os.version"))
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] application = APPLICATION.getBytes(StandardCharsets.UTF_8);
+        byte[] name = interfaceName.getBytes(StandardCharsets.UTF_8);
+
+        int shbLength = 28 + optionLength(os.length) + optionLength(application.length) + 4;
+        int idbLength = 20 + optionLength(name.length) + optionLength(1) + 4;
+        ByteBuffer out = ByteBuffer.allocate(shbLength + idbLength).order(ByteOrder.LITTLE_ENDIAN);
+
+        out.putInt(BLOCK_SHB)
+                .putInt(shbLength)
+                .putInt(BYTE_ORDER_MAGIC)
+                .putShort((short) 1)  // Major version
+                .putShort((short) 0)  // Minor version
+                .putLong(-1);         // Section length，-1表示不指定
+        putOption(out, SHB_OS, os);
+        putOption(out, SHB_USERAPPL, application);
+        out.putInt(OPT_ENDOFOPT).putInt(shbLength);
+
+        out.putInt(BLOCK_IDB)
+                .putInt(idbLength)
+                .putShort((short) PcapFormat.LINKTYPE_RAW)
+                .putShort((short) 0)  // Reserved
+                .putInt(snaplen);
+        putOption(out, IF_NAME, name);
+        putOption(out, IF_TSRESOL, new byte[]{9});
+        out.putInt(OPT_ENDOFOPT).putInt(idbLength);
+        return out.array();
+    }
+
+    @Override
+    public boolean supportsComments() {
+        return true;
+    }
+
+    @Override
+    public int recordLength(int capturedLength, int commentLength) {
+        return EPB_OVERHEAD + pad(capturedLength) + (commentLength > 0 ? COMMENT_OVERHEAD + pad(commentLength) : 0);
+    }
+
+    @Override
+    public int writeRecord(ByteBuffer out, long timeNanos, byte[] data, int offset,
+                           int capturedLength, int originalLength, byte[] comment) {
+        if (capturedLength < 1) return 0;
+        int version = (data[offset] >> 4) & 0xF;
+        if (version != 4 && version != 6) return 0;
+
+        int commentLength = comment == null ? 0 : comment.length;
+        int blockLength = recordLength(capturedLength, commentLength);
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(BLOCK_EPB)
+                .putInt(blockLength)
+                .putInt(0)                          // Interface ID
+                .putInt((int) (timeNanos >>> 32))   // Timestamp (High)
+                .putInt((int) timeNanos)            // Timestamp (Low)
+                .putInt(capturedLength)             // Captured Packet Length
+                .putInt(originalLength);            // Original Packet Length
+        out.put(data, offset, capturedLength);
+        putPadding(out, capturedLength);
+        if (commentLength > 0) {
+            putOption(out, OPT_COMMENT, comment);
+            out.putInt(OPT_ENDOFOPT);
+        }
+        out.putInt(blockLength);
+        out.order(order);
+        return blockLength;
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static int optionLength(int valueLength) {
+        return 4 + pad(valueLength);
+    }
+
+    private static void putOption(ByteBuffer out, short code, byte[] value) {
+        out.putShort(code).putShort((short) value.length).put(value);
+        putPadding(out, value.length);
+    }
+
+    private static void putPadding(ByteBuffer out, int length) {
+        for (int i = length; i < pad(length); i++) {
+            out.put((byte) 0);
+        }
+    }
+}
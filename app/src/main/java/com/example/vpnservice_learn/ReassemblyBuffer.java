@@ -0,0 +1,227 @@
+package com.example.vpnservice_learn;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 客户端到上游方向的TCP乱序重组缓冲区
+ * 按序号保存尚未写入上游的分段，处理重叠和重复，连续部分可以一次性聚集写出。
+ * 分段直接引用收到的包缓冲区，不复制数据，写完、被覆盖或被淘汰时释放对应的缓冲区。
+ * 每条连接有独立的内存上限，所有连接共享一个全局上限。
+ * 非线程安全，只在连接所属的事件循环线程中使用。
+ */
+public class ReassemblyBuffer {
+
+    // 所有连接缓存的字节总数
+    private static final AtomicLong GLOBAL_BYTES = new AtomicLong();
+
+    private final int maxBytes;
+    private final long globalMaxBytes;
+    // 按序号回绕比较，缓冲区远小于2^31，比较结果始终有效
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>((a, b) -> Integer.compare(a - b, 0));
+
+    // 下一个要写入上游的序号
+    private int nextSequence;
+    private int bufferedBytes;
+    private boolean finReceived;
+    private int finSequence;
+
+    public ReassemblyBuffer(int nextSequence, int maxBytes, long globalMaxBytes) {
+        this.nextSequence = nextSequence;
+        this.maxBytes = maxBytes;
+        this.globalMaxBytes = globalMaxBytes;
+    }
+
+    public static long globalBytes() {
+        return GLOBAL_BYTES.get();
+    }
+
+    /**
+     * 放入一个分段，接管调用方持有的一次buffer引用，不再需要时由本类释放
+     *
+     * @param offset 负载在buffer中的起始下标
+     * @return 分段中是否有新数据或新的FIN，全部重复时返回false
+     */
+    public boolean offer(int sequence, PacketBuffer buffer, int offset, int length, boolean fin) {
+        boolean accepted = false;
+        if (fin && !finReceived) {
+            finReceived = true;
+            finSequence = sequence + length;
+            accepted = true;
+        }
+
+        int end = sequence + length;
+        // 裁掉已经写入上游的部分
+        if (nextSequence - sequence > 0) {
+            int skip = Math.min(nextSequence - sequence, length);
+            sequence += skip;
+            offset += skip;
+            length -= skip;
+        }
+
+        // 裁掉与前一个分段重叠的部分
+        Map.Entry<Integer, Segment> floor = length > 0 ? segments.floorEntry(sequence) : null;
+        if (floor != null) {
+            int floorEnd = floor.getKey() + floor.getValue().data.remaining();
+            if (floorEnd - sequence > 0) {
+                int skip = Math.min(floorEnd - sequence, length);
+                sequence += skip;
+                offset += skip;
+                length -= skip;
+            }
+        }
+
+        // 去掉被完全覆盖的后续分段，与后续分段部分重叠时裁掉尾部
+        if (length > 0) {
+            Iterator<Map.Entry<Integer, Segment>> iterator = segments.tailMap(sequence, true).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Segment> entry = iterator.next();
+                int start = entry.getKey();
+                if (start - end >= 0) break;
+                Segment segment = entry.getValue();
+                int size = segment.data.remaining();
+                if (start + size - end <= 0) {
+                    iterator.remove();
+                    discard(segment);
+                } else {
+                    length = start - sequence;
+                    break;
+                }
+            }
+        }
+
+        if (length <= 0 || !reserve(sequence, length)) {
+            buffer.release();
+            return accepted;
+        }
+        segments.put(sequence, new Segment(buffer, buffer.nioBuffer(offset, length)));
+        return true;
+    }
+
+    /**
+     * 把从下一个序号开始的连续分段放入out，用于聚集写
+     *
+     * @return 放入的个数
+     */
+    public int peek(ByteBuffer[] out) {
+        int count = 0;
+        int expected = nextSequence;
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+            if (count == out.length || entry.getKey() != expected) break;
+            Segment segment = entry.getValue();
+            out[count++] = segment.data;
+            expected += segment.data.remaining();
+        }
+        return count;
+    }
+
+    /**
+     * 根据聚集写之后各分段的position，移除已写出的数据
+     *
+     * @return 本次写出的字节数
+     */
+    public int release() {
+        int written = 0;
+        while (!segments.isEmpty()) {
+            Map.Entry<Integer, Segment> entry = segments.firstEntry();
+            if (entry.getKey() != nextSequence) break;
+            Segment segment = entry.getValue();
+            int consumed = segment.data.position() - segment.start;
+            if (consumed == 0) break;
+            segments.pollFirstEntry();
+            nextSequence += consumed;
+            written += consumed;
+            release(consumed);
+            if (segment.data.hasRemaining()) {
+                // 部分写出，剩余数据以新的起始序号重新放入
+                segment.start = segment.data.position();
+                segments.put(nextSequence, segment);
+                break;
+            }
+            segment.buffer.release();
+        }
+        return written;
+    }
+
+    /**
+     * 是否有可以立即写出的数据
+     */
+    public boolean hasContiguous() {
+        return !segments.isEmpty() && segments.firstKey() == nextSequence;
+    }
+
+    /**
+     * FIN之前的数据已经全部写出
+     */
+    public boolean isFinReached() {
+        return finReceived && nextSequence == finSequence;
+    }
+
+    public int nextSequence() {
+        return nextSequence;
+    }
+
+    public int bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * 从下一个要写入的序号起还能容纳的字节数，已缓存的乱序分段也在这个范围内，不会让窗口右沿后退
+     * 全局额度被其他连接占用时相应减少
+     */
+    public int available() {
+        long global = globalMaxBytes - GLOBAL_BYTES.get() + bufferedBytes;
+        return (int) Math.max(0, Math.min(maxBytes, global));
+    }
+
+    /**
+     * 连接关闭时释放缓冲区并归还全局额度
+     */
+    public void clear() {
+        for (Segment segment : segments.values()) {
+            discard(segment);
+        }
+        segments.clear();
+    }
+
+    /**
+     * 申请内存额度，超出上限时优先保证紧接着可写的分段，从序号最大的乱序分段开始淘汰
+     */
+    private boolean reserve(int sequence, int length) {
+        while (bufferedBytes + length > maxBytes || GLOBAL_BYTES.get() + length > globalMaxBytes) {
+            if (sequence != nextSequence || segments.isEmpty()) {
+                return false;
+            }
+            discard(segments.pollLastEntry().getValue());
+        }
+        bufferedBytes += length;
+        GLOBAL_BYTES.addAndGet(length);
+        return true;
+    }
+
+    private void discard(Segment segment) {
+        release(segment.data.remaining());
+        segment.buffer.release();
+    }
+
+    private void release(int length) {
+        bufferedBytes -= length;
+        GLOBAL_BYTES.addAndGet(-length);
+    }
+
+    private static final class Segment {
+        final PacketBuffer buffer;
+        // 指向负载的缓存ByteBuffer，position随写出前进
+        final ByteBuffer data;
+        int start;
+
+        Segment(PacketBuffer buffer, ByteBuffer data) {
+            this.buffer = buffer;
+            this.data = data;
+            this.start = data.position();
+        }
+    }
+}
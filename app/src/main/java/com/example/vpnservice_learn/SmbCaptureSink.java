@@ -0,0 +1,155 @@
+package com.example.vpnservice_learn;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import javax.net.SocketFactory;
+
+/**
+ * 抓包写到SMB共享
+ * 连接走被保护的socket，避免抓包上传的流量再次进入隧道。
+ */
+public class SmbCaptureSink implements CaptureSink {
+
+    private final Tunnel tunnel;
+    private final String server;
+    private final String shareName;
+    private final String user;
+    private final String password;
+
+    private SMBClient smbClient;
+    private Connection connection;
+    private DiskShare share;
+
+    public SmbCaptureSink(Tunnel tunnel, String server, String shareName, String user, String password) {
+        this.tunnel = tunnel;
+        this.server = server;
+        this.shareName = shareName;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    public Output open(String name) throws IOException {
+        if (share == null) {
+            connect();
+        }
+        File file = share.openFile(
+                name,
+                EnumSet.of(AccessMask.GENERIC_WRITE, AccessMask.FILE_READ_ATTRIBUTES),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN_IF,
+                null
+        );
+        return new Output() {
+            @Override
+            public long size() {
+                return file.getFileInformation().getStandardInformation().getEndOfFile();
+            }
+
+            @Override
+            public void write(ByteBuffer data, long position) {
+                file.write(data.array(), position, data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            }
+
+            @Override
+            public void close() {
+                file.close();
+            }
+        };
+    }
+
+    @Override
+    public void delete(String name) {
+        if (share != null && share.fileExists(name)) {
+            share.rm(name);
+        }
+    }
+
+    private void connect() throws IOException {
+        SmbConfig config = SmbConfig.builder()
+                .withSocketFactory(new SocketFactory() {
+                    @Override
+                    public Socket createSocket() throws IOException {
+                        // 未连接的套接字，由调用方连接
+                        return protectedSocket(null, null);
+                    }
+
+                    @Override
+                    public Socket createSocket(String host, int port) throws IOException {
+                        return protectedSocket(new InetSocketAddress(host, port), null);
+                    }
+
+                    @Override
+                    public Socket createSocket(InetAddress address, int port) throws IOException {
+                        return protectedSocket(new InetSocketAddress(address, port), null);
+                    }
+
+                    @Override
+                    public Socket createSocket(String host, int port, InetAddress localAddr, int localPort) throws IOException {
+                        return protectedSocket(new InetSocketAddress(host, port), new InetSocketAddress(localAddr, localPort));
+                    }
+
+                    @Override
+                    public Socket createSocket(InetAddress address, int port, InetAddress localAddr, int localPort) throws IOException {
+                        return protectedSocket(new InetSocketAddress(address, port), new InetSocketAddress(localAddr, localPort));
+                    }
+
+                    /**
+                     * 先绑定再保护，最后连接；带本地地址的重载不能用 new Socket(host, port, ...)，那样构造时就已连接
+                     *
+                     * @param remote 远端地址，为null时只绑定和保护，不连接
+                     * @param local  本地地址，为null时绑定临时端口
+                     */
+                    private Socket protectedSocket(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+                        Socket socket = new Socket();
+                        try {
+                            socket.bind(local);
+                            if (!tunnel.protect(socket)) {
+                                throw new IOException("VPN protect failed");
+                            }
+                            if (remote != null) {
+                                socket.connect(remote);
+                            }
+                        } catch (IOException e) {
+                            socket.close();
+                            throw e;
+                        }
+                        return socket;
+                    }
+                })
+                .build();
+
+        smbClient = new SMBClient(config);
+        connection = smbClient.connect(server);
+        Session session = connection.authenticate(new AuthenticationContext(user, password.toCharArray(), null));
+        share = (DiskShare) session.connectShare(shareName);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (share != null) share.close();
+            if (connection != null) connection.close();
+        } finally {
+            if (smbClient != null) smbClient.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.vpnservice_learn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界的单生产者单消费者环形队列，用于分片线程交给单个连接的事件循环的包
+ * 生产者只看槽位是否已被取走来判断是否已满，不读取消费者的序号；两端的序号只用于 {@link #size()}，
+ * 放在同一个数组中相隔128字节的位置，互不在同一缓存行上。
+ * 消费者由事件循环的任务驱动，不需要等待，因此没有阻塞的取出方法。
+ */
+public final class SpscRingBuffer<E> {
+
+    private static final int PAD = 16;
+    private static final int TAIL = PAD;
+    private static final int HEAD = PAD * 2;
+
+    private final AtomicLongArray sequences = new AtomicLongArray(PAD * 3);
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * @param capacity 容量，向上取整到2的幂
+     */
+    public SpscRingBuffer(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * 只能由生产者线程调用
+     *
+     * @return 队列已满时返回false，元素没有入队
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        long tail = sequences.get(TAIL);
+        int index = (int) tail & mask;
+        if (slots.get(index) != null) return false;
+        slots.lazySet(index, e);
+        sequences.lazySet(TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * 只能由消费者线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    public E poll() {
+        long head = sequences.get(HEAD);
+        int index = (int) head & mask;
+        E e = slots.get(index);
+        if (e == null) return null;
+        slots.lazySet(index, null);
+        sequences.lazySet(HEAD, head + 1);
+        return e;
+    }
+
+    public int size() {
+        long head = sequences.get(HEAD);
+        long tail = sequences.get(TAIL);
+        return (int) Math.max(0, Math.min(capacity, tail - head));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
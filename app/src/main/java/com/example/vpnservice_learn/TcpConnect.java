@@ -1,76 +1,171 @@
 package com.example.vpnservice_learn;
 
-import android.net.VpnService;
-
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.Packet;
-import org.pcap4j.packet.TcpPacket;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
-public class TcpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
-
-    private final VpnService vpnService;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TcpConnect implements PacketTool.TcpChannel, BytesParse.Parse, NioEngine.Handler {
+
+    // 单次从上游读取的最大字节数，直接分散读入按MSS划分的包缓冲区
+    private static final int READ_SIZE = 64 * 1024;
+    // 新连接单次读取的分段数，之后按实际读到的量自适应调整
+    private static final int INITIAL_READ_SEGMENTS = 4;
+    // 单次就绪事件最多读取的次数，避免一个连接占满事件循环
+    private static final int MAX_READS_PER_EVENT = 4;
+    // SYN未携带MSS选项时使用的默认值，也是客户端通告值的下限：主机都能接收576字节的数据报（RFC 1122、RFC 879）
+    private static final int DEFAULT_MSS = 536;
+    // 重组缓冲区上限：单连接以及所有连接合计，单连接的上限也是通告窗口的上限
+    private static final int MAX_REASSEMBLY_BYTES = 512 * 1024;
+    private static final long MAX_GLOBAL_REASSEMBLY_BYTES = 32L * 1024 * 1024;
+    // 单次聚集写最多包含的分段数
+    private static final int GATHER_SIZE = 64;
+    // 未处理的客户端分段上限，不小于通告窗口内按常见MSS能发出的分段数
+    private static final int QUEUE_CAPACITY = 512;
+    // 延迟确认的最长时间（RFC 1122要求不超过500ms），未确认的数据达到两个满长分段时立即确认（RFC 5681）
+    private static final long DELAYED_ACK_MILLIS = 40;
+    private static final int ACK_EVERY_SEGMENTS = 2;
+    // TUN写队列接近满时暂停读取上游、暂存放不进写队列的包，隔一段时间再检查
+    private static final long BACKPRESSURE_RETRY_MILLIS = 2;
+    // 上游关闭后客户端持续这么久既不发数据也不关闭，以RST结束连接，与Linux的tcp_fin_timeout相同
+    private static final long FIN_WAIT_MILLIS = 60_000;
+
+    private final Tunnel tunnel;
     private final BytesParse bytesParse;
 
-    private Socket socket;
-    private IpPacket dstIpPacket;
-    private static final ExecutorService executor = Executors.newCachedThreadPool();;
-
-    private final BlockingQueue<Optional<IpPacket>> queue = new LinkedBlockingQueue<>();
-
-    private  Future<?>  readFuture = null;
-    private  Future<?>  writeFuture = null;
-
-
+    private SocketChannel channel;
+    private final long[] flowKey;
+    // 连接建立时计算一次，构造回包时直接复用
+    private InetSocketAddress srcAddress;
+    private InetSocketAddress dstAddress;
+    private PacketTemplate template;
+    // SYN之前为不带选项的默认值，只用于回复RST
+    private TcpOptions tcpOptions = TcpOptions.none(0);
+
+    private NioEngine.EventLoop loop;
+    // 以下字段只在事件循环线程中访问
+    private SelectionKey key;
+    private ReassemblyBuffer reassembly;
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
+    // 分散读使用的包缓冲区及其负载部分，首次读取时按MSS分配
+    private PacketBuffer[] segments;
+    private ByteBuffer[] segmentViews;
+    // 读满时加倍、不足一半时减半，小流量连接不必每次准备64KB的缓冲区
+    private int readSegments = INITIAL_READ_SEGMENTS;
+    // 已读出但写队列没有接受的分段，留在segments的前部，序号尚未前进，由重试任务重新发送
+    private int heldSegments;
+    private int heldLength;
+    private boolean finAcknowledged;
+    private final PacketView flushView = new PacketView();
+    private boolean retryScheduled;
+    // 携带序号、写队列已满时放不进去的包，按顺序暂存，之后发出的包排在它们后面，由重试任务写入
+    private final ArrayDeque<PacketBuffer> pendingOut = new ArrayDeque<>();
+    // 正常关闭时还有暂存的包，全部写入写队列后再移除连接
+    private boolean removeWhenFlushed;
+    // 上游已发送完数据并已向客户端发送FIN，等待客户端关闭
+    private boolean upstreamEof;
+    // 上游关闭后最近一次收到客户端分段的时间
+    private long lastClientSegmentAt;
+    // 最近一次发给客户端的确认号，与当前确认号之差为尚未确认的字节数
+    private int ackSent;
+    private NioEngine.Timeout delayedAck;
+
+    // 客户端发来的包，分片线程retain后放入，事件循环取出后交给重组缓冲区释放
+    private final SpscRingBuffer<PacketBuffer> queue = new SpscRingBuffer<>(QUEUE_CAPACITY);
 
     private final AtomicBoolean srcFin = new AtomicBoolean();
 
+    // 引擎共享的指标，按名字只查找一次
+    private final LongAdder upstreamOut;
+    private final LongAdder upstreamIn;
+    private final LongAdder queued;
+    private final LongAdder queueDropped;
+    private final LongAdder connectFailures;
+    private final LongAdder connectTimeouts;
+    private final LongAdder finWaitTimeouts;
+    private final LongAdder synAbsorbed;
+    private final LongAdder synAckResent;
+    private final LongAdder pureAcks;
+    private final LongAdder delayedAcks;
+    private final LongAdder outDeferred;
+    private final Histogram connectLatency;
+
 
     private final AtomicInteger sequenceNumber = new AtomicInteger(1000);
     private final AtomicInteger ackNumber = new AtomicInteger();
 
-    public TcpConnect(VpnService vpnService, BytesParse bytesParse) {
-        this.vpnService = vpnService;
+    // 发送方向流控：客户端已确认的序号、按窗口缩放换算后的通告窗口以及协商的MSS，由分片线程根据客户端的包更新
+    private volatile int sendUnacknowledged;
+    private volatile int sendWindow;
+    private int mss = DEFAULT_MSS;
+    // 上游连接完成并已回复SYN-ACK，之前客户端的SYN重传被丢弃，其他包不处理
+    private volatile boolean connected;
+    // 客户端和本端的初始序号，用于识别重传的SYN并重发SYN-ACK
+    private int clientIsn;
+    private int initialSequence;
+    private long connectStartedAt;
+    private NioEngine.Timeout connectTimeout;
+    // 窗口已满时暂停读取上游，收到新的确认后恢复
+    private volatile boolean readPaused;
+    private final Runnable resumeTask = this::resumeRead;
+    private final Runnable flushTask = this::flush;
+    private final Runnable retryTask = () -> {
+        retryScheduled = false;
+        flushPendingOut();
+        if (flushHeldSegments()) {
+            resumeRead();
+        } else {
+            scheduleRetry();
+        }
+    };
+
+    public TcpConnect(Tunnel tunnel, BytesParse bytesParse, long[] flowKey) {
+        this.tunnel = tunnel;
         this.bytesParse = bytesParse;
+        this.flowKey = flowKey;
+        Metrics metrics = bytesParse.getMetrics();
+        upstreamOut = metrics.counter("tcp.upstream.out.bytes");
+        upstreamIn = metrics.counter("tcp.upstream.in.bytes");
+        queued = metrics.counter("queue.tcp");
+        queueDropped = metrics.counter("queue.tcp.dropped");
+        connectFailures = metrics.counter("tcp.connect.failures");
+        connectTimeouts = metrics.counter("tcp.connect.timeouts");
+        finWaitTimeouts = metrics.counter("tcp.finwait.timeouts");
+        synAbsorbed = metrics.counter("tcp.syn.absorbed");
+        synAckResent = metrics.counter("tcp.synack.resent");
+        pureAcks = metrics.counter("tcp.acks.pure");
+        delayedAcks = metrics.counter("tcp.acks.delayed");
+        outDeferred = metrics.counter("tcp.out.deferred");
+        connectLatency = metrics.histogram("tcp.connect.nanos");
     }
 
     @Override
-    public void parseIpPacket(IpPacket ipPacket) {
-
-        TcpPacket tcpPacket = (TcpPacket) ipPacket.getPayload();
+    public void parseIpPacket(PacketView packet) {
 
-        boolean syn = tcpPacket.getHeader().getSyn();
-        boolean fin = tcpPacket.getHeader().getFin();
-        boolean psh = tcpPacket.getHeader().getPsh();
-        boolean ack = tcpPacket.getHeader().getAck();
-        boolean rst = tcpPacket.getHeader().getRst();
+        boolean syn = packet.syn();
+        boolean fin = packet.fin();
+        boolean rst = packet.rst();
 
-        int sequenceNumber1 = tcpPacket.getHeader().getSequenceNumber();
-        int acknowledgmentNumber = tcpPacket.getHeader().getAcknowledgmentNumber();
+        int sequenceNumber1 = packet.sequenceNumber();
+        int acknowledgmentNumber = packet.acknowledgmentNumber();
 
         if (syn) {
 
-            try {
-                if(socket == null){
-                    connection(ipPacket);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            if (channel == null) {
+                connection(packet);
+            } else if (!connected) {
+                // 上游连接尚未完成，客户端重传的SYN等连接完成后统一回复
+                synAbsorbed.increment();
+            } else if (sequenceNumber1 == clientIsn) {
+                // SYN-ACK丢失，客户端重传了同一个SYN，在事件循环中按原来的序号重发
+                loop.execute(this::resendSynAck);
             }
         } else {
 
@@ -79,10 +174,10 @@ public class TcpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
                 return;
             }
 
-            if (socket == null) {
+            if (channel == null) {
 
                 //rst
-                this.dstIpPacket = ipPacket;
+                bindPacket(packet);
                 this.ackNumber.set(sequenceNumber1);
                 this.sequenceNumber.set(acknowledgmentNumber);
                 PacketTool.sendRstPacket(this);
@@ -90,141 +185,630 @@ public class TcpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
                 return;
             }
 
+            if (!connected) {
+                // 还没有回复SYN-ACK，客户端不应发送其他包
+                return;
+            }
 
-            Packet payload = tcpPacket.getPayload();
-            if (payload != null && payload.getRawData()!=null && payload.getRawData().length > 0) {
-                queue.offer(Optional.of(ipPacket));
-            } else {
-                if (fin) {
-                    queue.offer(Optional.ofNullable(null));
+            tcpOptions.onSegment(packet);
+            if (packet.ack()) {
+                onAcknowledged(packet.acknowledgmentNumber(), tcpOptions.sendWindow(packet.window()));
+            }
+
+            if (packet.payloadLength() > 0 || fin) {
+                // 读缓冲区会被分片线程释放，跨线程前增加引用
+                PacketBuffer buffer = packet.buffer().retain();
+                if (!queue.offer(buffer)) {
+                    // 事件循环跟不上时丢弃，分段没有被确认，客户端会重传
+                    buffer.release();
+                    queueDropped.increment();
+                    return;
                 }
+                queued.increment();
+                // 引擎已关闭时分段留在队列中，由读线程退出时统一释放
+                loop.execute(flushTask);
             }
 
         }
 
     }
 
-    public void connection(IpPacket ipPacket) throws Exception {
-        InetAddress dstAdder = ipPacket.getHeader().getDstAddr();
-        TcpPacket tcpPacket = (TcpPacket) ipPacket.getPayload();
-        int dstPort = tcpPacket.getHeader().getDstPort().valueAsInt();
-        socket = new Socket();
-        socket.bind(null);
-        vpnService.protect(socket);
+    /**
+     * 收到SYN后以非阻塞方式连接上游，由事件循环等待连接完成，不阻塞分片线程
+     * 连接完成时回复SYN-ACK，失败或超时时回复RST
+     * 选项在收到SYN时按客户端提供的选项协商，SYN-ACK和之后的包都按协商结果构造
+     */
+    public void connection(PacketView packet) {
+        bindPacket(packet);
+        clientIsn = packet.sequenceNumber();
+        initialSequence = sequenceNumber.get();
+        ackNumber.set(clientIsn);
+        // 受TUN MTU限制，分段加上头部不能超过一个池化缓冲区
+        int maxSegment = BufferPool.MTU - template.headerLength();
+        tcpOptions = TcpOptions.negotiate(packet, maxSegment, MAX_REASSEMBLY_BYTES);
+        mss = segmentSize(packet.mss(), maxSegment, tcpOptions.length());
+        // SYN中的窗口不缩放
+        sendWindow = packet.window();
+        reassembly = new ReassemblyBuffer(packet.sequenceNumber() + 1, MAX_REASSEMBLY_BYTES, MAX_GLOBAL_REASSEMBLY_BYTES);
+
+        loop = bytesParse.getEngine().next();
+        connectStartedAt = System.nanoTime();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(null);
+            if (!tunnel.protect(channel.socket())) {
+                // 未保护的套接字会被路由回TUN，按连接失败回RST
+                connectFailed();
+                return;
+            }
+            boolean connectedNow = channel.connect(srcAddress);
+            loop.execute(() -> register(connectedNow));
+        } catch (IOException e) {
+            connectFailed();
+        }
+    }
+
+    /**
+     * 发给客户端的每个分段的负载长度
+     * 客户端通告的MSS低于 {@link #DEFAULT_MSS} 时按下限处理，过小或为0的值会让按MSS划分缓冲区时除以0或得到负数；
+     * MSS不含选项，每个包携带的时间戳选项占用负载的空间（RFC 6691）
+     *
+     * @param clientMss     SYN中的MSS选项，没有时为0或负数
+     * @param maxSegment    受TUN MTU限制的最大负载
+     * @param optionsLength 每个包携带的选项长度
+     */
+    static int segmentSize(int clientMss, int maxSegment, int optionsLength) {
+        int advertised = Math.max(clientMss, DEFAULT_MSS);
+        return Math.max(1, Math.min(advertised, maxSegment) - optionsLength);
+    }
+
+    /**
+     * 在事件循环中注册通道，连接未完成时等待可连接事件并开始计时
+     */
+    private void register(boolean connectedNow) {
         try {
-            socket.connect(new InetSocketAddress(dstAdder, dstPort));
+            if (connectedNow) {
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+                onConnected();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                connectTimeout = loop.schedule(this::onConnectTimeout,
+                        bytesParse.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
         } catch (IOException e) {
+            // 注册前客户端已发来RST，通道已关闭
             close();
-            throw e;
         }
+    }
 
-        this.dstIpPacket = ipPacket;
-        ackNumber.set(tcpPacket.getHeader().getSequenceNumber());
+    private void finishConnect() {
+        try {
+            if (!channel.finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            connectFailed();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        onConnected();
+    }
 
+    /**
+     * 上游连接完成，回复SYN-ACK
+     * 先确定发送起点并标记已连接，再放入SYN-ACK，分片线程处理客户端随后的确认时已能看到这些状态
+     */
+    private void onConnected() {
+        if (connectTimeout != null) {
+            connectTimeout.cancel();
+        }
+        connectLatency.record(System.nanoTime() - connectStartedAt);
+        sendUnacknowledged = sequenceNumber.get() + 1;
+        connected = true;
         //连接成功，发送握手
         PacketTool.sendSynAckPacket(this);
+        ackSent = ackNumber.get();
+    }
 
-        readFuture = executor.submit(this::read);
-        writeFuture = executor.submit(this::write);
+    /**
+     * 客户端没有收到SYN-ACK，序号和确认号都与第一次相同
+     */
+    private void resendSynAck() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        synAckResent.increment();
+        PacketTool.resendSynAckPacket(this, initialSequence, clientIsn + 1);
     }
 
-    private void read() {
+    private void onConnectTimeout() {
+        if (connected || !channel.isOpen()) {
+            return;
+        }
+        connectTimeouts.increment();
+        connectFailed();
+    }
 
-        try (InputStream inputStream = socket.getInputStream()) {
-            int len = -1;
-            byte[] bt = new byte[1024];
-            while ((len = (inputStream.read(bt))) > 0) {
+    /**
+     * 上游拒绝、不可达或超时，以RST拒绝客户端的SYN
+     */
+    private void connectFailed() {
+        connectFailures.increment();
+        // 客户端只接受确认了其SYN的RST，确认号为初始序号加1
+        ackNumber.incrementAndGet();
+        PacketTool.sendRstAckPacket(this);
+        close();
+    }
 
-                if(srcFin.get()){
-                    break;
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            finishConnect();
+            return;
+        }
+        if (key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    @Override
+    public void onError(Exception e) {
+        close();
+    }
+
+    /**
+     * 处理客户端的确认，窗口有空余且读取已暂停时通知事件循环恢复读取
+     */
+    private void onAcknowledged(int acknowledgmentNumber, int window) {
+        if (acknowledgmentNumber - sendUnacknowledged > 0) {
+            sendUnacknowledged = acknowledgmentNumber;
+        }
+        sendWindow = window;
+        if (readPaused) {
+            loop.execute(resumeTask);
+        }
+    }
+
+    /**
+     * 客户端窗口内还可以发送的字节数
+     */
+    private int sendable() {
+        int inFlight = sequenceNumber.get() - sendUnacknowledged;
+        return sendWindow - inFlight;
+    }
+
+    private void resumeRead() {
+        if (!readPaused || upstreamEof || key == null || !key.isValid() || sendable() <= 0) {
+            return;
+        }
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        read();
+    }
+
+    /**
+     * 窗口已满，停止关注可读事件
+     * 先置标志再复查窗口，与分片线程的 onAcknowledged 配合保证不会漏掉恢复
+     */
+    private boolean pauseRead() {
+        readPaused = true;
+        if (sendable() > 0) {
+            readPaused = false;
+            return false;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * 上游数据可读，在客户端窗口允许的范围内直接读入按MSS划分的包缓冲区，整批转发给客户端
+     */
+    private void read() {
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+                // 之前没有交出的分段排在新读出的数据和FIN之前
+                if (!flushHeldSegments()) {
+                    pauseForBackpressure();
+                    return;
+                }
+                if (srcFin.get()) {
+                    closeUpstream();
+                    return;
+                }
+                int sendable = sendable();
+                if (sendable <= 0) {
+                    if (pauseRead()) {
+                        return;
+                    }
+                    sendable = sendable();
+                }
+                int limit = Math.min(READ_SIZE, sendable);
+                int count = Math.min((limit + mss - 1) / mss, readSegments);
+                // 先在写队列中预留位置再读取，读出的分段已分配序号，必须全部放入
+                if (!pendingOut.isEmpty() || !bytesParse.reserveData(count)) {
+                    pauseForBackpressure();
+                    return;
                 }
+                long len;
+                try {
+                    len = scatterRead(Math.min(limit, count * mss), count);
+                } catch (IOException e) {
+                    bytesParse.cancelReserved(count);
+                    throw e;
+                }
+                int used = len > 0 ? (int) ((len + mss - 1) / mss) : 0;
+                bytesParse.cancelReserved(count - used);
+                if (len == 0) {
+                    return;
+                }
+                if (len < 0) {
+                    onUpstreamEof();
+                    return;
+                }
+                upstreamIn.add(len);
                 // push
-                byte[] data = Arrays.copyOfRange(bt, 0, len);
-                PacketTool.sendDataPacket(this, data);
-                Thread.sleep(10);
+                if (!sendSegments(used, (int) len)) {
+                    pauseForBackpressure();
+                    return;
+                }
+                if (used == count) {
+                    readSegments = Math.min(readSegments * 2, segments.length);
+                } else if (used * 2 < count) {
+                    readSegments = Math.max(readSegments / 2, 1);
+                }
+                // 数据包携带了最新的确认号，待发的延迟确认不再需要
+                onAckSent();
+                if (used < count) {
+                    // 没有读满，上游暂时没有更多数据
+                    return;
+                }
             }
-
-        } catch (Exception exception) {
+        } catch (IOException exception) {
             exception.printStackTrace();
+            closeUpstream();
+        }
+    }
+
+    /**
+     * 把segments前部已读入的分段交给写队列，调用前已为它们预留了位置
+     * 写队列不接受时归还预留并保留这些分段，序号不前进，数据已从上游读出，不能丢弃
+     */
+    private boolean sendSegments(int count, int length) {
+        if (!PacketTool.sendDataSegments(this, segments, count, mss, length)) {
+            bytesParse.cancelReserved(count);
+            heldSegments = count;
+            heldLength = length;
+            outDeferred.increment();
+            return false;
+        }
+        Arrays.fill(segments, 0, count, null);
+        Arrays.fill(segmentViews, 0, count, null);
+        heldSegments = 0;
+        heldLength = 0;
+        return true;
+    }
+
+    /**
+     * 重新发送之前没有交出的分段
+     *
+     * @return 没有保留的分段时返回true
+     */
+    private boolean flushHeldSegments() {
+        if (heldSegments == 0) {
+            return true;
+        }
+        if (!pendingOut.isEmpty() || !bytesParse.reserveData(heldSegments)) {
+            return false;
+        }
+        return sendSegments(heldSegments, heldLength);
+    }
+
+    private void releaseHeldSegments() {
+        for (int i = 0; i < heldSegments; i++) {
+            segments[i].release();
+            segments[i] = null;
+            segmentViews[i] = null;
+        }
+        heldSegments = 0;
+        heldLength = 0;
+    }
+
+    /**
+     * 从上游分散读入最多count个池化缓冲区，每个缓冲区前部留出头部和选项的空间，读满一个MSS再填下一个
+     *
+     * @param limit 最多读取的字节数
+     * @return 读取的字节数，用到的缓冲区留在segments的前部，其余已归还
+     */
+    private long scatterRead(int limit, int count) throws IOException {
+        if (segments == null) {
+            int max = (READ_SIZE + mss - 1) / mss;
+            segments = new PacketBuffer[max];
+            segmentViews = new ByteBuffer[max];
+        }
+        BufferPool pool = bytesParse.getBufferPool();
+        int offset = PacketTool.segmentOffset(this);
+        for (int i = 0; i < count; i++) {
+            int size = Math.min(mss, limit - i * mss);
+            segments[i] = pool.acquire(offset + size);
+            segmentViews[i] = segments[i].nioBuffer(offset, size);
+        }
+        long len = -1;
+        try {
+            len = channel.read(segmentViews, 0, count);
         } finally {
+            int used = len > 0 ? (int) ((len + mss - 1) / mss) : 0;
+            for (int i = used; i < count; i++) {
+                segments[i].release();
+                segments[i] = null;
+                segmentViews[i] = null;
+            }
+        }
+        return len;
+    }
 
-            if(!socket.isClosed()){
-                close();
-                if (!srcFin.getAndSet(true)) {
-                    //fin
-                    PacketTool.sendFinPacket(this);
-                }
+    /**
+     * TUN写队列接近满，停止读取上游，由定时任务稍后重试
+     * 上游的数据留在套接字接收缓冲区中，由TCP自身的流控让服务器放慢
+     */
+    private void pauseForBackpressure() {
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        scheduleRetry();
+    }
+
+    private void scheduleRetry() {
+        if (!retryScheduled) {
+            retryScheduled = true;
+            loop.schedule(retryTask, BACKPRESSURE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 按顺序把暂存的包写入写队列，写队列仍满时稍后再试
+     * 连接已被客户端RST时不再需要发出，直接释放
+     */
+    private void flushPendingOut() {
+        if (!removeWhenFlushed && !channel.isOpen()) {
+            releasePendingOut();
+            return;
+        }
+        PacketBuffer packet;
+        while ((packet = pendingOut.peek()) != null) {
+            if (!bytesParse.offerData(packet)) {
+                scheduleRetry();
+                return;
             }
+            pendingOut.poll();
+        }
+        if (removeWhenFlushed) {
+            removeWhenFlushed = false;
+            bytesParse.removeKey(flowKey, this);
         }
     }
 
-    private void write() {
-        try {
-            OutputStream outputStream = socket.getOutputStream();
-            while (!Thread.interrupted()) {
-                Optional<IpPacket> optional = queue.take();
-                boolean fin;
-                if(optional.isPresent()){
-                    IpPacket packet = optional.get();
-                    TcpPacket tcpPacket = (TcpPacket) packet.getPayload();
-
-                    //防止重复写入
-                    int sequenceNumber1 = tcpPacket.getHeader().getSequenceNumber();
-                    if(this.ackNumber.get()!=sequenceNumber1){
-                        continue;
-                    }
+    private void releasePendingOut() {
+        PacketBuffer packet;
+        while ((packet = pendingOut.poll()) != null) {
+            packet.release();
+        }
+    }
 
-                    byte[] rawData = tcpPacket.getPayload().getRawData();
+    /**
+     * 上游不再发送数据，向客户端发送FIN后保留连接，继续转发客户端的数据，直到收到客户端的FIN或RST
+     * 立即移除连接时，客户端对仍在途中的数据的确认会收到RST，客户端可能因此丢弃尚未读取的数据
+     */
+    private void onUpstreamEof() {
+        if (srcFin.getAndSet(true)) {
+            // 客户端已先关闭
+            close();
+            return;
+        }
+        upstreamEof = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        //fin
+        PacketTool.sendFinPacket(this);
+        onAckSent();
+        lastClientSegmentAt = System.nanoTime();
+        loop.schedule(this::onFinWaitTimeout, FIN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-                    outputStream.write(rawData);
+    /**
+     * 客户端一直没有关闭时移除连接；期间客户端仍在发送数据则顺延
+     */
+    private void onFinWaitTimeout() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastClientSegmentAt);
+        if (idle < FIN_WAIT_MILLIS) {
+            loop.schedule(this::onFinWaitTimeout, FIN_WAIT_MILLIS - idle, TimeUnit.MILLISECONDS);
+            return;
+        }
+        finWaitTimeouts.increment();
+        PacketTool.sendRstPacket(this);
+        close();
+    }
 
-                    Thread.sleep(1);//多余，为了Wireshark显示好看
-                    // ack
-                    PacketTool.sendAckPacket(this,rawData.length);
-                    fin = tcpPacket.getHeader().getFin();
+    /**
+     * 上游出错，或双方都已关闭
+     */
+    private void closeUpstream() {
+        if (channel.isOpen()) {
+            if (!srcFin.getAndSet(true)) {
+                //fin，先于close放入，写队列满时随暂存的包一起写完再移除连接
+                PacketTool.sendFinPacket(this);
+            }
+            close();
+        }
+    }
 
-                }else{
-                    fin =true;
+    /**
+     * 把客户端发来的分段放入重组缓冲区，连续部分一次聚集写入上游并只回复一个累计确认，
+     * 写不完时等待可写事件
+     */
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            // 连接已关闭，丢弃关闭之后才到达的分段
+            clearBuffers();
+            return;
+        }
+        try {
+            boolean duplicate = false;
+            int segments = 0;
+            PacketView packet = flushView;
+            PacketBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                queued.decrement();
+                packet.wrap(buffer);
+                if (packet.payloadLength() > 0) {
+                    segments++;
                 }
-                if (fin) {
-                    if (!srcFin.getAndSet(true)) {
-                        //fin
-                        PacketTool.sendFinPacket(this);
-                        PacketTool.sendAckPacket(this,1);
-                    } else {
-                        PacketTool.sendAckPacket(this, 1);
-                        close();
-                    }
+                if (!reassembly.offer(packet.sequenceNumber(), buffer, packet.payloadOffset(),
+                        packet.payloadLength(), packet.fin())) {
+                    duplicate = true;
+                }
+            }
+
+            int written = 0;
+            int count;
+            while ((count = reassembly.peek(gather)) > 0) {
+                channel.write(gather, 0, count);
+                int released = reassembly.release();
+                written += released;
+                if (released == 0 || reassembly.hasContiguous()) {
+                    break;
                 }
+            }
+            if (reassembly.hasContiguous()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+
+            if (upstreamEof && segments > 0) {
+                lastClientSegmentAt = System.nanoTime();
+            }
+            if (written > 0) {
+                upstreamOut.add(written);
+                ackNumber.addAndGet(written);
+            }
+            // 之后发出的包按重组缓冲区实际可容纳的字节数通告窗口
+            tcpOptions.setReceiveWindow(reassembly.available());
+            boolean outOfOrder = segments > 0 && reassembly.bufferedBytes() > 0 && !reassembly.hasContiguous();
+            if (duplicate || outOfOrder) {
+                // 重传的分段已经写过，或者中间缺了分段，立即确认让客户端停止重传或尽快快速重传
+                sendAck();
+            } else if (ackNumber.get() != ackSent) {
+                // 按字节比较，客户端的小分段不会让确认提前发出
+                if (ackNumber.get() - ackSent >= ACK_EVERY_SEGMENTS * mss) {
+                    // ack
+                    sendAck();
+                } else if (delayedAck == null) {
+                    delayedAck = loop.schedule(this::onDelayedAck, DELAYED_ACK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
 
+            if (reassembly.isFinReached() && !finAcknowledged) {
+                finAcknowledged = true;
+                ackNumber.incrementAndGet();
+                if (!srcFin.getAndSet(true)) {
+                    //fin，同时确认客户端的FIN
+                    PacketTool.sendFinPacket(this);
+                    onAckSent();
+                } else {
+                    sendAck();
+                    close();
+                }
             }
         } catch (Exception e) {
             close();
         }
+    }
 
+    /**
+     * 立即发送纯确认，取消尚未到期的延迟确认
+     */
+    private void sendAck() {
+        PacketTool.sendAckPacket(this);
+        pureAcks.increment();
+        onAckSent();
+    }
+
+    /**
+     * 已有包携带当前确认号发给客户端
+     */
+    private void onAckSent() {
+        ackSent = ackNumber.get();
+        if (delayedAck != null) {
+            delayedAck.cancel();
+            delayedAck = null;
+        }
+    }
+
+    /**
+     * 延迟确认到期，期间没有数据包捎带确认时单独发送
+     */
+    private void onDelayedAck() {
+        delayedAck = null;
+        if (key == null || !key.isValid() || ackNumber.get() == ackSent) {
+            return;
+        }
+        delayedAcks.increment();
+        sendAck();
     }
 
     private void close() {
         try {
-            if (socket != null) {
-                socket.close();
+            if (channel != null) {
+                // 关闭通道会同时取消Selector上的注册
+                channel.close();
             }
         } catch (IOException ignored) {
 
         }
 
-        if (dstIpPacket != null) {
-            bytesParse.removeKey(dstIpPacket);
+        if (reassembly != null) {
+            // 重组缓冲区只在事件循环线程中访问
+            loop.execute(this::clearBuffers);
         }
 
-        if(readFuture!=null){
-            readFuture.cancel(true);
+        if (loop != null && loop.inLoop() && !pendingOut.isEmpty()) {
+            // 在事件循环中正常关闭，FIN等包还暂存着，写完后再移除连接；引擎退出时由releaseQueued释放
+            removeWhenFlushed = true;
+            return;
         }
+        bytesParse.removeKey(flowKey, this);
 
-        if(writeFuture!=null){
-            writeFuture.cancel(true);
+    }
+
+    /**
+     * 释放尚未处理以及已缓存的客户端分段和没有交出的上游数据，客户端RST时一并释放暂存的回包
+     */
+    private void clearBuffers() {
+        releaseQueued();
+        reassembly.clear();
+        releaseHeldSegments();
+        if (!removeWhenFlushed) {
+            releasePendingOut();
         }
+    }
 
+    @Override
+    public void releaseQueued() {
+        PacketBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            queued.decrement();
+            buffer.release();
+        }
+        if (loop == null || !loop.inLoop()) {
+            // 读线程退出时调用，事件循环已停止
+            releasePendingOut();
+            releaseHeldSegments();
+        }
     }
 
     @Override
@@ -237,27 +821,68 @@ public class TcpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
         return ackNumber;
     }
 
+    /**
+     * 事件循环发出的包携带序号或确认，写队列满时暂存并保持顺序，不丢弃；
+     * 分片线程只会发出拒绝连接的RST，写队列满时可以丢弃
+     */
     @Override
-    public void sendToVpn(byte[] packetData) {
-        bytesParse.pushData(packetData);
+    public void sendToVpn(PacketBuffer packet) {
+        if (loop == null || !loop.inLoop()) {
+            bytesParse.pushData(packet);
+            return;
+        }
+        if (pendingOut.isEmpty() && bytesParse.offerData(packet)) {
+            return;
+        }
+        pendingOut.add(packet);
+        outDeferred.increment();
+        scheduleRetry();
     }
 
+    /**
+     * 读取上游之前已经用 {@link BytesParse#reserveData} 预留了位置；
+     * 有暂存的包时不能越过它们，返回false由调用方保留这一批
+     */
     @Override
-    public InetSocketAddress getSrcAddress() {
-        InetAddress dstAdder = dstIpPacket.getHeader().getDstAddr();
-        TcpPacket tcpPacket = (TcpPacket) dstIpPacket.getPayload();
-        int dstPort = tcpPacket.getHeader().getDstPort().valueAsInt();
+    public boolean sendToVpn(PacketBuffer[] packets, int count) {
+        if (!pendingOut.isEmpty()) {
+            return false;
+        }
+        bytesParse.pushReserved(packets, count);
+        return true;
+    }
 
-        return new InetSocketAddress(dstAdder, dstPort);
+    @Override
+    public InetSocketAddress getSrcAddress() {
+        return srcAddress;
     }
 
     @Override
     public InetSocketAddress getDstAddress() {
-        InetAddress srcAdder = dstIpPacket.getHeader().getSrcAddr();
-        TcpPacket tcpPacket = (TcpPacket) dstIpPacket.getPayload();
-        int srcPort = tcpPacket.getHeader().getSrcPort().valueAsInt();
-        return new InetSocketAddress(srcAdder, srcPort);
+        return dstAddress;
+    }
+
+    @Override
+    public PacketTemplate getTemplate() {
+        return template;
+    }
+
+    @Override
+    public TcpOptions getTcpOptions() {
+        return tcpOptions;
     }
 
+    @Override
+    public BufferPool getBufferPool() {
+        return bytesParse.getBufferPool();
+    }
 
+    /**
+     * 记录连接的首个包，回包时源/目的地址与其相反
+     */
+    private void bindPacket(PacketView packet) {
+        this.srcAddress = new InetSocketAddress(packet.dstAddress(), packet.dstPort());
+        this.dstAddress = new InetSocketAddress(packet.srcAddress(), packet.srcPort());
+        this.template = PacketTemplate.tcp(srcAddress, dstAddress, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS);
+    }
 }
@@ -0,0 +1,228 @@
+package com.example.vpnservice_learn;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单条TCP连接协商的选项以及通告的接收窗口
+ * MSS总是通告；窗口缩放、SACK许可和时间戳只在客户端的SYN中携带时才在SYN-ACK中回应，回应后双方生效
+ * （RFC 7323、RFC 2018）。之后每个发给客户端的包的窗口字段和时间戳选项都由这里生成。
+ * 本端不发送SACK块，客户端ACK中的SACK块也不使用，回应SACK许可只是允许客户端按选择确认处理本端的乱序。
+ */
+public final class TcpOptions {
+
+    private static final int KIND_NOP = 1;
+    private static final int KIND_MSS = 2;
+    private static final int KIND_WINDOW_SCALE = 3;
+    private static final int KIND_SACK_PERMITTED = 4;
+    private static final int KIND_TIMESTAMP = 8;
+    // 时间戳选项前补两个NOP，对齐到4字节
+    static final int TIMESTAMP_LENGTH = 12;
+    private static final int MAX_WINDOW_SCALE = 14;
+    private static final int MAX_WINDOW_FIELD = 0xFFFF;
+
+    // 通告给客户端的MSS
+    private final int mss;
+    // 客户端窗口字段需要左移的位数，以及本端窗口字段右移的位数，未协商时都为0
+    private final int sendScale;
+    private final int receiveScale;
+    private final boolean windowScale;
+    private final boolean sackPermitted;
+    private final boolean timestamps;
+    // 每条连接随机的时间戳初始值，与毫秒时钟相加，不暴露本机的单调时钟（RFC 7323第7.1节）
+    private final int timestampOffset;
+    // 客户端最近的时间戳，作为回显值（TS.Recent），由分片线程更新
+    private volatile int timestampRecent;
+    // 当前可以接收的字节数，由事件循环线程按缓冲区空间更新
+    private volatile int receiveWindow;
+
+    private TcpOptions(int mss, int clientScale, int receiveScale, boolean sackPermitted, boolean timestamps,
+                       int timestampRecent, int receiveWindow) {
+        this.mss = mss;
+        this.windowScale = clientScale >= 0;
+        this.sendScale = windowScale ? Math.min(clientScale, MAX_WINDOW_SCALE) : 0;
+        this.receiveScale = windowScale ? receiveScale : 0;
+        this.sackPermitted = sackPermitted;
+        this.timestamps = timestamps;
+        this.timestampOffset = timestamps ? ThreadLocalRandom.current().nextInt() : 0;
+        this.timestampRecent = timestampRecent;
+        this.receiveWindow = receiveWindow;
+    }
+
+    /**
+     * 未协商任何选项，用于回复不属于任何连接的包
+     */
+    public static TcpOptions none(int receiveWindow) {
+        return new TcpOptions(0, -1, 0, false, false, 0, receiveWindow);
+    }
+
+    /**
+     * 根据客户端SYN中的选项决定回应
+     *
+     * @param mss           通告给客户端的MSS
+     * @param receiveBuffer 单连接接收缓冲区的上限，据此选择本端的窗口缩放位数
+     */
+    public static TcpOptions negotiate(PacketView syn, int mss, int receiveBuffer) {
+        int timestamp = syn.timestampOption();
+        return new TcpOptions(mss, syn.windowScale(), scaleFor(receiveBuffer), syn.sackPermitted(),
+                timestamp >= 0, timestamp >= 0 ? syn.timestampValue(timestamp) : 0, receiveBuffer);
+    }
+
+    /**
+     * 能用16位窗口字段表示bytes所需的最小缩放位数
+     */
+    static int scaleFor(int bytes) {
+        int scale = 0;
+        while (scale < MAX_WINDOW_SCALE && (MAX_WINDOW_FIELD << scale) < bytes) {
+            scale++;
+        }
+        return scale;
+    }
+
+    /**
+     * SYN-ACK的选项长度
+     */
+    public int synLength() {
+        int length = 4;
+        if (timestamps) {
+            length += TIMESTAMP_LENGTH;
+        } else if (sackPermitted) {
+            length += 4;
+        }
+        if (windowScale) {
+            length += 4;
+        }
+        return length;
+    }
+
+    /**
+     * 写入SYN-ACK的选项，布局与Linux相同：MSS，SACK许可与时间戳共用对齐，最后是窗口缩放
+     *
+     * @return 写入的长度，与 {@link #synLength()} 一致
+     */
+    public int writeSyn(byte[] out, int offset) {
+        int index = offset;
+        out[index] = KIND_MSS;
+        out[index + 1] = 4;
+        out[index + 2] = (byte) (mss >> 8);
+        out[index + 3] = (byte) mss;
+        index += 4;
+        if (timestamps) {
+            if (sackPermitted) {
+                out[index] = KIND_SACK_PERMITTED;
+                out[index + 1] = 2;
+            } else {
+                out[index] = KIND_NOP;
+                out[index + 1] = KIND_NOP;
+            }
+            writeTimestamp(out, index + 2);
+            index += TIMESTAMP_LENGTH;
+        } else if (sackPermitted) {
+            out[index] = KIND_NOP;
+            out[index + 1] = KIND_NOP;
+            out[index + 2] = KIND_SACK_PERMITTED;
+            out[index + 3] = 2;
+            index += 4;
+        }
+        if (windowScale) {
+            out[index] = KIND_NOP;
+            out[index + 1] = KIND_WINDOW_SCALE;
+            out[index + 2] = 3;
+            out[index + 3] = (byte) receiveScale;
+            index += 4;
+        }
+        return index - offset;
+    }
+
+    /**
+     * 除SYN以外每个包的选项长度，协商了时间戳时每个包都要携带
+     */
+    public int length() {
+        return timestamps ? TIMESTAMP_LENGTH : 0;
+    }
+
+    /**
+     * 写入除SYN以外的包的选项
+     *
+     * @return 写入的长度，与 {@link #length()} 一致
+     */
+    public int write(byte[] out, int offset) {
+        if (!timestamps) return 0;
+        out[offset] = KIND_NOP;
+        out[offset + 1] = KIND_NOP;
+        writeTimestamp(out, offset + 2);
+        return TIMESTAMP_LENGTH;
+    }
+
+    private void writeTimestamp(byte[] out, int index) {
+        out[index] = KIND_TIMESTAMP;
+        out[index + 1] = 10;
+        writeInt(out, index + 2, (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + timestampOffset);
+        writeInt(out, index + 6, timestampRecent);
+    }
+
+    /**
+     * 处理客户端的包，记录较新的时间戳用于回显
+     */
+    public void onSegment(PacketView packet) {
+        if (!timestamps) return;
+        int option = packet.timestampOption();
+        if (option < 0) return;
+        int value = packet.timestampValue(option);
+        if (value - timestampRecent > 0) {
+            timestampRecent = value;
+        }
+    }
+
+    /**
+     * 窗口字段的值，SYN和SYN-ACK中的窗口不缩放
+     */
+    public int windowField(boolean syn) {
+        int window = syn ? receiveWindow : receiveWindow >> receiveScale;
+        return Math.min(window, MAX_WINDOW_FIELD);
+    }
+
+    /**
+     * 客户端窗口字段对应的字节数，SYN中的窗口不缩放
+     */
+    public int sendWindow(int field) {
+        return field << sendScale;
+    }
+
+    public void setReceiveWindow(int bytes) {
+        this.receiveWindow = Math.max(0, bytes);
+    }
+
+    public int getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    public int getMss() {
+        return mss;
+    }
+
+    public boolean isWindowScale() {
+        return windowScale;
+    }
+
+    public boolean isSackPermitted() {
+        return sackPermitted;
+    }
+
+    public boolean isTimestamps() {
+        return timestamps;
+    }
+
+    private static void writeInt(byte[] out, int index, int value) {
+        out[index] = (byte) (value >> 24);
+        out[index + 1] = (byte) (value >> 16);
+        out[index + 2] = (byte) (value >> 8);
+        out[index + 3] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        return "mss=" + mss + " wscale=" + (windowScale ? sendScale + "/" + receiveScale : "off")
+                + " sack=" + sackPermitted + " ts=" + timestamps;
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.vpnservice_learn;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮
+ * 大量精度要求不高的超时（如UDP会话空闲）放入按tick划分的槽中，添加和取消都是O(1)，
+ * 每个tick只检查一个槽。任意线程都可以添加任务，到期任务在调用 {@link #advance(long)} 的线程中执行。
+ */
+public class TimerWheel {
+
+    private final long tickNanos;
+    private final Entry[] wheel;
+    private final int mask;
+    // 其他线程添加的任务，下一次推进时放入槽中
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+
+    // 以下字段只在推进线程中访问
+    private long startNanos = -1;
+    private long tick;
+
+    /**
+     * @param wheelSize 槽数，向上取整为2的幂
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    public long tickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * 添加一个延迟任务，精度为一个tick
+     */
+    public Entry schedule(Runnable task, long delay, TimeUnit unit) {
+        Entry entry = new Entry(System.nanoTime() + unit.toNanos(delay), task);
+        pending.offer(entry);
+        return entry;
+    }
+
+    /**
+     * 推进到当前时间，执行所有到期任务
+     *
+     * @return 执行的任务数
+     */
+    public int advance(long nowNanos) {
+        if (startNanos < 0) {
+            startNanos = nowNanos;
+        }
+        long target = (nowNanos - startNanos) / tickNanos;
+        int expired = 0;
+        // 先放入新任务，使本次到期的新任务也能执行
+        transferPending();
+        while (tick <= target) {
+            expired += expire(wheel[(int) (tick & mask)], nowNanos, (int) (tick & mask));
+            tick++;
+        }
+        return expired;
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (entry.cancelled) continue;
+            long ticks = Math.max(tick, (entry.deadline - startNanos + tickNanos - 1) / tickNanos);
+            entry.rounds = (ticks - tick) / wheel.length;
+            int slot = (int) (ticks & mask);
+            entry.next = wheel[slot];
+            wheel[slot] = entry;
+        }
+    }
+
+    private int expire(Entry head, long nowNanos, int slot) {
+        int expired = 0;
+        Entry previous = null;
+        Entry entry = head;
+        while (entry != null) {
+            Entry next = entry.next;
+            boolean remove = entry.cancelled;
+            if (!remove && entry.rounds <= 0 && entry.deadline - nowNanos <= 0) {
+                remove = true;
+                expired++;
+                try {
+                    entry.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else if (!remove && entry.rounds > 0) {
+                entry.rounds--;
+            }
+            if (remove) {
+                if (previous == null) {
+                    wheel[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                entry.next = null;
+            } else {
+                previous = entry;
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * 定时任务句柄
+     */
+    public static final class Entry {
+        private final long deadline;
+        private final Runnable task;
+        private volatile boolean cancelled;
+        // 以下字段只在推进线程中访问
+        private long rounds;
+        private Entry next;
+
+        private Entry(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.vpnservice_learn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * 隧道接口
+ * 包处理引擎只通过它读写IP包以及保护上游socket，不直接依赖VpnService，
+ * 设备上使用 {@link VpnTunnel}，JVM上的回环测试使用benchmark模块harness中的PipeTunnel。
+ */
+public interface Tunnel extends Closeable {
+
+    /**
+     * 读取一个完整的IP包到buffer，阻塞直到有包
+     *
+     * @return 包长度，隧道关闭时返回-1
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * 写出buffer中剩余的字节，作为一个完整的IP包
+     */
+    void write(ByteBuffer packet) throws IOException;
+
+    /**
+     * 让上游socket绕过隧道，否则发往上游的流量会再次进入隧道
+     */
+    boolean protect(Socket socket);
+
+    boolean protect(DatagramSocket socket);
+}
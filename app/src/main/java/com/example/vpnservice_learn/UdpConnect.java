@@ -1,118 +1,230 @@
 package com.example.vpnservice_learn;
 
-import android.net.VpnService;
-
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.TcpPacket;
-import org.pcap4j.packet.UdpPacket;
-
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-public class UdpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
+public class UdpConnect implements PacketTool.NetworkChannel, BytesParse.Parse, NioEngine.Handler {
 
-    private final BytesParse bytesParse;
-    private final DatagramSocket datagramSocket;
-    private final IpPacket dstIpPacket;
-    private final BlockingQueue<IpPacket> queue = new LinkedBlockingQueue<>();
+    // 未写出的客户端数据报上限
+    private static final int QUEUE_CAPACITY = 256;
+    // TUN写队列接近满时暂停读取上游，隔一段时间再检查
+    private static final long BACKPRESSURE_RETRY_MILLIS = 2;
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();;
-    private  Future<?>  readFuture = null;
-    private  Future<?>  writeFuture = null;
-
-
-    public UdpConnect(VpnService vpnService, BytesParse bytesParse , IpPacket ipPacket) throws Exception {
+    private final BytesParse bytesParse;
+    private final UdpSessionManager sessions;
+    private final UdpSessionManager.PortClass portClass;
+    private final DatagramChannel channel;
+    private final long[] flowKey;
+    private final InetSocketAddress srcAddress;
+    private final InetSocketAddress dstAddress;
+    private final PacketTemplate template;
+    // 客户端发来的包，分片线程retain后放入，写出后释放
+    private final SpscRingBuffer<PacketBuffer> queue = new SpscRingBuffer<>(QUEUE_CAPACITY);
+    private final PacketView writeView = new PacketView();
+    // 引擎共享的指标，按名字只查找一次
+    private final LongAdder upstreamOut;
+    private final LongAdder upstreamIn;
+    private final LongAdder queued;
+    private final LongAdder queueDropped;
+
+    private final NioEngine.EventLoop loop;
+    // 以下字段只在事件循环线程中访问
+    private SelectionKey key;
+    private boolean retryScheduled;
+    // 最后一次收发的时间（nanoTime），两个方向的流量都算作活动，由会话管理器据此判断空闲
+    private volatile long lastActive;
+    // 最后一次调整LRU位置的时间
+    private volatile long promotedAt;
+
+
+    /**
+     * 由 {@link UdpSessionManager#open} 创建
+     */
+    UdpConnect(Tunnel tunnel, BytesParse bytesParse, UdpSessionManager sessions, PacketView packet,
+               long[] flowKey, UdpSessionManager.PortClass portClass) throws Exception {
         this.bytesParse = bytesParse;
+        this.sessions = sessions;
+        this.flowKey = flowKey;
+        this.portClass = portClass;
+        this.lastActive = this.promotedAt = System.nanoTime();
+        Metrics metrics = bytesParse.getMetrics();
+        upstreamOut = metrics.counter("udp.upstream.out.bytes");
+        upstreamIn = metrics.counter("udp.upstream.in.bytes");
+        queued = metrics.counter("queue.udp");
+        queueDropped = metrics.counter("queue.udp.dropped");
+
+        srcAddress = new InetSocketAddress(packet.dstAddress(), packet.dstPort());
+        dstAddress = new InetSocketAddress(packet.srcAddress(), packet.srcPort());
+        template = PacketTemplate.udp(srcAddress, dstAddress, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS);
+        channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(null);
+            if (!tunnel.protect(channel.socket())) {
+                // 未保护的套接字会被路由回TUN，丢弃这个数据报，会话不创建
+                throw new IOException("protect failed: " + srcAddress);
+            }
+            channel.configureBlocking(false);
+            channel.connect(srcAddress);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
 
-        dstIpPacket = ipPacket;
-        datagramSocket = new DatagramSocket();
-        boolean protect = vpnService.protect(datagramSocket);
-        datagramSocket.setSoTimeout(3000);
+        loop = bytesParse.getEngine().next();
+        boolean accepted = loop.execute(() -> {
+            try {
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+            }
+        });
+        if (!accepted) {
+            // 引擎已关闭，通道不会再注册，会话不创建
+            channel.close();
+            throw new IOException("engine closed: " + srcAddress);
+        }
+    }
 
-        readFuture = executor.submit(this::read);
-        writeFuture = executor.submit(this::write);
+    @Override
+    public void parseIpPacket(PacketView packet) {
+        sessions.touch(this);
+        // 读缓冲区会被分片线程释放，跨线程前增加引用
+        PacketBuffer buffer = packet.buffer().retain();
+        if (!queue.offer(buffer)) {
+            // 事件循环跟不上时按UDP语义丢弃
+            buffer.release();
+            queueDropped.increment();
+            return;
+        }
+        queued.increment();
+        // 引擎已关闭时数据报留在队列中，由读线程退出时统一释放
+        loop.execute(this::write);
     }
 
     @Override
-    public void parseIpPacket(IpPacket ipPacket) {
-        queue.offer(ipPacket);
+    public void releaseQueued() {
+        PacketBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            queued.decrement();
+            buffer.release();
+        }
     }
 
-    private void read(){
-        try{
-            while (!Thread.interrupted()){
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            read();
+        }
+    }
 
-                byte[] buffer = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                datagramSocket.receive(packet);
-                //Push
-                PacketTool.sendUdpPacket(this,buffer);
+    @Override
+    public void onError(Exception e) {
+        close();
+    }
 
+    /**
+     * 每读一个数据报之前先在TUN写队列中预留位置，预留不到时暂停读取，
+     * 数据报留在socket接收缓冲区中，不占用留给TCP控制包的位置
+     */
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.readBuffer();
+        while (true) {
+            if (!bytesParse.reserveData(1)) {
+                pauseForBackpressure();
+                return;
             }
-        }catch (Exception e){
-            close();
+            int len;
+            try {
+                len = channel.read(buffer);
+            } catch (IOException e) {
+                bytesParse.cancelReserved(1);
+                throw e;
+            }
+            if (len <= 0) {
+                bytesParse.cancelReserved(1);
+                return;
+            }
+            sessions.touch(this);
+            upstreamIn.add(len);
+            //Push
+            PacketTool.sendUdpPacket(this, buffer.array(), 0, len);
+            buffer.clear();
         }
-
     }
 
-    private void write(){
-
-        try {
-
-            InetAddress dstAdder = dstIpPacket.getHeader().getDstAddr();
-            UdpPacket udpPacket = (UdpPacket) dstIpPacket.getPayload();
-            int dstPort = udpPacket.getHeader().getDstPort().valueAsInt();
-
+    private void pauseForBackpressure() {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        if (!retryScheduled) {
+            retryScheduled = true;
+            loop.schedule(this::resumeRead, BACKPRESSURE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            while (!Thread.interrupted()){
-                IpPacket packet = queue.take();
+    private void resumeRead() {
+        retryScheduled = false;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
 
-                UdpPacket uPacket = (UdpPacket) packet.getPayload();
-                byte[] rawData = uPacket.getPayload().getRawData();
+    private void write(){
+        PacketView packet = writeView;
+        PacketBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            queued.decrement();
+            try {
+                packet.wrap(buffer);
+                // 发送缓冲区满时直接丢弃，与UDP语义一致
+                upstreamOut.add(channel.write(buffer.nioBuffer(packet.payloadOffset(), packet.payloadLength())));
+            } catch (Exception e) {
+                close();
+            } finally {
+                buffer.release();
+            }
+        }
 
-                DatagramPacket datagramPacket = new DatagramPacket(rawData, rawData.length, dstAdder, dstPort);
+    }
 
-                datagramSocket.send(datagramPacket);
-            }
-        }catch (Exception e){
-            close();
+    boolean isOpen() {
+        return channel.isOpen();
+    }
 
-        }
+    UdpSessionManager.PortClass portClass() {
+        return portClass;
+    }
 
+    long lastActive() {
+        return lastActive;
     }
 
-    private void close(){
+    void setLastActive(long lastActive) {
+        this.lastActive = lastActive;
+    }
 
-        if(datagramSocket!=null){
-            datagramSocket.close();
-        }
+    long promotedAt() {
+        return promotedAt;
+    }
 
-        if(readFuture!=null){
-            //发送中断指令
-            readFuture.cancel(true);
-        }
+    void setPromotedAt(long promotedAt) {
+        this.promotedAt = promotedAt;
+    }
 
-        if(writeFuture!=null){
-            //发送中断指令
-            writeFuture.cancel(true);
-        }
+    void close(){
 
-        if(dstIpPacket!=null){
-            bytesParse.removeKey(dstIpPacket);
+        try {
+            // 关闭通道会同时取消Selector上的注册
+            channel.close();
+        } catch (IOException ignored) {
         }
 
-        if (dstIpPacket != null) {
-            bytesParse.removeKey(dstIpPacket);
-        }
+        bytesParse.removeKey(flowKey, this);
+        sessions.remove(this);
 
 
     }
@@ -127,26 +239,32 @@ public class UdpConnect implements PacketTool.NetworkChannel, BytesParse.Parse {
         return null;
     }
 
+    /**
+     * 只由 {@link #read()} 调用，位置已经预留
+     */
     @Override
-    public void sendToVpn(byte[] packetData) {
-        bytesParse.pushData(packetData);
+    public void sendToVpn(PacketBuffer packet) {
+        bytesParse.pushReserved(packet);
     }
 
     @Override
     public InetSocketAddress getSrcAddress() {
-        InetAddress dstAdder = dstIpPacket.getHeader().getDstAddr();
-        UdpPacket udpPacket = (UdpPacket) dstIpPacket.getPayload();
-        int dstPort = udpPacket.getHeader().getDstPort().valueAsInt();
-
-        return new InetSocketAddress(dstAdder, dstPort);
+        return srcAddress;
     }
 
     @Override
     public InetSocketAddress getDstAddress() {
-        InetAddress srcAdder = dstIpPacket.getHeader().getSrcAddr();
-        UdpPacket udpPacket = (UdpPacket) dstIpPacket.getPayload();
-        int srcPort = udpPacket.getHeader().getSrcPort().valueAsInt();
-        return new InetSocketAddress(srcAdder, srcPort);
+        return dstAddress;
+    }
+
+    @Override
+    public PacketTemplate getTemplate() {
+        return template;
+    }
+
+    @Override
+    public BufferPool getBufferPool() {
+        return bytesParse.getBufferPool();
     }
 
 
@@ -0,0 +1,177 @@
+package com.example.vpnservice_learn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP会话管理
+ * 所有会话的通道都注册在 {@link NioEngine} 的事件循环上，线程数量不随会话数量增长。
+ * 空闲超时按目的端口分类配置，统一由一个时间轮检查；会话总数有上限，超出时淘汰最久未活动的会话。
+ */
+public class UdpSessionManager {
+
+    /**
+     * 按目的端口划分的会话类别
+     */
+    public enum PortClass {
+        // 一问一答，应答后很快就不再需要
+        DNS,
+        // HTTP/3等长连接，客户端通常每隔几十秒发送一次保活
+        QUIC,
+        OTHER;
+
+        public static PortClass of(int port) {
+            switch (port) {
+                case 53:
+                case 5353:
+                    return DNS;
+                case 443:
+                    return QUIC;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    private static final long DEFAULT_DNS_TIMEOUT_MILLIS = 5_000;
+    private static final long DEFAULT_QUIC_TIMEOUT_MILLIS = 60_000;
+    private static final long DEFAULT_OTHER_TIMEOUT_MILLIS = 30_000;
+    private static final int DEFAULT_MAX_SESSIONS = 512;
+    private static final long TICK_MILLIS = 100;
+    // 会话在LRU链表中的位置最多每隔这么久调整一次，避免每个包都加锁
+    private static final long PROMOTE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int WHEEL_SIZE = 512;
+
+    private final NioEngine engine;
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    private final long[] idleTimeoutMillis = {
+            DEFAULT_DNS_TIMEOUT_MILLIS, DEFAULT_QUIC_TIMEOUT_MILLIS, DEFAULT_OTHER_TIMEOUT_MILLIS};
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+    // 按访问顺序排列，最久未活动的在最前
+    private final LinkedHashMap<UdpConnect, Boolean> sessions = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public UdpSessionManager(NioEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * 启动时间轮，在事件循环上周期推进
+     */
+    public void start() {
+        NioEngine.EventLoop loop = engine.next();
+        loop.execute(() -> tick(loop));
+    }
+
+    private void tick(NioEngine.EventLoop loop) {
+        wheel.advance(System.nanoTime());
+        loop.schedule(() -> tick(loop), TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 为新的UDP流创建会话，会话数达到上限时先淘汰最久未活动的会话
+     */
+    public UdpConnect open(Tunnel tunnel, BytesParse bytesParse, PacketView packet, long[] flowKey) throws Exception {
+        PortClass portClass = PortClass.of(packet.dstPort());
+        UdpConnect session = new UdpConnect(tunnel, bytesParse, this, packet, flowKey, portClass);
+        opened.incrementAndGet();
+
+        UdpConnect eldest = null;
+        synchronized (sessions) {
+            sessions.put(session, Boolean.TRUE);
+            if (sessions.size() > maxSessions) {
+                Iterator<UdpConnect> iterator = sessions.keySet().iterator();
+                eldest = iterator.next();
+                iterator.remove();
+            }
+        }
+        if (eldest != null) {
+            evicted.incrementAndGet();
+            eldest.close();
+        }
+
+        watch(session, idleTimeoutMillis(portClass));
+        return session;
+    }
+
+    /**
+     * 会话有收发时调用，记录活动时间，并按 {@link #PROMOTE_INTERVAL_NANOS} 的粒度移到LRU链表尾部
+     */
+    void touch(UdpConnect session) {
+        long now = System.nanoTime();
+        session.setLastActive(now);
+        if (now - session.promotedAt() >= PROMOTE_INTERVAL_NANOS) {
+            session.setPromotedAt(now);
+            synchronized (sessions) {
+                sessions.get(session);
+            }
+        }
+    }
+
+    void remove(UdpConnect session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+        }
+    }
+
+    /**
+     * 到期时检查会话的最后活动时间，期间有收发则按剩余时间重新放入时间轮
+     */
+    private void watch(UdpConnect session, long delayMillis) {
+        wheel.schedule(() -> {
+            if (!session.isOpen()) return;
+            long timeout = idleTimeoutMillis(session.portClass());
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.lastActive());
+            if (idle >= timeout) {
+                expired.incrementAndGet();
+                session.close();
+            } else {
+                watch(session, timeout - idle);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置某一类会话的空闲超时，对已存在的会话在下一次检查时生效
+     */
+    public void setIdleTimeout(PortClass portClass, long timeout, TimeUnit unit) {
+        idleTimeoutMillis[portClass.ordinal()] = Math.max(TICK_MILLIS, unit.toMillis(timeout));
+    }
+
+    public long idleTimeoutMillis(PortClass portClass) {
+        return idleTimeoutMillis[portClass.ordinal()];
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * 因空闲超时关闭的会话数
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * 因超过会话上限被淘汰的会话数
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+}
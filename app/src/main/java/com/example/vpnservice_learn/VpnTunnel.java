@@ -0,0 +1,64 @@
+package com.example.vpnservice_learn;
+
+import android.net.VpnService;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * VpnService建立的TUN接口，每次read/write对应一个IP包
+ */
+public class VpnTunnel implements Tunnel {
+
+    private final VpnService vpnService;
+    private final FileInputStream inputStream;
+    private final FileOutputStream outputStream;
+    private final FileChannel input;
+    private final FileChannel output;
+
+    public VpnTunnel(VpnService vpnService, ParcelFileDescriptor descriptor) {
+        this.vpnService = vpnService;
+        this.inputStream = new FileInputStream(descriptor.getFileDescriptor());
+        this.outputStream = new FileOutputStream(descriptor.getFileDescriptor());
+        this.input = inputStream.getChannel();
+        this.output = outputStream.getChannel();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return input.read(buffer);
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        output.write(packet);
+    }
+
+    @Override
+    public boolean protect(Socket socket) {
+        return vpnService.protect(socket);
+    }
+
+    @Override
+    public boolean protect(DatagramSocket socket) {
+        return vpnService.protect(socket);
+    }
+
+    /**
+     * 只关闭读写流，TUN的描述符由MyVpnService负责关闭
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            inputStream.close();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
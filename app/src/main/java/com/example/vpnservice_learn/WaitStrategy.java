@@ -0,0 +1,20 @@
+package com.example.vpnservice_learn;
+
+/**
+ * 消费者在 {@link MpscRingBuffer} 为空时的等待方式
+ * 等待越积极，新元素到达后被取走的延迟越低，空闲时消耗的CPU也越多。
+ */
+public enum WaitStrategy {
+    /**
+     * 一直自旋，延迟最低，空闲时占满一个核，只适合有专用核的场景
+     */
+    SPIN,
+    /**
+     * 自旋一段时间后反复让出CPU，空闲时仍会持续被调度
+     */
+    YIELD,
+    /**
+     * 自旋、让出CPU后挂起，由生产者入队时唤醒，空闲时不消耗CPU
+     */
+    PARK
+}
@@ -0,0 +1,238 @@
+package com.example.vpnservice_learn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 抓包过滤器：运算符优先级、IPv4网段掩码、IPv6前缀、IPv4分片以及各种非法表达式
+ */
+public class CaptureFilterTest {
+
+    private static final int TCP = PacketView.PROTOCOL_TCP;
+    private static final int UDP = PacketView.PROTOCOL_UDP;
+    private static final int ICMP = 1;
+    private static final int ICMPV6 = 58;
+
+    /**
+     * 构造只有IP头和端口的包，端口只在TCP/UDP时写入
+     *
+     * @param fragmentOffset IPv4分片偏移，以8字节为单位
+     */
+    private static byte[] packet(String src, String dst, int protocol, int srcPort, int dstPort,
+                                 int fragmentOffset) {
+        byte[] source = address(src);
+        byte[] destination = address(dst);
+        byte[] data;
+        int transport;
+        if (source.length == 4) {
+            data = new byte[28];
+            data[0] = 0x45;
+            data[6] = (byte) (fragmentOffset >> 8);
+            data[7] = (byte) fragmentOffset;
+            data[9] = (byte) protocol;
+            System.arraycopy(source, 0, data, 12, 4);
+            System.arraycopy(destination, 0, data, 16, 4);
+            transport = 20;
+        } else {
+            data = new byte[48];
+            data[0] = 0x60;
+            data[6] = (byte) protocol;
+            System.arraycopy(source, 0, data, 8, 16);
+            System.arraycopy(destination, 0, data, 24, 16);
+            transport = 40;
+        }
+        data[transport] = (byte) (srcPort >> 8);
+        data[transport + 1] = (byte) srcPort;
+        data[transport + 2] = (byte) (dstPort >> 8);
+        data[transport + 3] = (byte) dstPort;
+        return data;
+    }
+
+    private static byte[] packet(String src, String dst, int protocol, int srcPort, int dstPort) {
+        return packet(src, dst, protocol, srcPort, dstPort, 0);
+    }
+
+    private static byte[] address(String text) {
+        try {
+            return InetAddress.getByName(text).getAddress();
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean matches(String expression, byte[] packet) {
+        return CaptureFilter.compile(expression).matches(packet, 0, packet.length);
+    }
+
+    private static void assertRejected(String expression) {
+        try {
+            CaptureFilter.compile(expression);
+            fail("应当拒绝 " + expression);
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("in filter"));
+        }
+    }
+
+    @Test
+    public void emptyExpressionMatchesEverything() {
+        assertSame(CaptureFilter.ALL, CaptureFilter.compile(null));
+        assertSame(CaptureFilter.ALL, CaptureFilter.compile("  "));
+        assertTrue(matches("", packet("10.0.0.1", "10.0.0.2", TCP, 1234, 80)));
+    }
+
+    @Test
+    public void notBindsTighterThanAndTighterThanOr() {
+        byte[] tcp80 = packet("10.0.0.1", "10.0.0.2", TCP, 40000, 80);
+        byte[] udp80 = packet("10.0.0.1", "10.0.0.2", UDP, 40000, 80);
+        byte[] udp53 = packet("10.0.0.1", "10.0.0.2", UDP, 40000, 53);
+        byte[] tcp53 = packet("10.0.0.1", "10.0.0.2", TCP, 40000, 53);
+
+        // tcp or (udp and port 53)
+        assertTrue(matches("tcp or udp and port 53", tcp80));
+        assertFalse(matches("tcp or udp and port 53", udp80));
+        assertTrue(matches("tcp or udp and port 53", udp53));
+        // (not tcp) and port 53
+        assertTrue(matches("not tcp and port 53", udp53));
+        assertFalse(matches("not tcp and port 53", tcp53));
+        assertFalse(matches("! tcp && port 53", tcp53));
+        // 括号改变结合
+        assertFalse(matches("(tcp or udp) and port 53", tcp80));
+        assertTrue(matches("(tcp || udp) && port 53", tcp53));
+        assertFalse(matches("not (tcp or udp)", udp80));
+        assertTrue(matches("not not tcp", tcp80));
+    }
+
+    @Test
+    public void protocolWithPortMeansBoth() {
+        byte[] https = packet("10.0.0.1", "10.0.0.2", TCP, 40000, 443);
+        byte[] quic = packet("10.0.0.1", "10.0.0.2", UDP, 40000, 443);
+        assertTrue(matches("tcp port 443", https));
+        assertFalse(matches("tcp port 443", quic));
+        assertTrue(matches("udp dst port 443", quic));
+        assertFalse(matches("udp src port 443", quic));
+        assertTrue(matches("TCP PORT 443", https));
+    }
+
+    @Test
+    public void hostMatchesEitherDirectionUnlessQualified() {
+        byte[] packet = packet("10.0.0.1", "192.168.1.7", UDP, 5000, 53);
+        assertTrue(matches("host 10.0.0.1", packet));
+        assertTrue(matches("host 192.168.1.7", packet));
+        assertTrue(matches("src host 10.0.0.1", packet));
+        assertFalse(matches("dst host 10.0.0.1", packet));
+        assertFalse(matches("host 10.0.0.2", packet));
+    }
+
+    @Test
+    public void netAppliesPrefixMask() {
+        byte[] inside = packet("10.1.255.3", "8.8.8.8", UDP, 5000, 53);
+        byte[] outside = packet("10.2.0.1", "8.8.8.8", UDP, 5000, 53);
+        assertTrue(matches("net 10.1.0.0/16", inside));
+        assertFalse(matches("net 10.1.0.0/16", outside));
+        // 网段中主机部分不为0时按掩码忽略
+        assertTrue(matches("src net 10.1.2.3/16", inside));
+        assertTrue(matches("net 10.0.0.0/8", outside));
+
+        byte[] high = packet("192.168.1.200", "8.8.8.8", TCP, 5000, 443);
+        byte[] low = packet("192.168.1.100", "8.8.8.8", TCP, 5000, 443);
+        assertTrue(matches("net 192.168.1.128/25", high));
+        assertFalse(matches("net 192.168.1.128/25", low));
+        assertTrue(matches("net 192.168.1.100/32", low));
+
+        assertTrue(matches("net 0.0.0.0/0", low));
+        assertFalse(matches("net 0.0.0.0/0", packet("fd00::1", "fd00::2", TCP, 1, 2)));
+    }
+
+    @Test
+    public void ipv6HostsAndPrefixes() {
+        byte[] packet = packet("fd00::1", "2001:db8:8000::5", TCP, 40000, 443);
+        assertTrue(matches("host fd00::1", packet));
+        assertTrue(matches("dst host 2001:db8:8000::5", packet));
+        assertFalse(matches("src host 2001:db8:8000::5", packet));
+        assertTrue(matches("net fd00::/8", packet));
+        assertFalse(matches("src net fe80::/10", packet));
+        // 前缀不在字节边界上
+        assertTrue(matches("net 2001:db8:8000::/33", packet));
+        assertFalse(matches("net 2001:db8::/33", packet));
+        assertTrue(matches("net 2001:db8::/32", packet));
+        assertTrue(matches("ip6 and tcp port 443", packet));
+        assertFalse(matches("ip", packet));
+        // IPv4地址不匹配IPv6包
+        assertFalse(matches("host 10.0.0.1", packet));
+    }
+
+    @Test
+    public void laterFragmentsHaveNoPorts() {
+        byte[] first = packet("10.0.0.1", "10.0.0.2", UDP, 5000, 53, 0x2000);
+        byte[] later = packet("10.0.0.1", "10.0.0.2", UDP, 5000, 53, 185);
+        assertTrue(matches("port 53", first));
+        assertFalse(matches("port 53", later));
+        assertTrue(matches("not port 53", later));
+        assertTrue(matches("udp and host 10.0.0.2", later));
+    }
+
+    @Test
+    public void protocolsAndVersions() {
+        byte[] ping = packet("10.0.0.1", "10.0.0.2", ICMP, 0, 0);
+        byte[] ping6 = packet("fd00::1", "fd00::2", ICMPV6, 0, 0);
+        assertTrue(matches("icmp", ping));
+        assertTrue(matches("proto 1", ping));
+        assertTrue(matches("proto icmp and ip", ping));
+        assertFalse(matches("icmp6", ping));
+        assertTrue(matches("icmp6 and ip6", ping6));
+        // ICMP没有端口
+        assertFalse(matches("port 0", ping));
+    }
+
+    @Test
+    public void malformedPacketsDoNotMatch() {
+        byte[] packet = packet("10.0.0.1", "10.0.0.2", TCP, 1, 2);
+        CaptureFilter filter = CaptureFilter.compile("tcp");
+        assertFalse(filter.matches(packet, 0, 0));
+        assertFalse(filter.matches(packet, 0, 19));
+        assertFalse(filter.matches(new byte[40], 0, 40));
+        // 端口超出包长度时不读
+        assertFalse(CaptureFilter.compile("port 2").matches(packet, 0, 22));
+    }
+
+    @Test
+    public void rejectsInvalidExpressions() {
+        assertRejected("port");
+        assertRejected("port 70000");
+        assertRejected("port http");
+        assertRejected("host example.com");
+        assertRejected("host 10.0.0.300");
+        assertRejected("net 10.0.0.0");
+        assertRejected("net 10.0.0.0/33");
+        assertRejected("net fd00::/129");
+        assertRejected("proto 256");
+        assertRejected("tcp and");
+        assertRejected("(tcp");
+        assertRejected("tcp)");
+        assertRejected("tcp udp");
+        assertRejected("src tcp");
+        assertRejected("foo");
+    }
+
+    @Test
+    public void rejectsExcessiveNesting() {
+        assertNotNull(CaptureFilter.compile(repeat("(", 64) + "tcp" + repeat(")", 64)));
+        assertRejected(repeat("(", 65) + "tcp" + repeat(")", 65));
+        // 远超限制的输入在递归前就被拒绝，不会栈溢出
+        assertRejected(repeat("(", 20000) + "tcp" + repeat(")", 20000));
+        assertRejected(repeat("not ", 20000) + "tcp");
+        assertRejected(repeat("!", 20000) + "tcp");
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}
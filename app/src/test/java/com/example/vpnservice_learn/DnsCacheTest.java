@@ -0,0 +1,333 @@
+package com.example.vpnservice_learn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * DNS缓存的报文解析：问题键、压缩指针、OPT记录、否定应答以及不可缓存的应答
+ */
+public class DnsCacheTest {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int TYPE_HTTPS = 65;
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_RESPONSE = 0x8180;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_CD = 0x0010;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    // 指向报文中第一个名字，即问题中的名字
+    private static final int POINTER_TO_QUESTION = 0xC00C;
+
+    /**
+     * 按顺序拼出DNS报文
+     */
+    private static final class Message {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Message(int id, int flags, int answers, int authorities, int additionals) {
+            u16(id).u16(flags).u16(1).u16(answers).u16(authorities).u16(additionals);
+        }
+
+        Message name(String name) {
+            for (String label : name.split("\\.")) {
+                out.write(label.length());
+                out.write(label.getBytes(), 0, label.length());
+            }
+            out.write(0);
+            return this;
+        }
+
+        Message question(String name, int type) {
+            return name(name).u16(type).u16(CLASS_IN);
+        }
+
+        /**
+         * 名字使用压缩指针的记录
+         */
+        Message record(int type, int recordClass, long ttl, byte[] data) {
+            return u16(POINTER_TO_QUESTION).u16(type).u16(recordClass).u32(ttl).u16(data.length).bytes(data);
+        }
+
+        Message record(int type, long ttl, byte[] data) {
+            return record(type, CLASS_IN, ttl, data);
+        }
+
+        Message opt(int udpSize, boolean dnssecOk) {
+            out.write(0);
+            return u16(TYPE_OPT).u16(udpSize).u32(dnssecOk ? 0x8000 : 0).u16(0);
+        }
+
+        Message u16(int value) {
+            out.write(value >> 8);
+            out.write(value);
+            return this;
+        }
+
+        Message u32(long value) {
+            return u16((int) (value >>> 16)).u16((int) value);
+        }
+
+        Message bytes(byte[] data) {
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        byte[] build() {
+            return out.toByteArray();
+        }
+
+        /**
+         * 去掉构造时写入的12字节头部，只留之后拼出的内容
+         */
+        byte[] rdata() {
+            byte[] data = out.toByteArray();
+            return Arrays.copyOfRange(data, 12, data.length);
+        }
+    }
+
+    /**
+     * @param minimum 否定缓存时间，即RDATA最后的MINIMUM字段
+     */
+    private static byte[] soa(long minimum) {
+        // 两个名字都用压缩指针，之后是序列号、刷新、重试、过期和否定缓存时间
+        return new Message(0, 0, 0, 0, 0).u16(POINTER_TO_QUESTION).u16(POINTER_TO_QUESTION)
+                .u32(1).u32(2).u32(3).u32(4).u32(minimum).rdata();
+    }
+
+    private static DnsCache.Entry parse(byte[] response, long now) {
+        int questionEnd = DnsCache.questionEnd(response, 0, response.length);
+        assertTrue(questionEnd > 0);
+        return DnsCache.Entry.parse(response, questionEnd, now);
+    }
+
+    private static long ttlAt(byte[] response, int offset) {
+        return ((response[offset] & 0xFFL) << 24) | ((response[offset + 1] & 0xFF) << 16)
+                | ((response[offset + 2] & 0xFF) << 8) | (response[offset + 3] & 0xFF);
+    }
+
+    private static String questionKey(byte[] message) {
+        return DnsCache.questionKey(message, 0, DnsCache.questionEnd(message, 0, message.length));
+    }
+
+    @Test
+    public void questionKeyIgnoresNameCaseOnly() {
+        byte[] lower = new Message(1, 0x0100, 0, 0, 0).question("www.example.com", TYPE_A).build();
+        byte[] mixed = new Message(2, 0x0100, 0, 0, 0).question("WwW.ExAmple.COM", TYPE_A).build();
+        assertEquals(questionKey(lower), questionKey(mixed));
+
+        // 类型65的低字节是'A'，不能当作名字转成小写而与类型97混淆
+        byte[] https = new Message(1, 0x0100, 0, 0, 0).question("example.com", TYPE_HTTPS).build();
+        byte[] other = new Message(1, 0x0100, 0, 0, 0).question("example.com", TYPE_HTTPS + 32).build();
+        assertNotEquals(questionKey(https), questionKey(other));
+    }
+
+    @Test
+    public void questionMustBeSingleAndUncompressed() {
+        byte[] query = new Message(1, 0x0100, 0, 0, 0).question("example.com", TYPE_A).build();
+        assertEquals(query.length, DnsCache.questionEnd(query, 0, query.length));
+        assertEquals(-1, DnsCache.questionEnd(query, 0, query.length - 1));
+
+        byte[] compressed = new Message(1, 0x0100, 0, 0, 0).u16(POINTER_TO_QUESTION).u16(TYPE_A).u16(CLASS_IN).build();
+        assertEquals(-1, DnsCache.questionEnd(compressed, 0, compressed.length));
+
+        byte[] twoQuestions = query.clone();
+        twoQuestions[5] = 2;
+        assertEquals(-1, DnsCache.questionEnd(twoQuestions, 0, twoQuestions.length));
+    }
+
+    @Test
+    public void answersWithCompressedNamesUseMinimumTtl() {
+        byte[] response = new Message(7, FLAG_RESPONSE, 2, 0, 0)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 300, new byte[]{93, (byte) 184, (byte) 216, 34})
+                .record(TYPE_A, 60, new byte[]{93, (byte) 184, (byte) 216, 35})
+                .build();
+        long now = 1_000_000L;
+        DnsCache.Entry entry = parse(response, now);
+
+        assertNotNull(entry);
+        assertEquals(now + TimeUnit.SECONDS.toNanos(60), entry.expiresAt);
+        assertEquals(2, entry.ttlOffsets.length);
+        assertEquals(300, ttlAt(response, entry.ttlOffsets[0]));
+        assertEquals(60, ttlAt(response, entry.ttlOffsets[1]));
+    }
+
+    @Test
+    public void optRecordIsNotATtl() {
+        byte[] response = new Message(7, FLAG_RESPONSE, 1, 0, 1)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 120, new byte[]{10, 0, 0, 1})
+                .opt(1232, true)
+                .build();
+        DnsCache.Entry entry = parse(response, 0);
+
+        // OPT的TTL字段是扩展标志，既不参与最小TTL，也不在命中时递减
+        assertNotNull(entry);
+        assertEquals(TimeUnit.SECONDS.toNanos(120), entry.expiresAt);
+        assertEquals(1, entry.ttlOffsets.length);
+        assertEquals(120, ttlAt(response, entry.ttlOffsets[0]));
+    }
+
+    @Test
+    public void negativeAnswersUseSoaTtl() {
+        byte[] nxdomain = new Message(7, FLAG_RESPONSE | RCODE_NXDOMAIN, 0, 1, 0)
+                .question("missing.example.com", TYPE_A)
+                .record(TYPE_SOA, 900, soa(3600))
+                .build();
+        DnsCache.Entry entry = parse(nxdomain, 0);
+        assertNotNull(entry);
+        assertEquals(TimeUnit.SECONDS.toNanos(900), entry.expiresAt);
+
+        byte[] noData = new Message(7, FLAG_RESPONSE, 0, 1, 0)
+                .question("example.com", TYPE_HTTPS)
+                .record(TYPE_SOA, 30, soa(3600))
+                .build();
+        entry = parse(noData, 0);
+        assertNotNull(entry);
+        assertEquals(TimeUnit.SECONDS.toNanos(30), entry.expiresAt);
+
+        // MINIMUM小于记录TTL时取MINIMUM
+        byte[] shortMinimum = new Message(7, FLAG_RESPONSE | RCODE_NXDOMAIN, 0, 1, 0)
+                .question("missing.example.com", TYPE_A)
+                .record(TYPE_SOA, 900, soa(60))
+                .build();
+        entry = parse(shortMinimum, 0);
+        assertNotNull(entry);
+        assertEquals(TimeUnit.SECONDS.toNanos(60), entry.expiresAt);
+
+        byte[] zeroMinimum = new Message(7, FLAG_RESPONSE, 0, 1, 0)
+                .question("example.com", TYPE_HTTPS)
+                .record(TYPE_SOA, 900, soa(0))
+                .build();
+        assertNull(parse(zeroMinimum, 0));
+
+        // 肯定应答中权威部分的SOA只按自身TTL参与
+        byte[] positive = new Message(7, FLAG_RESPONSE, 1, 1, 0)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 300, new byte[]{10, 0, 0, 1})
+                .record(TYPE_SOA, 900, soa(5))
+                .build();
+        entry = parse(positive, 0);
+        assertNotNull(entry);
+        assertEquals(TimeUnit.SECONDS.toNanos(300), entry.expiresAt);
+
+        // 没有SOA的否定应答无法确定缓存时间
+        byte[] bare = new Message(7, FLAG_RESPONSE | RCODE_NXDOMAIN, 0, 0, 0)
+                .question("missing.example.com", TYPE_A)
+                .build();
+        assertNull(parse(bare, 0));
+    }
+
+    @Test
+    public void recordCountMustFitInMessage() {
+        byte[] response = new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 60, new byte[]{10, 0, 0, 1})
+                .build();
+        assertNotNull(parse(response, 0));
+
+        // 头部声称各部分都有65535条记录，不按声称的数量分配数组
+        byte[] hostile = response.clone();
+        for (int i = 6; i < 12; i++) {
+            hostile[i] = (byte) 0xFF;
+        }
+        assertNull(parse(hostile, 0));
+
+        // 只多声称一条时同样拒绝
+        byte[] oneMore = response.clone();
+        oneMore[7] = 2;
+        assertNull(parse(oneMore, 0));
+    }
+
+    @Test
+    public void ttlIsCappedAndHighBitMeansZero() {
+        byte[] huge = new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 30L * 24 * 3600, new byte[]{10, 0, 0, 1})
+                .build();
+        DnsCache.Entry entry = parse(huge, 0);
+        assertNotNull(entry);
+        assertEquals(TimeUnit.DAYS.toNanos(1), entry.expiresAt);
+
+        byte[] negative = new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A)
+                .record(TYPE_A, 0x80000000L, new byte[]{10, 0, 0, 1})
+                .build();
+        assertNull(parse(negative, 0));
+    }
+
+    @Test
+    public void uncacheableResponses() {
+        byte[] answer = {10, 0, 0, 1};
+        assertNull(parse(new Message(7, FLAG_RESPONSE | FLAG_TC, 1, 0, 0)
+                .question("example.com", TYPE_A).record(TYPE_A, 60, answer).build(), 0));
+        assertNull(parse(new Message(7, FLAG_RESPONSE | RCODE_SERVFAIL, 1, 0, 0)
+                .question("example.com", TYPE_A).record(TYPE_A, 60, answer).build(), 0));
+        assertNull(parse(new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A).record(TYPE_A, 0, answer).build(), 0));
+
+        // 记录数多于实际内容、数据长度越界、名字使用保留的标签类型
+        byte[] truncated = new Message(7, FLAG_RESPONSE, 2, 0, 0)
+                .question("example.com", TYPE_A).record(TYPE_A, 60, answer).build();
+        assertNull(parse(truncated, 0));
+        byte[] overrun = new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A).record(TYPE_A, 60, answer).build();
+        overrun[overrun.length - 5] = 5;
+        assertNull(parse(overrun, 0));
+        byte[] badLabel = new Message(7, FLAG_RESPONSE, 1, 0, 0)
+                .question("example.com", TYPE_A).u16(0x800C).u16(TYPE_A).u16(CLASS_IN).u32(60).u16(4).bytes(answer)
+                .build();
+        assertNull(parse(badLabel, 0));
+    }
+
+    @Test
+    public void ednsOfQuery() {
+        byte[] plain = new Message(1, 0x0100, 0, 0, 0).question("example.com", TYPE_A).build();
+        int edns = DnsCache.edns(plain, 0, plain.length, plain.length);
+        assertEquals(512, edns);
+
+        byte[] withOpt = new Message(1, 0x0100, 0, 0, 1).question("example.com", TYPE_A).opt(4096, true).build();
+        int questionEnd = DnsCache.questionEnd(withOpt, 0, withOpt.length);
+        edns = DnsCache.edns(withOpt, 0, withOpt.length, questionEnd);
+        assertEquals(4096, edns & 0xFFFF);
+        assertTrue((edns & DnsCache.EDNS_PRESENT) != 0);
+        assertTrue((edns & DnsCache.EDNS_DO) != 0);
+
+        // 小于512的UDP大小按512处理
+        byte[] small = new Message(1, 0x0100, 0, 0, 1).question("example.com", TYPE_A).opt(100, false).build();
+        edns = DnsCache.edns(small, 0, small.length, questionEnd);
+        assertEquals(512 | DnsCache.EDNS_PRESENT, edns);
+
+        assertEquals(-1, DnsCache.edns(withOpt, 0, withOpt.length - 1, questionEnd));
+    }
+
+    @Test
+    public void cacheKeySeparatesEdnsVariants() {
+        String question = "q";
+        String plain = DnsCache.cacheKey(question, 512, 0);
+        String edns512 = DnsCache.cacheKey(question, 512 | DnsCache.EDNS_PRESENT, 0);
+        String edns1232 = DnsCache.cacheKey(question, 1232 | DnsCache.EDNS_PRESENT, 0);
+        String edns1400 = DnsCache.cacheKey(question, 1400 | DnsCache.EDNS_PRESENT, 0);
+        String edns4096 = DnsCache.cacheKey(question, 4096 | DnsCache.EDNS_PRESENT, 0);
+        String dnssec = DnsCache.cacheKey(question, 1232 | DnsCache.EDNS_PRESENT | DnsCache.EDNS_DO, 0);
+        String checkingDisabled = DnsCache.cacheKey(question, 1232 | DnsCache.EDNS_PRESENT, FLAG_CD);
+
+        assertTrue(plain.startsWith(question));
+        assertNotEquals(plain, edns512);
+        assertNotEquals(edns512, edns1232);
+        // 同一档位共用缓存
+        assertEquals(edns1232, edns1400);
+        assertNotEquals(edns1232, edns4096);
+        assertNotEquals(edns1232, dnssec);
+        assertNotEquals(edns1232, checkingDisabled);
+        assertNotEquals(dnssec, checkingDisabled);
+    }
+}
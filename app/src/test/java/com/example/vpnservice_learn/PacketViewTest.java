@@ -0,0 +1,140 @@
+package com.example.vpnservice_learn;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * 数据包视图：TCP/UDP头部字段、IP分片以及截断的包
+ */
+public class PacketViewTest {
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("10.0.0.2", 40000);
+    private static final InetSocketAddress SERVER = new InetSocketAddress("93.184.216.34", 53);
+    private static final InetSocketAddress CLIENT6 = new InetSocketAddress("fd00::2", 40000);
+    private static final InetSocketAddress SERVER6 = new InetSocketAddress("2001:db8::1", 443);
+
+    private final PacketView view = new PacketView();
+
+    private static byte[] udp(InetSocketAddress src, InetSocketAddress dst, int payloadLength) {
+        PacketTemplate template = PacketTemplate.udp(src, dst, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS);
+        byte[] payload = new byte[payloadLength];
+        byte[] out = new byte[template.headerLength() + payloadLength];
+        template.writeUdp(out, 0, 1, payload, 0, payloadLength);
+        return out;
+    }
+
+    private static byte[] tcp(int flags, byte[] payload) {
+        PacketTemplate template = PacketTemplate.tcp(CLIENT, SERVER, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS);
+        byte[] out = new byte[template.headerLength() + payload.length];
+        template.writeTcp(out, 0, 1, 1000, 2000, flags, 0xFFFF, payload, 0, payload.length);
+        return out;
+    }
+
+    /**
+     * 设置IPv4头部的标志和分片偏移，偏移以8字节为单位
+     */
+    private static void setFragment(byte[] packet, boolean moreFragments, int fragmentOffset) {
+        int value = (moreFragments ? 0x2000 : 0) | fragmentOffset;
+        packet[6] = (byte) (value >> 8);
+        packet[7] = (byte) value;
+    }
+
+    @Test
+    public void parsesUdpHeader() {
+        byte[] packet = udp(CLIENT, SERVER, 30);
+        assertTrue(view.wrap(packet, 0, packet.length));
+        assertEquals(4, view.version());
+        assertTrue(view.isUdp());
+        assertEquals(40000, view.srcPort());
+        assertEquals(53, view.dstPort());
+        assertEquals(28, view.payloadOffset());
+        assertEquals(30, view.payloadLength());
+    }
+
+    @Test
+    public void parsesTcpHeader() {
+        byte[] packet = tcp(PacketView.TCP_SYN | PacketView.TCP_ACK, new byte[10]);
+        assertTrue(view.wrap(packet, 0, packet.length));
+        assertTrue(view.isTcp());
+        assertTrue(view.syn());
+        assertTrue(view.ack());
+        assertFalse(view.fin());
+        assertEquals(1000, view.sequenceNumber());
+        assertEquals(2000, view.acknowledgmentNumber());
+        assertEquals(0xFFFF, view.window());
+        assertEquals(10, view.payloadLength());
+    }
+
+    @Test
+    public void parsesIpv6() {
+        byte[] packet = udp(CLIENT6, SERVER6, 8);
+        assertTrue(view.wrap(packet, 0, packet.length));
+        assertTrue(view.isIPv6());
+        assertEquals(443, view.dstPort());
+        assertEquals(48, view.payloadOffset());
+        assertEquals(8, view.payloadLength());
+    }
+
+    @Test
+    public void trailingPaddingIsNotPayload() {
+        byte[] packet = udp(CLIENT, SERVER, 4);
+        byte[] padded = new byte[packet.length + 6];
+        System.arraycopy(packet, 0, padded, 0, packet.length);
+        assertTrue(view.wrap(padded, 0, padded.length));
+        assertEquals(4, view.payloadLength());
+    }
+
+    @Test
+    public void dontFragmentIsAccepted() {
+        byte[] packet = udp(CLIENT, SERVER, 30);
+        packet[6] = 0x40;
+        packet[7] = 0;
+        assertTrue(view.wrap(packet, 0, packet.length));
+    }
+
+    @Test
+    public void fragmentedDatagramIsNotDispatched() {
+        // 一个1600字节的UDP数据报按1500的MTU分成两片
+        byte[] first = udp(CLIENT, SERVER, 1472);
+        setFragment(first, true, 0);
+        assertFalse("首个分片的负载不完整", view.wrap(first, 0, first.length));
+
+        // 后续分片的负载开头是数据报中间的数据，看起来像端口也不能当作UDP头部
+        byte[] later = udp(CLIENT, SERVER, 108);
+        setFragment(later, false, 1480 / 8);
+        later[20] = (byte) 0x01;
+        later[21] = (byte) 0xBB;
+        assertFalse(view.wrap(later, 0, later.length));
+        assertEquals(PacketView.PROTOCOL_UDP, view.protocol());
+        assertEquals(-1, view.payloadOffset());
+
+        // 中间的分片同时有偏移和MF
+        byte[] middle = tcp(PacketView.TCP_ACK, new byte[100]);
+        setFragment(middle, true, 100);
+        assertFalse(view.wrap(middle, 0, middle.length));
+    }
+
+    @Test
+    public void ipv6FragmentHeaderIsNotDispatched() {
+        byte[] packet = udp(CLIENT6, SERVER6, 8);
+        // 下一个头部为分片扩展头
+        packet[6] = 44;
+        assertFalse(view.wrap(packet, 0, packet.length));
+    }
+
+    @Test
+    public void truncatedPacketsAreRejected() {
+        byte[] packet = tcp(PacketView.TCP_ACK, new byte[0]);
+        assertFalse(view.wrap(packet, 0, 0));
+        assertFalse(view.wrap(packet, 0, 19));
+        assertFalse(view.wrap(packet, 0, 39));
+        assertTrue(view.wrap(packet, 0, 40));
+
+        byte[] badVersion = packet.clone();
+        badVersion[0] = 0x55;
+        assertFalse(view.wrap(badVersion, 0, badVersion.length));
+    }
+}
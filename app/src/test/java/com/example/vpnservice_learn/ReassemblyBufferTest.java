@@ -0,0 +1,235 @@
+package com.example.vpnservice_learn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 重组缓冲区：重叠与重复分段、序号回绕、单连接和全局的内存上限
+ * 每个字节的内容取其序号的低8位，读出的数据与序号逐一核对即可确认裁剪位置正确。
+ */
+public class ReassemblyBufferTest {
+
+    private static final int MAX_BYTES = 64 * 1024;
+
+    private final BufferPool pool = new BufferPool(2048, 64, false);
+    private final List<ReassemblyBuffer> buffers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        // 全局额度是静态的，每个用例结束时都要归还
+        for (ReassemblyBuffer buffer : buffers) {
+            buffer.clear();
+        }
+        assertEquals("缓冲区没有全部释放", 0, pool.inUse());
+    }
+
+    private ReassemblyBuffer create(int nextSequence, int maxBytes, long globalMaxBytes) {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(nextSequence, maxBytes, globalMaxBytes);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private ReassemblyBuffer create(int nextSequence) {
+        return create(nextSequence, MAX_BYTES, Long.MAX_VALUE);
+    }
+
+    /**
+     * 负载前留出与真实包相同的头部空间
+     */
+    private boolean offer(ReassemblyBuffer reassembly, int sequence, int length, boolean fin) {
+        int offset = 40;
+        PacketBuffer buffer = pool.acquire(offset + length);
+        byte[] array = buffer.array();
+        for (int i = 0; i < length; i++) {
+            array[offset + i] = (byte) (sequence + i);
+        }
+        return reassembly.offer(sequence, buffer, offset, length, fin);
+    }
+
+    private boolean offer(ReassemblyBuffer reassembly, int sequence, int length) {
+        return offer(reassembly, sequence, length, false);
+    }
+
+    /**
+     * 像聚集写一样读出所有连续数据，并核对每个字节与其序号一致
+     *
+     * @param limit 最多读出的字节数，模拟上游只写出一部分
+     */
+    private int drain(ReassemblyBuffer reassembly, int limit) {
+        int start = reassembly.nextSequence();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer[] gather = new ByteBuffer[16];
+        while (out.size() < limit) {
+            int count = reassembly.peek(gather);
+            if (count == 0) break;
+            for (int i = 0; i < count && out.size() < limit; i++) {
+                while (gather[i].hasRemaining() && out.size() < limit) {
+                    out.write(gather[i].get());
+                }
+            }
+            int written = reassembly.release();
+            if (written == 0) break;
+        }
+        byte[] data = out.toByteArray();
+        for (int i = 0; i < data.length; i++) {
+            assertEquals("序号 " + (start + i) + " 的数据", (byte) (start + i), data[i]);
+        }
+        assertEquals(start + data.length, reassembly.nextSequence());
+        return data.length;
+    }
+
+    private int drain(ReassemblyBuffer reassembly) {
+        return drain(reassembly, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void inOrderSegmentsAreContiguous() {
+        ReassemblyBuffer reassembly = create(1000);
+        assertFalse(reassembly.hasContiguous());
+        assertTrue(offer(reassembly, 1000, 100));
+        assertTrue(offer(reassembly, 1100, 100, true));
+        assertTrue(reassembly.hasContiguous());
+        assertEquals(200, reassembly.bufferedBytes());
+        assertFalse(reassembly.isFinReached());
+
+        assertEquals(200, drain(reassembly));
+        assertEquals(0, reassembly.bufferedBytes());
+        assertTrue(reassembly.isFinReached());
+    }
+
+    @Test
+    public void outOfOrderSegmentWaitsForGap() {
+        ReassemblyBuffer reassembly = create(0);
+        assertTrue(offer(reassembly, 100, 100));
+        assertFalse(reassembly.hasContiguous());
+        assertEquals(0, drain(reassembly));
+
+        assertTrue(offer(reassembly, 0, 100));
+        assertEquals(200, drain(reassembly));
+    }
+
+    @Test
+    public void overlappingSegmentsAreTrimmed() {
+        ReassemblyBuffer reassembly = create(0);
+        assertTrue(offer(reassembly, 0, 100));
+        // 前半部分与已有分段重叠，只保留[100, 150)
+        assertTrue(offer(reassembly, 50, 100));
+        assertEquals(150, reassembly.bufferedBytes());
+        // 完全落在已有数据内
+        assertFalse(offer(reassembly, 20, 40));
+        assertEquals(150, reassembly.bufferedBytes());
+
+        // [300, 400) 先到，[250, 350) 的尾部被裁掉
+        assertTrue(offer(reassembly, 300, 100));
+        assertTrue(offer(reassembly, 250, 100));
+        assertEquals(300, reassembly.bufferedBytes());
+        // [200, 220) 被 [160, 260) 完全覆盖后移除，后者的尾部与 [250, 300) 重叠
+        assertTrue(offer(reassembly, 200, 20));
+        assertTrue(offer(reassembly, 160, 100));
+        assertEquals(150 + 90 + 150, reassembly.bufferedBytes());
+
+        assertEquals(150, drain(reassembly));
+        assertTrue(offer(reassembly, 150, 10));
+        assertEquals(250, drain(reassembly));
+        assertEquals(0, reassembly.bufferedBytes());
+    }
+
+    @Test
+    public void alreadyWrittenDataIsDuplicate() {
+        ReassemblyBuffer reassembly = create(0);
+        assertTrue(offer(reassembly, 0, 100));
+        assertEquals(100, drain(reassembly));
+
+        assertFalse(offer(reassembly, 0, 100));
+        assertFalse(offer(reassembly, 50, 50));
+        // 跨过已写出位置的分段只保留新的部分
+        assertTrue(offer(reassembly, 80, 40));
+        assertEquals(20, reassembly.bufferedBytes());
+        assertEquals(20, drain(reassembly));
+    }
+
+    @Test
+    public void duplicateFinIsReportedOnce() {
+        ReassemblyBuffer reassembly = create(0);
+        assertTrue(offer(reassembly, 0, 0, true));
+        assertTrue(reassembly.isFinReached());
+        assertFalse(offer(reassembly, 0, 0, true));
+    }
+
+    @Test
+    public void partialWriteKeepsRemainder() {
+        ReassemblyBuffer reassembly = create(0);
+        assertTrue(offer(reassembly, 0, 100));
+        assertTrue(offer(reassembly, 100, 100));
+
+        assertEquals(150, drain(reassembly, 150));
+        assertEquals(50, reassembly.bufferedBytes());
+        assertTrue(reassembly.hasContiguous());
+        assertEquals(50, drain(reassembly));
+    }
+
+    @Test
+    public void sequenceWrapsAroundAt2To32() {
+        int start = -256;
+        ReassemblyBuffer reassembly = create(start);
+        // 第二个分段跨过2^32，先于第一个到达
+        assertTrue(offer(reassembly, start + 200, 200));
+        assertTrue(offer(reassembly, start + 400, 100, true));
+        assertFalse(reassembly.hasContiguous());
+        assertTrue(offer(reassembly, start, 200));
+        // 回绕前后的重叠同样按序号比较
+        assertFalse(offer(reassembly, -10, 20));
+
+        assertEquals(500, drain(reassembly));
+        assertEquals(244, reassembly.nextSequence());
+        assertTrue(reassembly.isFinReached());
+    }
+
+    @Test
+    public void perFlowLimitEvictsHighestOutOfOrderSegment() {
+        ReassemblyBuffer reassembly = create(0, 250, Long.MAX_VALUE);
+        assertTrue(offer(reassembly, 100, 100));
+        assertTrue(offer(reassembly, 200, 100));
+        // 乱序分段超出上限时直接丢弃
+        assertFalse(offer(reassembly, 300, 100));
+        assertEquals(200, reassembly.bufferedBytes());
+        // 已缓存的乱序分段也在通告的范围内，窗口右沿不后退
+        assertEquals(250, reassembly.available());
+
+        // 紧接着可写的分段优先，从序号最大的乱序分段开始淘汰
+        assertTrue(offer(reassembly, 0, 100));
+        assertEquals(200, reassembly.bufferedBytes());
+        assertEquals(200, drain(reassembly));
+        assertEquals(250, reassembly.available());
+    }
+
+    @Test
+    public void globalLimitIsSharedBetweenFlows() {
+        long base = ReassemblyBuffer.globalBytes();
+        ReassemblyBuffer first = create(0, MAX_BYTES, base + 300);
+        ReassemblyBuffer second = create(0, MAX_BYTES, base + 300);
+
+        assertTrue(offer(first, 100, 200));
+        assertEquals(base + 200, ReassemblyBuffer.globalBytes());
+        assertEquals(100, second.available());
+        assertFalse(offer(second, 100, 200));
+
+        // 可写的分段可以淘汰本连接的乱序分段，但不会占用其他连接的额度
+        assertFalse(offer(second, 0, 200));
+        assertTrue(offer(first, 0, 100));
+        assertEquals(base + 300, ReassemblyBuffer.globalBytes());
+
+        first.clear();
+        assertEquals(base, ReassemblyBuffer.globalBytes());
+        assertTrue(offer(second, 0, 200));
+        assertEquals(200, drain(second));
+        assertEquals(base, ReassemblyBuffer.globalBytes());
+    }
+}
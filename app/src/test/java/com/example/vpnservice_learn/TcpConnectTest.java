@@ -0,0 +1,48 @@
+package com.example.vpnservice_learn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * TCP连接：按客户端通告的MSS和TUN MTU确定分段大小
+ */
+public class TcpConnectTest {
+
+    // IPv4与TCP头部各20字节
+    private static final int MAX_SEGMENT = BufferPool.MTU - 40;
+    // 时间戳选项加填充
+    private static final int TIMESTAMPS = 12;
+
+    @Test
+    public void usesAdvertisedMssBelowMtu() {
+        assertEquals(1200, TcpConnect.segmentSize(1200, MAX_SEGMENT, 0));
+        assertEquals(1200 - TIMESTAMPS, TcpConnect.segmentSize(1200, MAX_SEGMENT, TIMESTAMPS));
+    }
+
+    @Test
+    public void largeMssIsLimitedByMtu() {
+        assertEquals(MAX_SEGMENT, TcpConnect.segmentSize(65495, MAX_SEGMENT, 0));
+        assertEquals(MAX_SEGMENT - TIMESTAMPS, TcpConnect.segmentSize(65495, MAX_SEGMENT, TIMESTAMPS));
+    }
+
+    @Test
+    public void missingMssUsesDefault() {
+        assertEquals(536, TcpConnect.segmentSize(-1, MAX_SEGMENT, 0));
+        assertEquals(536 - TIMESTAMPS, TcpConnect.segmentSize(-1, MAX_SEGMENT, TIMESTAMPS));
+    }
+
+    @Test
+    public void tinyMssIsRaisedToMinimum() {
+        // 通告0、1或不够放下选项的MSS时分段长度仍为正数
+        assertEquals(536, TcpConnect.segmentSize(0, MAX_SEGMENT, 0));
+        assertEquals(536, TcpConnect.segmentSize(1, MAX_SEGMENT, 0));
+        assertEquals(536 - TIMESTAMPS, TcpConnect.segmentSize(TIMESTAMPS, MAX_SEGMENT, TIMESTAMPS));
+    }
+
+    @Test
+    public void segmentIsNeverEmpty() {
+        assertEquals(1, TcpConnect.segmentSize(1, TIMESTAMPS, TIMESTAMPS));
+        assertEquals(1, TcpConnect.segmentSize(1, 0, TIMESTAMPS));
+    }
+}
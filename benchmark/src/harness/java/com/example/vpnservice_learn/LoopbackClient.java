@@ -0,0 +1,378 @@
+package com.example.vpnservice_learn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 隧道另一侧的模拟客户端TCP协议栈
+ * 通过 {@link PipeTunnel} 发出客户端的IP包，接收线程校验引擎写回的每个包（IP/TCP校验和、序号连续性），
+ * 再按客户端端口分发给对应的连接。只实现无丢包场景需要的部分：不重传、不处理乱序。
+ * SYN与Linux一样提供MSS、SACK许可、时间戳和窗口缩放，按SYN-ACK的回应决定之后是否携带时间戳、如何换算窗口。
+ */
+final class LoopbackClient implements Runnable {
+
+    static final int MSS = 1460;
+    static final int WINDOW = 0xFFFF;
+    // 客户端窗口缩放位数，协商成功后通告窗口为 WINDOW << WINDOW_SCALE
+    static final int WINDOW_SCALE = 4;
+
+    private static final byte TTL = 64;
+    private static final int IPV4_HEADER = 20;
+    private static final int TCP_HEADER = 20;
+    private static final int TIMESTAMP_OPTIONS = 12;
+
+    private final PipeTunnel tunnel;
+    private final InetSocketAddress clientAddress;
+    private final Map<Integer, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger(20000);
+    private final AtomicInteger ipId = new AtomicInteger();
+
+    // 校验结果
+    final AtomicLong badChecksums = new AtomicLong();
+    final AtomicLong outOfOrder = new AtomicLong();
+    final AtomicLong unknownPackets = new AtomicLong();
+    final AtomicLong patternMismatches = new AtomicLong();
+    final AtomicLong packetsReceived = new AtomicLong();
+
+    LoopbackClient(PipeTunnel tunnel, InetSocketAddress clientAddress) {
+        this.tunnel = tunnel;
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * 数据流第offset个字节的期望值，回显和下载的数据都使用同一个模式，接收时逐字节校验
+     */
+    static byte pattern(long offset) {
+        return (byte) (offset * 31 + 7);
+    }
+
+    Connection open(InetSocketAddress server) {
+        Connection connection = new Connection(nextPort.getAndIncrement(), server);
+        connections.put(connection.port, connection);
+        return connection;
+    }
+
+    /**
+     * 接收线程：读取引擎写回的包，校验后分发
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(BufferPool.MTU * 2);
+        PacketView view = new PacketView();
+        try {
+            while (true) {
+                buffer.clear();
+                int length = tunnel.receive(buffer);
+                if (length < 0) break;
+                packetsReceived.incrementAndGet();
+                byte[] data = buffer.array();
+                if (!checksumValid(data, length)) {
+                    badChecksums.incrementAndGet();
+                    continue;
+                }
+                if (!view.wrap(data, 0, length) || !view.isTcp()) {
+                    unknownPackets.incrementAndGet();
+                    continue;
+                }
+                Connection connection = connections.get(view.dstPort());
+                if (connection == null) {
+                    unknownPackets.incrementAndGet();
+                    continue;
+                }
+                connection.onPacket(view);
+            }
+        } catch (IOException e) {
+            // 隧道关闭
+        }
+    }
+
+    private void inject(byte[] packet, int length) throws IOException {
+        tunnel.inject(ByteBuffer.wrap(packet, 0, length));
+    }
+
+    /**
+     * 校验IPv4头部以及TCP/UDP校验和（含伪首部）
+     */
+    static boolean checksumValid(byte[] data, int length) {
+        if (length < IPV4_HEADER || ((data[0] >> 4) & 0xF) != 4) return false;
+        int ihl = (data[0] & 0xF) * 4;
+        int total = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (total != length || PacketTemplate.fold(PacketTemplate.sum(data, 0, ihl, 0)) != 0xFFFF) return false;
+        int protocol = data[9] & 0xFF;
+        int segment = total - ihl;
+        int sum = PacketTemplate.sum(data, 12, 8, protocol + segment);
+        return PacketTemplate.fold(PacketTemplate.sum(data, ihl, segment, sum)) == 0xFFFF;
+    }
+
+    /**
+     * 一条模拟的客户端TCP连接
+     * 发送相关字段由调用线程修改，接收相关字段由接收线程修改
+     */
+    final class Connection {
+        final int port;
+        private final PacketTemplate template;
+        private final byte[] out = new byte[BufferPool.MTU];
+        // 接收线程构造ACK时使用，避免与调用线程共用out
+        private final byte[] ackOut = new byte[BufferPool.MTU];
+        private final int iss = (int) System.nanoTime();
+
+        private volatile int sndNext = iss;
+        private volatile int sndUna = iss;
+        private volatile int peerWindow;
+        // SYN-ACK中的协商结果，之后只读
+        private volatile int peerScale;
+        private volatile boolean timestamps;
+        private volatile int timestampRecent;
+        private volatile boolean established;
+        private volatile boolean finReceived;
+        private volatile boolean rstReceived;
+
+        // 以下字段只在接收线程中修改
+        private volatile int rcvNext;
+        private volatile long receivedBytes;
+        private int unacknowledgedSegments;
+
+        private final Object lock = new Object();
+
+        Connection(int port, InetSocketAddress server) {
+            this.port = port;
+            this.template = PacketTemplate.tcp(new InetSocketAddress(clientAddress.getAddress(), port), server,
+                    TTL, (byte) 0);
+        }
+
+        /**
+         * 发送带MSS、SACK许可、时间戳和窗口缩放选项的SYN并等待SYN-ACK，完成三次握手
+         *
+         * @return SYN发出到收到SYN-ACK的纳秒数
+         */
+        long connect(long timeoutMillis) throws IOException, InterruptedException {
+            int o = IPV4_HEADER + TCP_HEADER;
+            byte[] options = {2, 4, (byte) (MSS >> 8), (byte) MSS, 4, 2, 8, 10, 0, 0, 0, 0, 0, 0, 0, 0,
+                    1, 3, 3, WINDOW_SCALE};
+            System.arraycopy(options, 0, out, o, options.length);
+            writeInt(out, o + 8, timestampValue());
+            long start = System.nanoTime();
+            int length = template.writeTcp(out, 0, ipId.incrementAndGet(), iss, 0, PacketView.TCP_SYN, WINDOW,
+                    options.length, out, 0, 0);
+            inject(out, length);
+            sndNext = iss + 1;
+
+            if (!await(() -> established || rstReceived, timeoutMillis)) {
+                throw new IOException("handshake timeout on port " + port);
+            }
+            if (rstReceived) {
+                throw new IOException("connection refused on port " + port);
+            }
+            long elapsed = System.nanoTime() - start;
+            sendAck();
+            return elapsed;
+        }
+
+        /**
+         * 在对端窗口允许的范围内按MSS分段发送
+         */
+        void send(byte[] data, int offset, int length, long timeoutMillis) throws IOException, InterruptedException {
+            int end = offset + length;
+            while (offset < end) {
+                if (!await(() -> sndNext - sndUna < peerWindow || rstReceived, timeoutMillis)) {
+                    throw new IOException("send window stalled on port " + port);
+                }
+                if (rstReceived) throw new IOException("connection reset on port " + port);
+                int size = Math.min(Math.min(segmentSize(), end - offset), peerWindow - (sndNext - sndUna));
+                int n = write(out, PacketView.TCP_ACK | PacketView.TCP_PSH, data, offset, size);
+                sndNext += size;
+                inject(out, n);
+                offset += size;
+            }
+        }
+
+        /**
+         * 发送按 {@link #pattern(long)} 生成的数据
+         */
+        void sendPattern(long streamOffset, long length, long timeoutMillis) throws IOException, InterruptedException {
+            byte[] chunk = new byte[MSS * 16];
+            while (length > 0) {
+                int size = (int) Math.min(chunk.length, length);
+                for (int i = 0; i < size; i++) {
+                    chunk[i] = pattern(streamOffset + i);
+                }
+                send(chunk, 0, size, timeoutMillis);
+                streamOffset += size;
+                length -= size;
+            }
+        }
+
+        boolean awaitReceived(long bytes, long timeoutMillis) throws InterruptedException {
+            return await(() -> receivedBytes >= bytes || rstReceived, timeoutMillis) && receivedBytes >= bytes;
+        }
+
+        boolean awaitAcknowledged(long timeoutMillis) throws InterruptedException {
+            return await(() -> sndUna == sndNext || rstReceived, timeoutMillis) && sndUna == sndNext;
+        }
+
+        boolean awaitFin(long timeoutMillis) throws InterruptedException {
+            return await(() -> finReceived || rstReceived, timeoutMillis) && finReceived;
+        }
+
+        /**
+         * 主动关闭：发送FIN并等待对端确认
+         */
+        void close(long timeoutMillis) throws IOException, InterruptedException {
+            int n = write(out, PacketView.TCP_ACK | PacketView.TCP_FIN, out, 0, 0);
+            sndNext += 1;
+            inject(out, n);
+            awaitAcknowledged(timeoutMillis);
+            connections.remove(port);
+        }
+
+        long receivedBytes() {
+            return receivedBytes;
+        }
+
+        /**
+         * 接收线程回调
+         */
+        void onPacket(PacketView packet) throws IOException {
+            if (packet.rst()) {
+                rstReceived = true;
+                signal();
+                return;
+            }
+            if (packet.syn()) {
+                if (packet.ack() && packet.acknowledgmentNumber() == iss + 1) {
+                    rcvNext = packet.sequenceNumber() + 1;
+                    sndUna = packet.acknowledgmentNumber();
+                    // SYN-ACK没有回应窗口缩放时双方都不缩放
+                    peerScale = Math.max(0, packet.windowScale());
+                    int timestamp = packet.timestampOption();
+                    if (timestamp >= 0) {
+                        timestampRecent = packet.timestampValue(timestamp);
+                        timestamps = true;
+                    }
+                    // SYN-ACK中的窗口不缩放
+                    peerWindow = packet.window();
+                    established = true;
+                    signal();
+                }
+                return;
+            }
+            if (packet.ack()) {
+                int ack = packet.acknowledgmentNumber();
+                if (ack - sndUna > 0 && ack - sndNext <= 0) {
+                    sndUna = ack;
+                }
+                peerWindow = packet.window() << peerScale;
+            }
+            if (timestamps) {
+                int timestamp = packet.timestampOption();
+                if (timestamp < 0) {
+                    // 协商了时间戳后引擎的每个包都必须携带
+                    unknownPackets.incrementAndGet();
+                } else {
+                    timestampRecent = packet.timestampValue(timestamp);
+                }
+            }
+
+            int length = packet.payloadLength();
+            if (length > 0 || packet.fin()) {
+                if (packet.sequenceNumber() != rcvNext) {
+                    // 引擎与客户端之间不会丢包，序号不连续说明引擎发送有误
+                    outOfOrder.incrementAndGet();
+                    sendAck();
+                    return;
+                }
+                byte[] data = packet.array();
+                int payload = packet.payloadOffset();
+                long base = receivedBytes;
+                for (int i = 0; i < length; i++) {
+                    if (data[payload + i] != pattern(base + i)) {
+                        patternMismatches.incrementAndGet();
+                        break;
+                    }
+                }
+                rcvNext += length;
+                receivedBytes = base + length;
+                if (packet.fin()) {
+                    rcvNext += 1;
+                    finReceived = true;
+                }
+                // 与常见协议栈一样每两个满长分段确认一次，小包和FIN立即确认
+                if (packet.fin() || length < segmentSize() || ++unacknowledgedSegments >= 2) {
+                    unacknowledgedSegments = 0;
+                    sendAck();
+                }
+            }
+            signal();
+        }
+
+        private void sendAck() throws IOException {
+            int n = write(ackOut, PacketView.TCP_ACK, ackOut, 0, 0);
+            inject(ackOut, n);
+        }
+
+        /**
+         * 构造SYN以外的包，协商了时间戳时携带时间戳选项
+         */
+        private int write(byte[] buffer, int flags, byte[] data, int offset, int length) {
+            int optionsLength = 0;
+            if (timestamps) {
+                int o = IPV4_HEADER + TCP_HEADER;
+                buffer[o] = 1;
+                buffer[o + 1] = 1;
+                buffer[o + 2] = 8;
+                buffer[o + 3] = 10;
+                writeInt(buffer, o + 4, timestampValue());
+                writeInt(buffer, o + 8, timestampRecent);
+                optionsLength = TIMESTAMP_OPTIONS;
+            }
+            return template.writeTcp(buffer, 0, ipId.incrementAndGet(), sndNext, rcvNext, flags, WINDOW,
+                    optionsLength, data, offset, length);
+        }
+
+        /**
+         * 满长分段的负载长度，时间戳选项占用MSS的空间
+         */
+        private int segmentSize() {
+            return timestamps ? MSS - TIMESTAMP_OPTIONS : MSS;
+        }
+
+        private void signal() {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        private boolean await(Condition condition, long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            synchronized (lock) {
+                while (!condition.met()) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) return false;
+                    lock.wait(remaining);
+                }
+                return true;
+            }
+        }
+    }
+
+    private static int timestampValue() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static void writeInt(byte[] out, int index, int value) {
+        out[index] = (byte) (value >> 24);
+        out[index + 1] = (byte) (value >> 16);
+        out[index + 2] = (byte) (value >> 8);
+        out[index + 3] = (byte) value;
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+}
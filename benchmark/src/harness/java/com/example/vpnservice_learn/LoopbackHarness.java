@@ -0,0 +1,322 @@
+package com.example.vpnservice_learn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在普通Linux/JVM上端到端运行包处理引擎
+ * 引擎通过 {@link PipeTunnel} 代替TUN，{@link LoopbackClient} 在隧道另一侧扮演客户端，
+ * 经引擎与本机的回显、下载、上传服务器完成真实的握手和数据传输，并校验每个回包。
+ * 输出连接建立延迟、往返时延分布和吞吐量，校验失败或低于阈值时以非0状态退出。
+ *
+ * <pre>
+ * 参数：--connections N   握手次数（默认200）
+ *       --rtt N           回显往返次数（默认2000）
+ *       --download-mb N   下载量（默认64）
+ *       --upload-mb N     上传量（默认32）
+ *       --min-mbps N      下载和上传吞吐量下限，0表示不检查（默认0）
+ *       --shards N        解析分片数，0表示按核数决定（默认0）
+ *       --capture DIR     同时抓包写入DIR，用于测量抓包对吞吐量的影响（默认不抓包）
+ *       --capture-format F  抓包格式pcap、ethernet（补以太网头的pcap）或pcapng（默认pcap）
+ *       --capture-filter E  抓包过滤表达式，参数含空格时需加引号（默认抓取所有包）
+ *       --capture-snaplen N 每个包最多保存的字节数，0表示只保存IP头和TCP/UDP头（默认不截断）
+ *       --capture-sample N  每N个包保存1个（默认全部保存）
+ *       --capture-first K   每条流只保存前K个包，与--capture-sample同时给出时以本项为准
+ * </pre>
+ */
+public final class LoopbackHarness {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final int RTT_MESSAGE = 64;
+
+    private final InetSocketAddress clientAddress;
+    private final PipeTunnel tunnel;
+    private final LoopbackClient client;
+    private final AtomicLong uploadMismatches = new AtomicLong();
+    private InetSocketAddress echoServer;
+    private InetSocketAddress downloadServer;
+    private InetSocketAddress uploadServer;
+
+    private LoopbackHarness() throws IOException {
+        clientAddress = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 2}), 0);
+        tunnel = new PipeTunnel();
+        client = new LoopbackClient(tunnel, clientAddress);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = intArg(args, "--connections", 200);
+        int rtt = intArg(args, "--rtt", 2000);
+        int downloadMb = intArg(args, "--download-mb", 64);
+        int uploadMb = intArg(args, "--upload-mb", 32);
+        int minMbps = intArg(args, "--min-mbps", 0);
+        int shards = intArg(args, "--shards", 0);
+        String captureDir = stringArg(args, "--capture", null);
+        PacketCapture capture = PacketCapture.NONE;
+        if (captureDir != null) {
+            PcapWriter writer = new PcapWriter(new FileCaptureSink(new File(captureDir)));
+            String format = stringArg(args, "--capture-format", "pcap");
+            if (format.equals("pcapng")) {
+                writer.setFormat(new PcapngFormat("pipe0"));
+            } else if (format.equals("ethernet")) {
+                writer.setFormat(PcapFormat.ETHERNET);
+            }
+            writer.setFilter(CaptureFilter.compile(stringArg(args, "--capture-filter", "")));
+            writer.setSnaplen(intArg(args, "--capture-snaplen", PcapFormat.SNAPLEN));
+            int first = intArg(args, "--capture-first", 0);
+            writer.setSampler(first > 0
+                    ? CaptureSampler.firstPerFlow(first)
+                    : CaptureSampler.oneIn(intArg(args, "--capture-sample", 1)));
+            capture = writer;
+        }
+        boolean ok = new LoopbackHarness().run(connections, rtt, downloadMb, uploadMb, minMbps, shards, capture);
+        System.exit(ok ? 0 : 1);
+    }
+
+    private boolean run(int connections, int rttCount, int downloadMb, int uploadMb, int minMbps, int shards,
+                        PacketCapture capture) throws Exception {
+        startServers();
+        BytesParse engine = shards > 0
+                ? new BytesParse(tunnel, capture, new AtomicLong(), shards)
+                : new BytesParse(tunnel, capture, new AtomicLong());
+        Thread engineThread = new Thread(engine, "engine");
+        engineThread.start();
+        Thread receiver = new Thread(client, "client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        boolean ok = true;
+
+        // 连接建立延迟：SYN发出到收到SYN-ACK，包含引擎连接上游的时间
+        long[] setup = new long[connections];
+        for (int i = 0; i < connections; i++) {
+            LoopbackClient.Connection connection = client.open(echoServer);
+            setup[i] = connection.connect(TIMEOUT_MILLIS);
+            connection.close(TIMEOUT_MILLIS);
+        }
+        report("setup latency", setup, connections);
+
+        // 上游拒绝连接：客户端应很快收到RST，而不是等到握手超时
+        InetSocketAddress closedPort = closedPort();
+        LoopbackClient.Connection refused = client.open(closedPort);
+        long refusedStart = System.nanoTime();
+        boolean wasRefused = false;
+        try {
+            refused.connect(TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            wasRefused = e.getMessage().startsWith("connection refused");
+        }
+        System.out.printf(Locale.ROOT, "refused connect: rst=%b after %.3fms%n",
+                wasRefused, (System.nanoTime() - refusedStart) / 1e6);
+        ok &= wasRefused;
+
+        // 往返时延：一条连接上依次发送小消息并等待回显
+        LoopbackClient.Connection echo = client.open(echoServer);
+        echo.connect(TIMEOUT_MILLIS);
+        long[] rtt = new long[rttCount];
+        long offset = 0;
+        for (int i = 0; i < rttCount; i++) {
+            long start = System.nanoTime();
+            echo.sendPattern(offset, RTT_MESSAGE, TIMEOUT_MILLIS);
+            offset += RTT_MESSAGE;
+            if (!echo.awaitReceived(offset, TIMEOUT_MILLIS)) {
+                System.out.println("rtt: echo timeout after " + i + " messages");
+                ok = false;
+                break;
+            }
+            rtt[i] = System.nanoTime() - start;
+        }
+        echo.close(TIMEOUT_MILLIS);
+        report("round trip (" + RTT_MESSAGE + "B)", rtt, rttCount);
+
+        // 下载：上游发送指定字节数后关闭
+        long downloadBytes = downloadMb * 1024L * 1024L;
+        LoopbackClient.Connection download = client.open(downloadServer);
+        download.connect(TIMEOUT_MILLIS);
+        long start = System.nanoTime();
+        download.send(ByteBuffer.allocate(8).putLong(downloadBytes).array(), 0, 8, TIMEOUT_MILLIS);
+        boolean downloaded = download.awaitFin(TIMEOUT_MILLIS * 6) && download.receivedBytes() == downloadBytes;
+        double downloadMbps = throughput(download.receivedBytes(), System.nanoTime() - start);
+        download.close(TIMEOUT_MILLIS);
+        System.out.printf(Locale.ROOT, "download: %d bytes, %.1f MB/s%s%n", download.receivedBytes(), downloadMbps,
+                downloaded ? "" : " (incomplete)");
+        ok &= downloaded && (minMbps == 0 || downloadMbps >= minMbps);
+
+        // 上传：上游收满后回复一个字节
+        long uploadBytes = uploadMb * 1024L * 1024L;
+        LoopbackClient.Connection upload = client.open(uploadServer);
+        upload.connect(TIMEOUT_MILLIS);
+        start = System.nanoTime();
+        upload.send(ByteBuffer.allocate(8).putLong(uploadBytes).array(), 0, 8, TIMEOUT_MILLIS);
+        upload.sendPattern(0, uploadBytes, TIMEOUT_MILLIS);
+        boolean uploaded = upload.awaitReceived(1, TIMEOUT_MILLIS * 6);
+        double uploadMbps = throughput(uploadBytes, System.nanoTime() - start);
+        upload.close(TIMEOUT_MILLIS);
+        System.out.printf(Locale.ROOT, "upload: %d bytes, %.1f MB/s%s%n", uploadBytes, uploadMbps,
+                uploaded ? "" : " (incomplete)");
+        ok &= uploaded && (minMbps == 0 || uploadMbps >= minMbps);
+
+        Metrics.Snapshot metrics = engine.getMetrics().snapshot();
+        System.out.printf(Locale.ROOT, "metrics: tun in=%d packets/%d bytes out=%d packets/%d bytes parseErrors=%d%n",
+                metrics.get("tun.in.packets"), metrics.get("tun.in.bytes"),
+                metrics.get("tun.out.packets"), metrics.get("tun.out.bytes"), metrics.get("parse.errors"));
+        System.out.printf(Locale.ROOT, "metrics: tcp connect latency (ns) %s failures=%d timeouts=%d synAbsorbed=%d%n",
+                metrics.histogram("tcp.connect.nanos"), metrics.get("tcp.connect.failures"),
+                metrics.get("tcp.connect.timeouts"), metrics.get("tcp.syn.absorbed"));
+        System.out.printf(Locale.ROOT, "metrics: tcp pure acks=%d delayed=%d%n",
+                metrics.get("tcp.acks.pure"), metrics.get("tcp.acks.delayed"));
+        NioEngine loops = engine.getEngine();
+        System.out.printf(Locale.ROOT, "engine: threads=%d utilization=%.1f%% queueDepth=%d%n",
+                loops.threads(), loops.utilization() * 100, loops.queueDepth());
+        for (int i = 0; i < engine.shards(); i++) {
+            String prefix = "shard." + i + ".";
+            System.out.printf(Locale.ROOT, "shard %d: packets=%d flows=%d dropped=%d utilization=%.1f%%%n", i,
+                    metrics.get(prefix + "packets"), metrics.get(prefix + "flows"), metrics.get(prefix + "dropped"),
+                    metrics.get(prefix + "utilization.permille") / 10.0);
+        }
+        engineThread.join(TIMEOUT_MILLIS);
+        // 读线程退出时关闭事件循环和抓包并归还缓冲区，等待全部完成后再检查抓包和泄漏
+        engine.close();
+        boolean terminated = engine.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.printf(Locale.ROOT, "shutdown: terminated=%b rejected=%d leaked=%d buffers%n",
+                terminated, loops.rejected(), engine.getBufferPool().inUse());
+        ok &= terminated;
+        if (capture instanceof PcapWriter) {
+            PcapWriter writer = (PcapWriter) capture;
+            System.out.printf(Locale.ROOT, "capture: written=%d bytes dropped=%d filtered=%d skipped=%d packets%n",
+                    writer.getWritten(), writer.getDropped(), writer.getFiltered(), writer.getSkipped());
+        }
+
+        System.out.printf(Locale.ROOT,
+                "validation: packets=%d badChecksum=%d outOfOrder=%d unknown=%d mismatches=%d uploadMismatches=%d%n",
+                client.packetsReceived.get(), client.badChecksums.get(), client.outOfOrder.get(),
+                client.unknownPackets.get(), client.patternMismatches.get(), uploadMismatches.get());
+        ok &= client.badChecksums.get() == 0 && client.outOfOrder.get() == 0
+                && client.patternMismatches.get() == 0 && uploadMismatches.get() == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    private void startServers() throws IOException {
+        echoServer = serve("echo", socket -> {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        });
+        downloadServer = serve("download", socket -> {
+            long length = new DataInputStream(socket.getInputStream()).readLong();
+            OutputStream out = socket.getOutputStream();
+            byte[] chunk = new byte[64 * 1024];
+            for (long offset = 0; offset < length; ) {
+                int size = (int) Math.min(chunk.length, length - offset);
+                for (int i = 0; i < size; i++) {
+                    chunk[i] = LoopbackClient.pattern(offset + i);
+                }
+                out.write(chunk, 0, size);
+                offset += size;
+            }
+        });
+        uploadServer = serve("upload", socket -> {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            long length = in.readLong();
+            byte[] buffer = new byte[64 * 1024];
+            for (long offset = 0; offset < length; ) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - offset));
+                if (n < 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] != LoopbackClient.pattern(offset + i)) {
+                        uploadMismatches.incrementAndGet();
+                        break;
+                    }
+                }
+                offset += n;
+            }
+            new DataOutputStream(socket.getOutputStream()).write(LoopbackClient.pattern(0));
+        });
+    }
+
+    /**
+     * 刚释放的本机端口，连接时会被拒绝
+     */
+    private static InetSocketAddress closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+        }
+    }
+
+    private interface Session {
+        void handle(Socket socket) throws IOException;
+    }
+
+    private static InetSocketAddress serve(String name, Session session) throws IOException {
+        ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread worker = new Thread(() -> {
+                        try (Socket s = socket) {
+                            session.handle(s);
+                        } catch (IOException ignored) {
+                        }
+                    }, name + "-session");
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, name + "-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    private static void report(String name, long[] nanos, int count) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long value : sorted) total += value;
+        System.out.printf(Locale.ROOT, "%s: n=%d avg=%.3fms p50=%.3fms p99=%.3fms max=%.3fms%n", name, count,
+                count == 0 ? 0 : total / 1e6 / count, percentile(sorted, 50), percentile(sorted, 99),
+                count == 0 ? 0 : sorted[count - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return bytes / 1024.0 / 1024.0 / (nanos / 1e9);
+    }
+
+    private static int intArg(String[] args, String name, int defaultValue) {
+        String value = stringArg(args, name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String stringArg(String[] args, String name, String defaultValue) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.vpnservice_learn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+/**
+ * 在JVM上代替TUN的隧道，用两条管道分别承载两个方向的包
+ * 管道是字节流，每个包前加2字节长度以保留包边界。
+ * 引擎一侧通过 {@link Tunnel} 接口读写，模拟的客户端一侧使用 {@link #inject} 和 {@link #receive}。
+ * 上游socket在JVM上本来就不经过隧道，protect直接返回true。
+ */
+public class PipeTunnel implements Tunnel {
+
+    private static final int FRAME_HEADER = 2;
+
+    // 客户端 -> 引擎
+    private final Pipe inbound;
+    // 引擎 -> 客户端
+    private final Pipe outbound;
+    // 引擎只有一个读线程和一个写线程，客户端一侧可能多线程注入
+    private final ByteBuffer readHeader = ByteBuffer.allocate(FRAME_HEADER);
+    private final ByteBuffer writeHeader = ByteBuffer.allocate(FRAME_HEADER);
+    private final ByteBuffer injectHeader = ByteBuffer.allocate(FRAME_HEADER);
+    private final ByteBuffer receiveHeader = ByteBuffer.allocate(FRAME_HEADER);
+    // 注入和接收方向各自加锁，接收线程阻塞时不能挡住注入
+    private final Object injectLock = new Object();
+    private final Object receiveLock = new Object();
+
+    public PipeTunnel() throws IOException {
+        inbound = Pipe.open();
+        outbound = Pipe.open();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return readFrame(inbound.source(), readHeader, buffer);
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        writeFrame(outbound.sink(), writeHeader, packet);
+    }
+
+    /**
+     * 客户端发出一个IP包
+     */
+    public void inject(ByteBuffer packet) throws IOException {
+        synchronized (injectLock) {
+            writeFrame(inbound.sink(), injectHeader, packet);
+        }
+    }
+
+    /**
+     * 客户端接收一个引擎写出的IP包
+     *
+     * @return 包长度，隧道关闭时返回-1
+     */
+    public int receive(ByteBuffer buffer) throws IOException {
+        synchronized (receiveLock) {
+            return readFrame(outbound.source(), receiveHeader, buffer);
+        }
+    }
+
+    @Override
+    public boolean protect(Socket socket) {
+        return true;
+    }
+
+    @Override
+    public boolean protect(DatagramSocket socket) {
+        return true;
+    }
+
+    /**
+     * 关闭客户端发往引擎的方向，引擎读到-1后停止
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            inbound.sink().close();
+        } finally {
+            outbound.sink().close();
+        }
+    }
+
+    private static void writeFrame(Pipe.SinkChannel sink, ByteBuffer header, ByteBuffer packet) throws IOException {
+        int length = packet.remaining();
+        header.clear();
+        header.put((byte) (length >> 8)).put((byte) length).flip();
+        ByteBuffer[] buffers = {header, packet};
+        while (header.hasRemaining() || packet.hasRemaining()) {
+            sink.write(buffers);
+        }
+    }
+
+    private static int readFrame(Pipe.SourceChannel source, ByteBuffer header, ByteBuffer buffer) throws IOException {
+        header.clear();
+        if (!readFully(source, header)) {
+            return -1;
+        }
+        int length = ((header.get(0) & 0xFF) << 8) | (header.get(1) & 0xFF);
+        if (length > buffer.remaining()) {
+            throw new IOException("packet larger than buffer: " + length);
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        boolean complete = readFully(source, buffer);
+        buffer.limit(limit);
+        if (!complete) {
+            throw new EOFException("truncated packet");
+        }
+        return length;
+    }
+
+    /**
+     * 读满buffer，开始之前就遇到流结束时返回false
+     */
+    private static boolean readFully(Pipe.SourceChannel source, ByteBuffer buffer) throws IOException {
+        boolean started = false;
+        while (buffer.hasRemaining()) {
+            int n = source.read(buffer);
+            if (n < 0) {
+                if (started) throw new EOFException("truncated packet");
+                return false;
+            }
+            started = true;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 回包构造路径：PacketTool的各个send方法，以及构造时的校验和计算
+ * 包交给 {@link PacketTool.NetworkChannel#sendToVpn(PacketBuffer)} 后立即归还缓冲池，只测量构造本身
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BuildBenchmark {
+
+    // 满MSS数据段和常见的小应答
+    @Param({"1460", "100"})
+    public int payloadSize;
+
+    private Channel tcp;
+    private Channel udp;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        InetSocketAddress server = PacketCorpus.server(1, 443);
+        InetSocketAddress client = new InetSocketAddress(PacketCorpus.address(10, 0, 0, 2), 40000);
+        BufferPool pool = new BufferPool();
+        tcp = new Channel(PacketTemplate.tcp(server, client, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS), pool);
+        udp = new Channel(PacketTemplate.udp(server, client, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS), pool);
+        payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+    }
+
+    @Benchmark
+    public long sendSynAck() {
+        PacketTool.sendSynAckPacket(tcp);
+        return tcp.bytes;
+    }
+
+    @Benchmark
+    public long sendAck() {
+        PacketTool.sendAckPacket(tcp);
+        return tcp.bytes;
+    }
+
+    @Benchmark
+    public long sendData() {
+        PacketTool.sendDataPacket(tcp, payload, 0, payload.length);
+        return tcp.bytes;
+    }
+
+    @Benchmark
+    public long sendFin() {
+        PacketTool.sendFinPacket(tcp);
+        return tcp.bytes;
+    }
+
+    @Benchmark
+    public long sendRst() {
+        PacketTool.sendRstPacket(tcp);
+        return tcp.bytes;
+    }
+
+    @Benchmark
+    public long sendUdp() {
+        PacketTool.sendUdpPacket(udp, payload, 0, payload.length);
+        return udp.bytes;
+    }
+
+    /**
+     * 单独测量负载部分的校验和累加
+     */
+    @Benchmark
+    public int checksum() {
+        return PacketTemplate.fold(PacketTemplate.sum(payload, 0, payload.length, 0));
+    }
+
+    private static final class Channel implements PacketTool.TcpChannel {
+        private final AtomicInteger sequenceNumber = new AtomicInteger(1000);
+        private final AtomicInteger ackNumber = new AtomicInteger(5000);
+        private final PacketTemplate template;
+        private final BufferPool pool;
+        private final TcpOptions options = TcpOptions.none(0x8000);
+        private long bytes;
+
+        Channel(PacketTemplate template, BufferPool pool) {
+            this.template = template;
+            this.pool = pool;
+        }
+
+        @Override
+        public AtomicInteger getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        @Override
+        public AtomicInteger getAckNumber() {
+            return ackNumber;
+        }
+
+        @Override
+        public void sendToVpn(PacketBuffer packet) {
+            bytes += packet.length();
+            packet.release();
+        }
+
+        @Override
+        public boolean sendToVpn(PacketBuffer[] packets, int count) {
+            for (int i = 0; i < count; i++) {
+                sendToVpn(packets[i]);
+            }
+            return true;
+        }
+
+        @Override
+        public InetSocketAddress getSrcAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getDstAddress() {
+            return null;
+        }
+
+        @Override
+        public PacketTemplate getTemplate() {
+            return template;
+        }
+
+        @Override
+        public TcpOptions getTcpOptions() {
+            return options;
+        }
+
+        @Override
+        public BufferPool getBufferPool() {
+            return pool;
+        }
+    }
+}
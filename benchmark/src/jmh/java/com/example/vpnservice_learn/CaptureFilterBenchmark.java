@@ -0,0 +1,44 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 抓包过滤器在入队前对每个包的判断
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CaptureFilterBenchmark {
+
+    @Param({"BULK", "DNS"})
+    public PacketCorpus.Kind kind;
+
+    @Param({"port 53", "tcp and (port 443 or port 80) and not net 192.168.0.0/16"})
+    public String expression;
+
+    private byte[][] packets;
+    private CaptureFilter filter;
+    private int index;
+
+    @Setup
+    public void setup() {
+        packets = PacketCorpus.generate(kind, 256);
+        filter = CaptureFilter.compile(expression);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        byte[] packet = packets[index];
+        index = index + 1 == packets.length ? 0 : index + 1;
+        return filter.matches(packet, 0, packet.length);
+    }
+}
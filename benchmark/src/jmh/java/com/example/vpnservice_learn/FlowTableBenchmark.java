@@ -0,0 +1,86 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接表的查找、插入和删除
+ * 表中保持flows条已建立的连接，churn基准模拟短连接不断新建和关闭
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FlowTableBenchmark {
+
+    @Param({"64", "4096"})
+    public int flows;
+
+    private long[][] keys;
+    private long[][] missingKeys;
+    private Object[] values;
+    private FlowTable<Object> table;
+    private int index;
+
+    @Setup
+    public void setup() {
+        // 前一半放入表中，后一半作为不存在的连接
+        long[][] all = keys(PacketCorpus.generate(PacketCorpus.Kind.ACK, flows * 2));
+        keys = new long[flows][];
+        missingKeys = new long[flows][];
+        System.arraycopy(all, 0, keys, 0, flows);
+        System.arraycopy(all, flows, missingKeys, 0, flows);
+
+        values = new Object[flows];
+        table = new FlowTable<>(FlowTable.IPV4_KEY_LONGS, 256);
+        for (int i = 0; i < flows; i++) {
+            values[i] = new Object();
+            table.putIfAbsent(keys[i], values[i]);
+        }
+    }
+
+    private static long[][] keys(byte[][] packets) {
+        PacketView view = new PacketView();
+        long[][] keys = new long[packets.length][];
+        for (int i = 0; i < packets.length; i++) {
+            view.wrap(packets[i], 0, packets[i].length);
+            keys[i] = new long[FlowTable.IPV4_KEY_LONGS];
+            FlowTable.key(view, keys[i]);
+        }
+        return keys;
+    }
+
+    private int next() {
+        int current = index;
+        index = current + 1 == flows ? 0 : current + 1;
+        return current;
+    }
+
+    @Benchmark
+    public Object lookupHit() {
+        return table.get(keys[next()]);
+    }
+
+    @Benchmark
+    public Object lookupMiss() {
+        return table.get(missingKeys[next()]);
+    }
+
+    /**
+     * 新建一条连接后立即关闭，表的大小保持不变
+     */
+    @Benchmark
+    public boolean insertRemove() {
+        int i = next();
+        Object value = values[i];
+        table.putIfAbsent(missingKeys[i], value);
+        return table.remove(missingKeys[i], value);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多线程同时累加计数器和记录直方图的开销
+ * atomicLong是改用LongAdder之前的做法，作为对照
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class MetricsBenchmark {
+
+    private final AtomicLong atomic = new AtomicLong();
+    private final LongAdder adder = new Metrics().counter("bytes");
+    private final Histogram histogram = new Histogram();
+
+    @Benchmark
+    public void atomicLong() {
+        atomic.addAndGet(1400);
+    }
+
+    @Benchmark
+    public void longAdder() {
+        adder.add(1400);
+    }
+
+    @Benchmark
+    public void histogram() {
+        histogram.record(System.nanoTime() & 0xFFFFF);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.vpnservice_learn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 基准使用的数据包样本
+ * 模拟客户端经TUN发出的典型流量，每种样本分布在多条流上，避免基准只命中同一个哈希槽。
+ */
+public final class PacketCorpus {
+
+    public enum Kind {
+        // 带常见选项（MSS、SACK、时间戳、窗口扩大）的握手包
+        SYN,
+        // 满MSS的上传数据段
+        BULK,
+        // 下载时客户端回复的纯确认
+        ACK,
+        // A记录查询
+        DNS
+    }
+
+    static final int MSS = 1460;
+
+    private static final byte TTL = 64;
+    private static final byte TOS = 0;
+    private static final int CLIENT_PORT_BASE = 40000;
+
+    private PacketCorpus() {
+    }
+
+    /**
+     * 生成flows条流的样本，每条流一个包
+     */
+    static byte[][] generate(Kind kind, int flows) {
+        Random random = new Random(kind.ordinal());
+        byte[][] packets = new byte[flows][];
+        byte[] out = new byte[BufferPool.MTU];
+        byte[] payload = new byte[MSS];
+        random.nextBytes(payload);
+        for (int i = 0; i < flows; i++) {
+            InetSocketAddress client = new InetSocketAddress(address(10, 0, 0, 2), CLIENT_PORT_BASE + i);
+            int seq = random.nextInt();
+            int ack = random.nextInt();
+            int length;
+            switch (kind) {
+                case SYN:
+                    length = syn(out, client, server(i, 443), seq);
+                    break;
+                case BULK:
+                    length = PacketTemplate.tcp(client, server(i, 443), TTL, TOS)
+                            .writeTcp(out, 0, i, seq, ack, PacketView.TCP_ACK | PacketView.TCP_PSH, 0xFFFF,
+                                    payload, 0, MSS);
+                    break;
+                case ACK:
+                    length = PacketTemplate.tcp(client, server(i, 443), TTL, TOS)
+                            .writeTcp(out, 0, i, seq, ack, PacketView.TCP_ACK, 0xFFFF, payload, 0, 0);
+                    break;
+                case DNS:
+                    byte[] query = dnsQuery(i, "www" + i + ".example.com");
+                    length = PacketTemplate.udp(client, new InetSocketAddress(address(114, 114, 114, 114), 53), TTL, TOS)
+                            .writeUdp(out, 0, i, query, 0, query.length);
+                    break;
+                default:
+                    throw new IllegalArgumentException(kind.name());
+            }
+            packets[i] = Arrays.copyOf(out, length);
+        }
+        return packets;
+    }
+
+    static InetSocketAddress server(int flow, int port) {
+        return new InetSocketAddress(address(93, 184, (flow >> 8) & 0xFF, flow & 0xFF), port);
+    }
+
+    static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 构造带选项的SYN，PacketTemplate只生成无选项的头部，这里在其基础上插入20字节选项
+     */
+    private static int syn(byte[] out, InetSocketAddress client, InetSocketAddress server, int seq) {
+        byte[] options = {
+                2, 4, (byte) (MSS >> 8), (byte) MSS,  // MSS
+                4, 2,                                 // SACK permitted
+                8, 10, 0, 0, 0, 1, 0, 0, 0, 0,        // timestamps
+                1,                                    // NOP
+                3, 3, 7                               // window scale
+        };
+        int length = PacketTemplate.tcp(client, server, TTL, TOS)
+                .writeTcp(out, 0, 1, seq, 0, PacketView.TCP_SYN, 0xFFFF, options, 0, options.length);
+        // 把负载改成选项：调整TCP数据偏移，IP总长度不变；校验和不参与解析，不再重算
+        out[20 + 12] = (byte) (((20 + options.length) / 4) << 4);
+        return length;
+    }
+
+    private static byte[] dnsQuery(int id, String name) {
+        byte[] labels = name.getBytes(StandardCharsets.US_ASCII);
+        byte[] query = new byte[12 + labels.length + 2 + 4];
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        query[2] = 0x01; // RD
+        query[5] = 1;    // QDCOUNT
+        int index = 12;
+        int start = 0;
+        for (int i = 0; i <= labels.length; i++) {
+            if (i == labels.length || labels[i] == '.') {
+                query[index++] = (byte) (i - start);
+                System.arraycopy(labels, start, query, index, i - start);
+                index += i - start;
+                start = i + 1;
+            }
+        }
+        query[index++] = 0;
+        query[index + 1] = 1; // QTYPE A
+        query[index + 3] = 1; // QCLASS IN
+        return query;
+    }
+}
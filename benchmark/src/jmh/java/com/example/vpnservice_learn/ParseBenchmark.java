@@ -0,0 +1,99 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读线程的解析路径：头部解析、五元组键计算以及连接表查找
+ * 对应 BytesParse.parseData/getKey 中除分发给连接对象以外的部分（BytesParse依赖Android，无法在JVM上直接运行）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    @Param({"SYN", "BULK", "ACK", "DNS"})
+    public PacketCorpus.Kind kind;
+
+    @Param({"1024"})
+    public int flows;
+
+    private byte[][] packets;
+    private final PacketView view = new PacketView();
+    private final long[] ipv4Key = new long[FlowTable.IPV4_KEY_LONGS];
+    private final long[] ipv6Key = new long[FlowTable.IPV6_KEY_LONGS];
+    private FlowTable<Object> table;
+    private int index;
+
+    @Setup
+    public void setup() {
+        packets = PacketCorpus.generate(kind, flows);
+        table = new FlowTable<>(FlowTable.IPV4_KEY_LONGS, 256);
+        // SYN是新连接，查表不命中；其余样本所属的连接都已建立
+        if (kind != PacketCorpus.Kind.SYN) {
+            for (byte[] packet : packets) {
+                view.wrap(packet, 0, packet.length);
+                long[] key = new long[FlowTable.IPV4_KEY_LONGS];
+                FlowTable.key(view, key);
+                table.putIfAbsent(key, new Object());
+            }
+        }
+    }
+
+    private byte[] next() {
+        byte[] packet = packets[index];
+        index = index + 1 == packets.length ? 0 : index + 1;
+        return packet;
+    }
+
+    @Benchmark
+    public int wrap() {
+        byte[] packet = next();
+        view.wrap(packet, 0, packet.length);
+        return view.payloadLength();
+    }
+
+    /**
+     * 解析时顺带读取各处理分支会用到的字段
+     */
+    @Benchmark
+    public int wrapAndReadFields() {
+        byte[] data = next();
+        PacketView packet = view;
+        if (!packet.wrap(data, 0, data.length)) return -1;
+        int result = packet.srcPort() ^ packet.dstPort();
+        if (packet.isTcp()) {
+            result ^= packet.sequenceNumber() ^ packet.acknowledgmentNumber() ^ packet.tcpFlags() ^ packet.window();
+            if (packet.syn()) {
+                result ^= packet.mss();
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long[] key() {
+        byte[] packet = next();
+        view.wrap(packet, 0, packet.length);
+        long[] key = view.isIPv6() ? ipv6Key : ipv4Key;
+        FlowTable.key(view, key);
+        return key;
+    }
+
+    @Benchmark
+    public Object readerPath() {
+        byte[] packet = next();
+        if (!view.wrap(packet, 0, packet.length)) return null;
+        long[] key = view.isIPv6() ? ipv6Key : ipv4Key;
+        FlowTable.key(view, key);
+        return table.get(key);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 抓包记录的编码，对应PcapWriter写线程中每个包的处理
+ * allocate为每条记录新建数组；其余与写线程的做法一致，复用同一块缓冲区：
+ * reuse为补以太网头的编码，raw为默认的裸IP编码，pcapng为pcapng编码
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PcapFormatBenchmark {
+
+    @Param({"BULK", "ACK", "DNS"})
+    public PacketCorpus.Kind kind;
+
+    private byte[][] packets;
+    // 容纳任一格式下一个MTU大小的包
+    private final ByteBuffer reuse = ByteBuffer.allocate(BufferPool.MTU * 2);
+    private final CaptureFormat pcapng = new PcapngFormat("tun0");
+    private int index;
+    private long time = System.currentTimeMillis() * 1_000_000L;
+
+    @Setup
+    public void setup() {
+        packets = PacketCorpus.generate(kind, 256);
+    }
+
+    private byte[] next() {
+        byte[] packet = packets[index];
+        index = index + 1 == packets.length ? 0 : index + 1;
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer allocate() {
+        byte[] packet = next();
+        ByteBuffer record = ByteBuffer.allocate(PcapFormat.ethernetRecordLength(packet.length));
+        PcapFormat.writeEthernetRecord(record, time++, packet, 0, packet.length, packet.length);
+        return record;
+    }
+
+    @Benchmark
+    public int reuse() {
+        byte[] packet = next();
+        reuse.clear();
+        return PcapFormat.writeEthernetRecord(reuse, time++, packet, 0, packet.length, packet.length);
+    }
+
+    @Benchmark
+    public int raw() {
+        byte[] packet = next();
+        reuse.clear();
+        return PcapFormat.writeRawRecord(reuse, time++, packet, 0, packet.length, packet.length);
+    }
+
+    @Benchmark
+    public int pcapng() {
+        byte[] packet = next();
+        reuse.clear();
+        return pcapng.writeRecord(reuse, time++, packet, 0, packet.length, packet.length, null);
+    }
+}
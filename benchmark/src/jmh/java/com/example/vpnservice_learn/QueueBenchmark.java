@@ -0,0 +1,97 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 包路径上队列的入队出队开销：生产者满了就放弃，消费者空了就返回，只比较队列本身
+ * linkedBlocking和concurrentLinked是改用环形队列之前的TUN写队列和连接队列，作为对照
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QueueBenchmark {
+
+    private static final int CAPACITY = 8192;
+    private static final Object ITEM = new Object();
+
+    private final MpscRingBuffer<Object> mpsc = new MpscRingBuffer<>(CAPACITY, WaitStrategy.PARK);
+    private final LinkedBlockingQueue<Object> linkedBlocking = new LinkedBlockingQueue<>(CAPACITY);
+    private final SpscRingBuffer<Object> spsc = new SpscRingBuffer<>(CAPACITY);
+    private final Queue<Object> concurrentLinked = new ConcurrentLinkedQueue<>();
+    // 无界队列的积压计数，size()需要遍历链表，不能用来限制长度
+    private final AtomicInteger concurrentLinkedSize = new AtomicInteger();
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(3)
+    public boolean mpscOffer() {
+        return mpsc.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(1)
+    public Object mpscPoll() {
+        return mpsc.poll();
+    }
+
+    @Benchmark
+    @Group("linkedBlocking")
+    @GroupThreads(3)
+    public boolean linkedBlockingOffer() {
+        return linkedBlocking.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("linkedBlocking")
+    @GroupThreads(1)
+    public Object linkedBlockingPoll() {
+        return linkedBlocking.poll();
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean spscOffer() {
+        return spsc.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Object spscPoll() {
+        return spsc.poll();
+    }
+
+    @Benchmark
+    @Group("concurrentLinked")
+    @GroupThreads(1)
+    public boolean concurrentLinkedOffer() {
+        // 积压过多时跳过入队，避免耗尽内存
+        if (concurrentLinkedSize.get() >= CAPACITY) return false;
+        concurrentLinkedSize.incrementAndGet();
+        return concurrentLinked.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("concurrentLinked")
+    @GroupThreads(1)
+    public Object concurrentLinkedPoll() {
+        Object item = concurrentLinked.poll();
+        if (item != null) concurrentLinkedSize.decrementAndGet();
+        return item;
+    }
+}
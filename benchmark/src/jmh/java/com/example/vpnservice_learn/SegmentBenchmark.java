@@ -0,0 +1,155 @@
+package com.example.vpnservice_learn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载方向一次上游读取转成客户端数据包的开销，每次操作处理chunkSize字节
+ * 上游读取用从数组复制代替：perPacket先读入共享缓冲区，再逐个分段复制、构造并入队，是改用分散读之前的做法；
+ * segments直接读入按MSS划分的包缓冲区，整批写头部后一次入队。
+ * 包入队后由写线程立即释放，同时计入写线程的出队开销。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SegmentBenchmark {
+
+    private static final int MSS = 1460;
+
+    @Param({"65536", "8192"})
+    public int chunkSize;
+
+    private Channel channel;
+    private byte[] upstream;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private PacketBuffer[] segments;
+    private ByteBuffer[] views;
+
+    @Setup
+    public void setup() {
+        InetSocketAddress server = PacketCorpus.server(1, 443);
+        InetSocketAddress client = new InetSocketAddress(PacketCorpus.address(10, 0, 0, 2), 40000);
+        channel = new Channel(PacketTemplate.tcp(server, client, PacketTool.DEFAULT_TTL, PacketTool.DEFAULT_TOS),
+                new BufferPool());
+        upstream = new byte[chunkSize];
+        new Random(1).nextBytes(upstream);
+        int count = (chunkSize + MSS - 1) / MSS;
+        segments = new PacketBuffer[count];
+        views = new ByteBuffer[count];
+    }
+
+    @Benchmark
+    public long perPacket() {
+        readBuffer.clear();
+        readBuffer.put(upstream, 0, chunkSize);
+        byte[] data = readBuffer.array();
+        for (int offset = 0; offset < chunkSize; offset += MSS) {
+            PacketTool.sendDataPacket(channel, data, offset, Math.min(MSS, chunkSize - offset));
+        }
+        return channel.drain();
+    }
+
+    @Benchmark
+    public long segments() {
+        int offset = PacketTool.segmentOffset(channel);
+        int count = segments.length;
+        for (int i = 0; i < count; i++) {
+            int size = Math.min(MSS, chunkSize - i * MSS);
+            segments[i] = channel.getBufferPool().acquire(offset + size);
+            views[i] = segments[i].nioBuffer(offset, size);
+        }
+        // 分散读入
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int size = views[i].remaining();
+            views[i].put(upstream, position, size);
+            position += size;
+        }
+        PacketTool.sendDataSegments(channel, segments, count, MSS, chunkSize);
+        return channel.drain();
+    }
+
+    private static final class Channel implements PacketTool.TcpChannel {
+        private final AtomicInteger sequenceNumber = new AtomicInteger(1000);
+        private final AtomicInteger ackNumber = new AtomicInteger(5000);
+        private final PacketTemplate template;
+        private final BufferPool pool;
+        private final TcpOptions options = TcpOptions.none(0x8000);
+        private final MpscRingBuffer<PacketBuffer> queue = new MpscRingBuffer<>(1024, WaitStrategy.PARK);
+        private long bytes;
+
+        Channel(PacketTemplate template, BufferPool pool) {
+            this.template = template;
+            this.pool = pool;
+        }
+
+        /**
+         * 代替写线程取出并释放所有包
+         */
+        long drain() {
+            PacketBuffer packet;
+            while ((packet = queue.poll()) != null) {
+                bytes += packet.length();
+                packet.release();
+            }
+            return bytes;
+        }
+
+        @Override
+        public AtomicInteger getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        @Override
+        public AtomicInteger getAckNumber() {
+            return ackNumber;
+        }
+
+        @Override
+        public void sendToVpn(PacketBuffer packet) {
+            queue.offer(packet);
+        }
+
+        @Override
+        public boolean sendToVpn(PacketBuffer[] packets, int count) {
+            return queue.offer(packets, count);
+        }
+
+        @Override
+        public InetSocketAddress getSrcAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getDstAddress() {
+            return null;
+        }
+
+        @Override
+        public PacketTemplate getTemplate() {
+            return template;
+        }
+
+        @Override
+        public TcpOptions getTcpOptions() {
+            return options;
+        }
+
+        @Override
+        public BufferPool getBufferPool() {
+            return pool;
+        }
+    }
+}